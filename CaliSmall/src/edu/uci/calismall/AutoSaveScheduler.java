@@ -0,0 +1,307 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules autosaves and backups of the sketch shown by a {@link CaliView}.
+ * 
+ * <p>
+ * The view keeps an edit version (see {@link CaliView#getEditVersion()}) that
+ * is bumped by every change to an element. The first change after a save
+ * schedules a check once the idle time passed to the constructor has elapsed,
+ * and all changes that follow before the check runs are coalesced into it.
+ * When the check runs the sketch is saved, unless:
+ * 
+ * <ul>
+ * <li>the version didn't move since the sketch was last saved, in which case
+ * nothing is written;</li>
+ * <li>users are touching the screen, or touched it less than the idle time
+ * ago, in which case the check is postponed. Users that keep drawing can only
+ * postpone a save for the maximum delay after the first unsaved change, after
+ * which the sketch is saved as soon as no finger is on the screen.</li>
+ * </ul>
+ * 
+ * <p>
+ * Backups are made after an autosave, at most once per backup interval.
+ */
+public class AutoSaveScheduler {
+
+    /**
+     * The operations run by the scheduler, on its own thread.
+     */
+    public interface Saver {
+
+        /**
+         * Saves the current sketch.
+         */
+        void autoSave();
+
+        /**
+         * Makes a backup copy of the current sketch.
+         */
+        void backup();
+    }
+
+    /**
+     * Counters describing what the scheduler did so far.
+     */
+    public static class Stats {
+        /**
+         * The number of checks that were run.
+         */
+        public int checks;
+        /**
+         * The number of checks that found no changes to be saved.
+         */
+        public int skipped;
+        /**
+         * The number of checks that were postponed because users were
+         * drawing.
+         */
+        public int postponed;
+        /**
+         * The number of autosaves.
+         */
+        public int saves;
+        /**
+         * The number of backups.
+         */
+        public int backups;
+        /**
+         * The number of edits written by all autosaves, which is larger than
+         * {@link #saves} by the number of edits that were coalesced.
+         */
+        public long edits;
+
+        private Stats copy() {
+            Stats copy = new Stats();
+            copy.checks = checks;
+            copy.skipped = skipped;
+            copy.postponed = postponed;
+            copy.saves = saves;
+            copy.backups = backups;
+            copy.edits = edits;
+            return copy;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "checks: " + checks + ", skipped: " + skipped
+                    + ", postponed: " + postponed + ", saves: " + saves
+                    + " (" + edits + " edits), backups: " + backups;
+        }
+    }
+
+    private final CaliView view;
+    private final Saver saver;
+    private final long idleTime, maxDelay, backupInterval;
+    private final ScheduledExecutorService timer;
+    private final Stats stats;
+    private final Runnable check, backup;
+    private volatile boolean checkScheduled;
+    private ScheduledFuture<?> scheduledCheck, scheduledBackup;
+    private boolean paused;
+    private long firstUnsavedEdit, lastBackup, savedVersion;
+
+    /**
+     * Creates a new scheduler, which is paused until {@link #restart()} is
+     * called.
+     * 
+     * @param view
+     *            the view showing the sketch to be saved
+     * @param saver
+     *            the operations to be scheduled
+     * @param idleTime
+     *            how long to wait after the last change (or the last touch)
+     *            before saving, in milliseconds
+     * @param maxDelay
+     *            the maximum time in milliseconds between the first unsaved
+     *            change and the save, unless users keep touching the screen
+     * @param backupInterval
+     *            the minimum time in milliseconds between two backups
+     */
+    public AutoSaveScheduler(CaliView view, Saver saver, long idleTime,
+            long maxDelay, long backupInterval) {
+        this.view = view;
+        this.saver = saver;
+        this.idleTime = idleTime;
+        this.maxDelay = maxDelay;
+        this.backupInterval = backupInterval;
+        timer = Executors.newSingleThreadScheduledExecutor();
+        stats = new Stats();
+        paused = true;
+        check = new Runnable() {
+            public void run() {
+                check();
+            }
+        };
+        backup = new Runnable() {
+            public void run() {
+                backup();
+            }
+        };
+    }
+
+    /**
+     * Tells the scheduler that the sketch was changed.
+     * 
+     * <p>
+     * Called for every change, so it returns right away if a check is
+     * already scheduled.
+     */
+    public void editHappened() {
+        if (checkScheduled)
+            return;
+        synchronized (this) {
+            if (checkScheduled || paused)
+                return;
+            firstUnsavedEdit = System.currentTimeMillis();
+            scheduleCheck(idleTime);
+        }
+    }
+
+    /**
+     * Stops all scheduled saves and backups, until {@link #restart()} is
+     * called.
+     */
+    public synchronized void pause() {
+        paused = true;
+        checkScheduled = false;
+        if (scheduledCheck != null)
+            scheduledCheck.cancel(false);
+        if (scheduledBackup != null)
+            scheduledBackup.cancel(false);
+        scheduledCheck = null;
+        scheduledBackup = null;
+    }
+
+    /**
+     * Stops all scheduled saves and backups for good, and lets the thread of
+     * this scheduler terminate. Called when the activity is destroyed, after
+     * which {@link #restart()} does nothing.
+     */
+    public synchronized void shutdown() {
+        pause();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Resumes saving after the sketch was (re)loaded or saved, considering the
+     * current state of the view as saved.
+     */
+    public synchronized void restart() {
+        if (timer.isShutdown())
+            return;
+        pause();
+        paused = false;
+        savedVersion = view.getEditVersion();
+        lastBackup = System.currentTimeMillis();
+        if (view.hasChanged())
+            editHappened();
+    }
+
+    /**
+     * Returns a copy of the counters kept by this scheduler.
+     * 
+     * @return the current statistics
+     */
+    public synchronized Stats getStats() {
+        return stats.copy();
+    }
+
+    private void scheduleCheck(long delay) {
+        checkScheduled = true;
+        scheduledCheck = timer.schedule(check, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        synchronized (this) {
+            checkScheduled = false;
+            scheduledCheck = null;
+            if (paused)
+                return;
+            stats.checks++;
+            if (!view.hasChanged()) {
+                stats.skipped++;
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            final boolean overdue = now - firstUnsavedEdit >= maxDelay;
+            if (view.isTouching()
+                    || (!overdue && !view.isInputIdle(idleTime))) {
+                // don't save in the middle of a stroke
+                stats.postponed++;
+                scheduleCheck(idleTime);
+                return;
+            }
+        }
+        final long version = view.getEditVersion();
+        saver.autoSave();
+        synchronized (this) {
+            stats.saves++;
+            stats.edits += version - savedVersion;
+            savedVersion = version;
+            if (paused)
+                return;
+            if (view.hasChanged()) {
+                // changes made while saving
+                firstUnsavedEdit = System.currentTimeMillis();
+                scheduleCheck(idleTime);
+            }
+            if (scheduledBackup == null) {
+                final long delay = lastBackup + backupInterval
+                        - System.currentTimeMillis();
+                scheduledBackup = timer.schedule(backup, Math.max(0, delay),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void backup() {
+        synchronized (this) {
+            scheduledBackup = null;
+            if (paused)
+                return;
+            lastBackup = System.currentTimeMillis();
+        }
+        saver.backup();
+        synchronized (this) {
+            stats.backups++;
+        }
+    }
+}
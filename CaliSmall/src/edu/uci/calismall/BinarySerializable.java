@@ -0,0 +1,67 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.IOException;
+
+/**
+ * An object that can be serialized using the binary format described in
+ * {@link SketchFormat}.
+ * 
+ * <p>
+ * As for {@link JSONSerializable}, deserialization can result in an object of
+ * a subtype, which is then returned by {@link #fromBinary(SketchInput)}.
+ * 
+ * @param <T>
+ *            the type of objects that are returned as an output of the
+ *            deserialization
+ */
+public interface BinarySerializable<T> {
+
+    /**
+     * Writes this object to the argument <tt>out</tt>.
+     * 
+     * @param out
+     *            the output to which this object must be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    void toBinary(SketchOutput out) throws IOException;
+
+    /**
+     * Populates all fields of this object with data read from the argument
+     * <tt>in</tt>.
+     * 
+     * @param in
+     *            the input whose next record is the object to be read
+     * @return the object that was populated with all data read from the input
+     * @throws IOException
+     *             if the data is truncated or malformed
+     */
+    T fromBinary(SketchInput in) throws IOException;
+}
@@ -0,0 +1,344 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+
+/**
+ * Keeps track of the memory taken by the bitmaps of a sketch, making room for
+ * new ones before the application runs out of memory.
+ * 
+ * <p>
+ * Every bitmap is owned by a {@link Holder} and has a priority: bitmaps that
+ * are {@link #VISIBLE} are more important than those of a {@link #SELECTED}
+ * scrap, which in turn are more important than those that are just
+ * {@link #CACHED} to make drawing faster. When a new bitmap would exceed the
+ * budget, holders of bitmaps with the same or a lower priority are asked to
+ * release them, starting from the least important and least recently used
+ * ones. Holders can either drop their bitmap and draw vectorially, or replace
+ * it with a cheaper one. If that's not enough, opaque bitmaps are created
+ * using {@link Config#RGB_565} instead of {@link Config#ARGB_8888}.
+ */
+public class BitmapBudget {
+
+    /**
+     * Something that owns a bitmap tracked by a {@link BitmapBudget}.
+     */
+    public interface Holder {
+
+        /**
+         * Releases the bitmap owned by this holder, or replaces it with one
+         * that takes less memory.
+         * 
+         * <p>
+         * Called with the budget locked, so implementations must not create
+         * bitmaps through the budget. Bitmaps that might be in use by another
+         * thread must only be dropped, not recycled.
+         * 
+         * @return the size in bytes of the bitmap still owned by this holder,
+         *         <tt>0</tt> if it was dropped
+         */
+        long evict();
+    }
+
+    /**
+     * Priority of bitmaps that are cached to make drawing faster, and that can
+     * be dropped at any time.
+     */
+    public static final int CACHED = 0;
+    /**
+     * Priority of bitmaps used while a scrap is selected or being edited.
+     */
+    public static final int SELECTED = 1;
+    /**
+     * Priority of bitmaps that are needed to draw the current frame.
+     */
+    public static final int VISIBLE = 2;
+    /**
+     * The default fraction of the maximum heap size that can be taken by
+     * bitmaps.
+     */
+    public static final int DEFAULT_HEAP_FRACTION = 3;
+
+    private static class Entry {
+        private long bytes;
+        private int priority;
+    }
+
+    private final Map<Holder, Entry> entries;
+    private long budget, used;
+
+    /**
+     * Creates a new budget.
+     * 
+     * @param budget
+     *            the maximum number of bytes that bitmaps should take
+     */
+    public BitmapBudget(long budget) {
+        this.budget = budget;
+        // iterated from the least recently used
+        entries = new LinkedHashMap<Holder, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Creates a budget taking the default fraction of the memory available
+     * to the application.
+     */
+    public BitmapBudget() {
+        this(Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION);
+    }
+
+    /**
+     * Changes the maximum number of bytes that bitmaps should take. Bitmaps
+     * are released only when new ones are created.
+     * 
+     * @param budget
+     *            the new budget in bytes
+     */
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the number of bytes taken by all tracked bitmaps.
+     * 
+     * @return the memory in use in bytes
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Creates a new bitmap owned by the argument holder, releasing bitmaps of
+     * other holders if needed.
+     * 
+     * <p>
+     * Any bitmap previously owned by <tt>holder</tt> stops being tracked.
+     * 
+     * @param holder
+     *            the owner of the new bitmap
+     * @param priority
+     *            how important the new bitmap is, one of {@link #CACHED},
+     *            {@link #SELECTED} or {@link #VISIBLE}
+     * @param width
+     *            the width of the bitmap
+     * @param height
+     *            the height of the bitmap
+     * @param config
+     *            the preferred configuration of the bitmap
+     * @param opaque
+     *            whether every pixel of the bitmap is going to be opaque, in
+     *            which case {@link Config#RGB_565} is used if there's not
+     *            enough memory for the preferred configuration
+     * @return the new bitmap
+     * @throws OutOfMemoryError
+     *             if the bitmap could not be allocated even after releasing
+     *             all other bitmaps of the same or lower priority
+     */
+    public synchronized Bitmap create(Holder holder, int priority, int width,
+            int height, Config config, boolean opaque) throws OutOfMemoryError {
+        release(holder);
+        long bytes = sizeOf(width, height, config);
+        if (!makeRoom(bytes, priority) && opaque
+                && config == Config.ARGB_8888) {
+            Log.w(CaliSmall.TAG, "bitmap budget exceeded, downgrading "
+                    + width + "x" + height + " bitmap");
+            config = Config.RGB_565;
+            bytes = sizeOf(width, height, config);
+            makeRoom(bytes, priority);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        } catch (OutOfMemoryError e) {
+            // the budget is too optimistic, free everything we can
+            trim(priority);
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        track(holder, bitmap, priority);
+        return bitmap;
+    }
+
+    /**
+     * Makes room for a bitmap that is about to be created elsewhere, like one
+     * decoded from a file, releasing bitmaps of other holders if needed.
+     * 
+     * <p>
+     * Bitmaps decoded by Android can't be created through
+     * {@link #create(Holder, int, int, int, Config, boolean)}, so this method
+     * should be called right before decoding them, and the decoded bitmap
+     * passed to {@link #track(Holder, Bitmap, int)}.
+     * 
+     * @param holder
+     *            the future owner of the bitmap
+     * @param bytes
+     *            the number of bytes that decoding is going to take
+     * @param priority
+     *            how important the new bitmap is, one of {@link #CACHED},
+     *            {@link #SELECTED} or {@link #VISIBLE}
+     * @return <code>true</code> if the budget has room for the new bitmap
+     */
+    public synchronized boolean reserve(Holder holder, long bytes,
+            int priority) {
+        // the bitmap that the holder owns now is still around while the new
+        // one is decoded, so it's not taken into account
+        return makeRoom(bytes, priority);
+    }
+
+    /**
+     * Starts tracking a bitmap that was created elsewhere, like one decoded
+     * from a file.
+     * 
+     * <p>
+     * Call {@link #reserve(Holder, long, int)} before creating the bitmap, so
+     * that room is made for it before the application runs out of memory.
+     * 
+     * @param holder
+     *            the owner of the bitmap
+     * @param bitmap
+     *            the bitmap, if <code>null</code> the holder stops being
+     *            tracked
+     * @param priority
+     *            how important the bitmap is, one of {@link #CACHED},
+     *            {@link #SELECTED} or {@link #VISIBLE}
+     */
+    public synchronized void track(Holder holder, Bitmap bitmap, int priority) {
+        release(holder);
+        if (bitmap == null)
+            return;
+        Entry entry = new Entry();
+        entry.bytes = sizeOf(bitmap);
+        entry.priority = priority;
+        entries.put(holder, entry);
+        used += entry.bytes;
+    }
+
+    /**
+     * Changes the priority of the bitmap owned by the argument holder, also
+     * marking it as the most recently used.
+     * 
+     * @param holder
+     *            the owner of a tracked bitmap
+     * @param priority
+     *            the new priority
+     */
+    public synchronized void setPriority(Holder holder, int priority) {
+        Entry entry = entries.get(holder);
+        if (entry != null)
+            entry.priority = priority;
+    }
+
+    /**
+     * Stops tracking the bitmap owned by the argument holder, which has been
+     * dropped.
+     * 
+     * @param holder
+     *            the owner of the bitmap
+     */
+    public synchronized void release(Holder holder) {
+        Entry entry = entries.remove(holder);
+        if (entry != null)
+            used -= entry.bytes;
+    }
+
+    /**
+     * Asks holders of all bitmaps with the argument priority or a lower one
+     * to release them, to recover from an {@link OutOfMemoryError} raised by
+     * a bitmap that was not created through this budget.
+     * 
+     * @param priority
+     *            the highest priority of bitmaps to be released
+     */
+    public synchronized void trim(int priority) {
+        makeRoom(budget, priority);
+    }
+
+    /**
+     * Asks holders to release their bitmaps until <tt>bytes</tt> more can be
+     * allocated, returning whether enough memory was freed.
+     */
+    private boolean makeRoom(long bytes, int priority) {
+        for (int evictable = CACHED; evictable <= priority
+                && used + bytes > budget; evictable++) {
+            List<Holder> holders = new ArrayList<Holder>();
+            for (Map.Entry<Holder, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().priority == evictable)
+                    holders.add(entry.getKey());
+            }
+            for (int i = 0; i < holders.size() && used + bytes > budget; i++) {
+                final Holder holder = holders.get(i);
+                final Entry entry = entries.get(holder);
+                final long left = holder.evict();
+                used -= entry.bytes - left;
+                entry.bytes = left;
+                if (left == 0)
+                    entries.remove(holder);
+            }
+        }
+        return used + bytes <= budget;
+    }
+
+    /**
+     * Returns the number of bytes taken by the pixels of the argument bitmap.
+     * 
+     * @param bitmap
+     *            a bitmap, can be <code>null</code>
+     * @return the size of the bitmap in bytes, <tt>0</tt> if
+     *         <code>null</code>
+     */
+    public static long sizeOf(Bitmap bitmap) {
+        if (bitmap == null)
+            return 0;
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Returns the number of bytes taken by the pixels of a bitmap with the
+     * argument size and configuration.
+     * 
+     * @param width
+     *            the width of the bitmap
+     * @param height
+     *            the height of the bitmap
+     * @param config
+     *            the configuration of the bitmap
+     * @return the size of the bitmap in bytes
+     */
+    public static long sizeOf(int width, int height, Config config) {
+        final int bytesPerPixel = config == Config.ARGB_8888 ? 4
+                : (config == Config.ALPHA_8 ? 1 : 2);
+        return (long) width * height * bytesPerPixel;
+    }
+}
@@ -27,6 +27,9 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.res.Resources;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -231,6 +234,7 @@ public class BubbleMenu extends GenericTouchHandler {
     private float bSize, padding, minSize, scaleFactor, maxXScale, maxYScale,
             compensationForRotateButtonPos;
     private Scrap highlighted;
+    private ParentingJob parentingJob;
     private boolean topLeftPinned, visible;
 
     /**
@@ -497,28 +501,146 @@ public class BubbleMenu extends GenericTouchHandler {
     }
 
     private void fixParenting(TempScrap tempScrap) {
-        for (Stroke stroke : tempScrap.getStrokes()) {
-            CaliSmallElement newParent = parentView.getSelectedScrap(stroke);
-            CaliSmallElement previousParent = stroke.getPreviousParent();
-            if (newParent != previousParent) {
-                if (previousParent != null)
-                    ((Scrap) previousParent).remove(stroke);
-                if (newParent != null)
-                    ((Scrap) newParent).add(stroke);
-                stroke.setPreviousParent(null);
+        // a job for a previous edit is superseded by this one
+        if (parentingJob != null)
+            parentingJob.cancel();
+        parentingJob = new ParentingJob(tempScrap);
+        parentView.getSceneWorker().submit(parentingJob);
+    }
+
+    /**
+     * Applies the new parents of the elements in the temp scrap that was last
+     * moved, if they're still being computed in the background. Must be called
+     * by the drawing thread before the temp scrap is changed again.
+     */
+    void finishParenting() {
+        if (parentingJob != null) {
+            parentView.getSceneWorker().finish(parentingJob);
+            parentingJob = null;
+        }
+    }
+
+    /**
+     * Finds the new parent of all elements in a temp scrap that has been
+     * moved, which means testing every one of them against every scrap.
+     * 
+     * <p>
+     * The shapes of the moved elements and of the scraps that could contain
+     * them are copied when the job is created, so the pool thread never reads
+     * elements that the drawing thread can change.
+     */
+    private class ParentingJob extends SceneWorker.Job {
+
+        private final TempScrap tempScrap;
+        private final List<Stroke> strokes;
+        private final List<Scrap> scraps;
+        private final List<ElementShape> strokeShapes, scrapShapes;
+        private final List<ElementShape> containers;
+        private final List<Scrap> strokeParents, scrapParents;
+
+        private ParentingJob(TempScrap tempScrap) {
+            super(SceneWorker.PRIORITY_PARENTING);
+            this.tempScrap = tempScrap;
+            strokes = new ArrayList<Stroke>(tempScrap.getStrokes());
+            scraps = new ArrayList<Scrap>(tempScrap.getScraps());
+            strokeShapes = new ArrayList<ElementShape>(strokes.size());
+            for (Stroke stroke : strokes) {
+                strokeShapes.add(new ElementShape(stroke));
+            }
+            scrapShapes = new ArrayList<ElementShape>(scraps.size());
+            for (Scrap scrap : scraps) {
+                scrapShapes.add(new ElementShape(scrap));
+            }
+            // moved elements are within the temp scrap, so are their parents
+            containers = new ArrayList<ElementShape>();
+            List<Scrap> allScraps = parentView.getScraps();
+            for (int i = 0; i < allScraps.size(); i++) {
+                Scrap scrap = allScraps.get(i);
+                if (!scrap.hasToBeDeleted() && scrap.intersectsX(tempScrap)
+                        && scrap.intersectsY(tempScrap))
+                    containers.add(new ElementShape(scrap));
+            }
+            strokeParents = new ArrayList<Scrap>(strokes.size());
+            scrapParents = new ArrayList<Scrap>(scraps.size());
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see edu.uci.calismall.SceneWorker.Job#compute()
+         */
+        @Override
+        protected void compute() {
+            strokeParents.clear();
+            scrapParents.clear();
+            final int total = strokes.size() + scraps.size();
+            for (ElementShape stroke : strokeShapes) {
+                if (isCancelled())
+                    return;
+                strokeParents.add(getSmallestContainer(stroke));
+                setProgress(strokeParents.size(), total);
+            }
+            for (ElementShape scrap : scrapShapes) {
+                if (isCancelled())
+                    return;
+                scrapParents.add(getSmallestContainer(scrap));
+                setProgress(strokes.size() + scrapParents.size(), total);
+            }
+        }
+
+        private Scrap getSmallestContainer(ElementShape shape) {
+            ElementShape smallest = null;
+            for (ElementShape container : containers) {
+                if (container.element == shape.element
+                        || !container.intersects(shape))
+                    continue;
+                if ((smallest == null || container.compareTo(smallest) < 0)
+                        && container.contains(shape))
+                    smallest = container;
             }
+            return smallest == null ? null : (Scrap) smallest.element;
         }
-        for (Scrap scrap : tempScrap.getScraps()) {
-            CaliSmallElement newParent = parentView.getSelectedScrap(scrap);
-            CaliSmallElement previousParent = scrap.getPreviousParent();
-            if (newParent != scrap.getParent()) {
-                if (previousParent != null && previousParent != tempScrap) {
-                    Scrap previous = (Scrap) previousParent;
-                    previous.remove(scrap);
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see edu.uci.calismall.SceneWorker.Job#publish()
+         */
+        @Override
+        protected void publish() {
+            if (parentingJob == this)
+                parentingJob = null;
+            for (int i = 0; i < strokes.size(); i++) {
+                Stroke stroke = strokes.get(i);
+                Scrap newParent = strokeParents.get(i);
+                if (stroke.hasToBeDeleted()
+                        || (newParent != null && newParent.hasToBeDeleted()))
+                    continue;
+                CaliSmallElement previousParent = stroke.getPreviousParent();
+                if (newParent != previousParent) {
+                    if (previousParent != null)
+                        ((Scrap) previousParent).remove(stroke);
+                    if (newParent != null)
+                        newParent.add(stroke);
+                    stroke.setPreviousParent(null);
+                }
+            }
+            for (int i = 0; i < scraps.size(); i++) {
+                Scrap scrap = scraps.get(i);
+                Scrap newParent = scrapParents.get(i);
+                if (scrap.hasToBeDeleted()
+                        || (newParent != null && newParent.hasToBeDeleted()))
+                    continue;
+                CaliSmallElement previousParent = scrap.getPreviousParent();
+                if (newParent != scrap.getParent()) {
+                    if (previousParent != null && previousParent != tempScrap) {
+                        Scrap previous = (Scrap) previousParent;
+                        previous.remove(scrap);
+                    }
+                    if (newParent != null)
+                        newParent.add(scrap);
+                    scrap.setPreviousParent(null);
                 }
-                if (newParent != null)
-                    ((Scrap) newParent).add(scrap);
-                scrap.setPreviousParent(null);
             }
         }
     }
@@ -591,11 +713,14 @@ public class BubbleMenu extends GenericTouchHandler {
     public boolean onDown(PointF touchPoint) {
         Scrap previousSelection = parentView.getSelection();
         parentView.setPreviousSelection(previousSelection);
-        if (buttonTouched(touchPoint, previousSelection))
+        if (buttonTouched(touchPoint, previousSelection)) {
+            // buttons act on the whole selection, which must be up to date
+            parentView.finishPendingEdits();
             return onTouch(MotionEvent.ACTION_DOWN, touchPoint,
                     parentView.getSelection());
-        else
+        } else {
             actionCompleted = true;
+        }
         return false;
     }
 
@@ -27,28 +27,25 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.TimerTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -72,6 +69,8 @@ import android.os.Environment;
 import android.os.Handler;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 import android.util.Log;
 import android.util.SparseIntArray;
 import android.view.KeyEvent;
@@ -108,9 +107,15 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         private final CaliSmall parent;
         private ProgressDialog dialog;
         private InputStream toBeLoaded;
+        private final File file;
 
         private LoadProgressBar(CaliSmall parent) {
+            this(parent, null);
+        }
+
+        private LoadProgressBar(CaliSmall parent, File file) {
             this.parent = parent;
+            this.file = file;
         }
 
         /*
@@ -120,8 +125,12 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
          */
         @Override
         protected Void doInBackground(InputStream... params) {
-            toBeLoaded = params[0];
-            load(toBeLoaded);
+            if (file != null) {
+                load(file);
+            } else {
+                toBeLoaded = params[0];
+                load(toBeLoaded);
+            }
             restartAutoSaving();
             return null;
         }
@@ -161,17 +170,11 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         public int color = Color.BLACK, thickness = 2;
     }
 
-    private final class SaveProgressBar extends AsyncTask<String, Void, Void> {
+    private final class SaveTask extends AsyncTask<String, Void, Void> {
 
-        private final CaliSmall parent;
-        private ProgressDialog dialog;
         private String toBeSaved;
         private Runnable callback;
 
-        private SaveProgressBar(CaliSmall parent) {
-            this.parent = parent;
-        }
-
         /*
          * (non-Javadoc)
          * 
@@ -182,11 +185,9 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
             toBeSaved = params[0];
             try {
                 saveLock.lock();
-                save(toBeSaved, parent.toJSON().toString());
+                save(toBeSaved);
                 fileHasBeenSaved = true;
                 fileSaved.signalAll();
-            } catch (JSONException e) {
-                e.printStackTrace();
             } finally {
                 saveLock.unlock();
             }
@@ -194,7 +195,7 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
             return null;
         }
 
-        private SaveProgressBar setCallback(Runnable callback) {
+        private SaveTask setCallback(Runnable callback) {
             this.callback = callback;
             return this;
         }
@@ -210,10 +211,6 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
                 saveDialog.hide();
                 saveDialog.dismiss();
             }
-            Resources res = getResources();
-            dialog = ProgressDialog.show(parent,
-                    res.getString(R.string.save_dialog_progress),
-                    res.getString(R.string.save_dialog_progress_message), true);
         }
 
         /*
@@ -223,7 +220,6 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
          */
         @Override
         protected void onPostExecute(Void result) {
-            dialog.dismiss();
             Toast.makeText(
                     getApplicationContext(),
                     String.format(
@@ -235,46 +231,35 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
 
     }
 
-    private final class AutoSaveTask extends TimerTask {
+    private final class AutoSaver implements AutoSaveScheduler.Saver {
 
-        private final boolean saveBackupFiles;
-        private final CaliSmall parent;
-        private long lastRun;
+        private long lastBackup = System.currentTimeMillis();
 
-        private AutoSaveTask(CaliSmall parent, boolean saveBackupFiles) {
-            this.saveBackupFiles = saveBackupFiles;
-            this.parent = parent;
-            lastRun = System.currentTimeMillis();
+        /*
+         * (non-Javadoc)
+         * 
+         * @see edu.uci.calismall.AutoSaveScheduler.Saver#autoSave()
+         */
+        @Override
+        public void autoSave() {
+            CaliSmall.this.autoSave(chosenFile);
         }
 
         /*
          * (non-Javadoc)
          * 
-         * @see java.util.TimerTask#run()
+         * @see edu.uci.calismall.AutoSaveScheduler.Saver#backup()
          */
         @Override
-        public void run() {
-            if (saveBackupFiles) {
-                File file = new File(parent.getApplicationContext()
-                        .getExternalFilesDir(null), chosenFile + FILE_EXTENSION);
-                if (file.lastModified() > lastRun) {
-                    // time to save a new backup!
-                    try {
-                        save("~" + chosenFile, parent.toJSON().toString());
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                }
-                lastRun = System.currentTimeMillis();
-            } else {
-                if (view.hasChanged()) {
-                    try {
-                        save(chosenFile, parent.toJSON().toString());
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                }
+        public void backup() {
+            File file = new File(homeFolder, chosenFile + FILE_EXTENSION);
+            File journalFile = SketchJournal.journalFor(file);
+            if (file.lastModified() > lastBackup
+                    || journalFile.lastModified() > lastBackup) {
+                // time to save a new backup!
+                CaliSmall.this.backup(chosenFile);
             }
+            lastBackup = System.currentTimeMillis();
         }
     }
 
@@ -282,10 +267,6 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
      * Tag used for the whole application in LogCat files.
      */
     public static final String TAG = "CaliSmall";
-    /**
-     * The number of threads used to execute timer tasks with.
-     */
-    public static final int THREADS_FOR_TIMERS = 2;
     /**
      * The result code to be passed back to this activity when an image was
      * loaded from the gallery app.
@@ -315,15 +296,20 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         R.id.line_2px, R.id.line_3px, R.id.line_5px, R.id.line_7px,
         R.id.line_9px };
     private static final String FILE_EXTENSION = ".csf";
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final String JSON_EXTENSION = ".json";
+    private static final int IO_BUFFER_SIZE = 32 * 1024;
 //    private static final String THUMBNAIL_EXTENSION = ".thumb";
-    private static final String LIST_FILE_NAME = ".file_list";
     private static final String DISABLE_GALLERY = ".nomedia";
     private static final SimpleDateFormat DATE_FORMATTER = new SimpleDateFormat(
             "yyyy-MM-dd HH:mm:ss", Locale.US);
-    private static final long AUTO_SAVE_TIME = 20 * 1000,
-            AUTO_BACKUP_TIME = 3 * 60 * 1000;
+    private static final long AUTO_SAVE_IDLE_TIME = 2 * 1000,
+            AUTO_SAVE_TIME = 20 * 1000, AUTO_BACKUP_TIME = 3 * 60 * 1000;
+    // backups are seldom read, so they're compressed; sketches are not, so
+    // that they can be mapped into memory and loaded one tile at a time
+    private static final boolean COMPRESS_SKETCHES = false,
+            COMPRESS_BACKUPS = true;
     private static final long MIN_FILE_SIZE_FOR_PROGRESSBAR = 100 * 1024;
-    private static final int MIN_POINTS_PER_PROGRESSBAR = 1000;
     private static final String POS_FORMAT = "(%d/%d) %s";
     private final List<ImageButton> colorSwatches = new ArrayList<ImageButton>(),
             lineThicknesses = new ArrayList<ImageButton>();
@@ -344,24 +330,15 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
      ************************************************************************/
 
     /**
-     * A lock that is shared between the drawing thread and the Event Dispatch
-     * Thread used when opening files.
+     * A lock that is held while sketch files are read or written. It's never
+     * acquired by the drawing thread, which keeps drawing the current sketch
+     * while a new one is being loaded.
      */
-    Lock openLock = new ReentrantLock();
+    Lock fileLock = new ReentrantLock();
     /**
      * A lock that is used to synchronize the saving and opening actions.
      */
     Lock saveLock = new ReentrantLock();
-    /**
-     * Condition that is signalled by the drawing thread just before setting
-     * itself to sleep.
-     */
-    Condition drawingThreadWaiting = openLock.newCondition();
-    /**
-     * Condition that is signalled by the file opening thread just after having
-     * loaded a sketch file.
-     */
-    Condition fileOpened = openLock.newCondition();
 
     /**
      * Condition that is signalled by the thread that is saving a file when it's
@@ -379,15 +356,17 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
     private List<String> fileList = new ArrayList<String>();
     private String chosenFile, autoSaveName, tmpSnapshotName;
     private File homeFolder;
+    private SketchJournal journal;
+    private SketchCatalog catalog;
+    private ImageStore imageStore;
     private int currentFileListIndex = 0;
     private EditText input;
     private Dialog styleDialog, loadDialog, outOfMemoryDialog;
     private AlertDialog saveDialog, deleteDialog;
-    private TimerTask autoSaver, autoBackupSaver;
-    private ScheduledExecutorService autoSaverTimer;
+    private AutoSaveScheduler autoSaver;
     private CheckBox resizeWithZoom;
     private Uri imageURI;
-    private boolean userPickedANewName, eraserMode;
+    private boolean userPickedANewName, eraserMode, partialEraser;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -397,13 +376,14 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         if (Environment.MEDIA_MOUNTED.equals(Environment
                 .getExternalStorageState())) {
             homeFolder = getApplicationContext().getExternalFilesDir(null);
+            imageStore = new ImageStore(homeFolder);
         } else {
             // FIXME use internal memory?
         }
         setContentView(view);
         autoSaveName = getResources().getString(R.string.unnamed_files);
-        autoSaver = new AutoSaveTask(this, false);
-        autoBackupSaver = new AutoSaveTask(this, true);
+        autoSaver = new AutoSaveScheduler(view, new AutoSaver(),
+                AUTO_SAVE_IDLE_TIME, AUTO_SAVE_TIME, AUTO_BACKUP_TIME);
         final EditText input = new EditText(this);
         this.input = input;
         input.setSingleLine();
@@ -416,7 +396,7 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
                     String name = input.getText().toString();
                     userPickedANewName = !name.startsWith(autoSaveName)
                             && !name.startsWith("~" + autoSaveName);
-                    saveAndMaybeShowProgressBar(name);
+                    saveInBackground(name);
                     setTitle(String.format(POS_FORMAT,
                             currentFileListIndex + 1, fileList.size(),
                             chosenFile));
@@ -435,7 +415,7 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
 		                                        public void onClick(DialogInterface dialog, int whichButton) {
 		                                            String name = input.getText().toString();
 		                                            userPickedANewName = !name.equals(chosenFile);
-		                                            saveAndMaybeShowProgressBar(name);
+		                                            saveInBackground(name);
 		                                            setTitle(String.format(POS_FORMAT,
 		                                                    currentFileListIndex + 1, fileList.size(), chosenFile));
 		                                        }
@@ -461,13 +441,15 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
                     }
         }).create();
         fileList = initFileList();
+        if (imageStore != null)
+            imageStore.collectGarbage();
 		// @formatter:on
         final Intent intent = getIntent();
         if (intent != null) {
             final android.net.Uri data = intent.getData();
             if (data != null) {
                 if (chosenFile != null)
-                    saveAndMaybeShowProgressBar(chosenFile);
+                    saveInBackground(chosenFile);
                 new Handler().postDelayed(new Runnable() {
 
                     @Override
@@ -494,6 +476,19 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
             newSketch();
         }
     }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see android.app.Activity#onDestroy()
+     */
+    @Override
+    protected void onDestroy() {
+        // the scheduler's thread would keep this activity and its view alive
+        if (autoSaver != null)
+            autoSaver.shutdown();
+        super.onDestroy();
+    }
     
     private void initSwatches() {
         Resources rez = getResources();
@@ -523,8 +518,14 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
 
             @Override
             public void onDismiss(DialogInterface dialog) {
-                view.styleChanged(styleWrapper.color,
-                        resizeWithZoom.isChecked(), styleWrapper.thickness);
+                final int color = styleWrapper.color;
+                final boolean scaleWithZoom = resizeWithZoom.isChecked();
+                final float thickness = styleWrapper.thickness;
+                view.runOnDrawingThread(new Runnable() {
+                    public void run() {
+                        view.styleChanged(color, scaleWithZoom, thickness);
+                    }
+                });
             }
         });
         colorSwatches.clear();
@@ -600,59 +601,41 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
      * Puts the auto save in pause.
      */
     public void pauseAutoSaving() {
-        if (autoSaverTimer != null) {
-            autoSaver.cancel();
-            autoBackupSaver.cancel();
-            autoSaverTimer.shutdownNow();
-        }
-        autoSaverTimer = Executors.newScheduledThreadPool(THREADS_FOR_TIMERS);
+        if (autoSaver != null)
+            autoSaver.pause();
     }
 
     private void restartAutoSaving() {
-        pauseAutoSaving();
-        autoSaverTimer.scheduleAtFixedRate(autoSaver, AUTO_SAVE_TIME,
-                AUTO_SAVE_TIME, TimeUnit.MILLISECONDS);
-        autoSaverTimer.scheduleAtFixedRate(autoBackupSaver, AUTO_BACKUP_TIME,
-                AUTO_BACKUP_TIME, TimeUnit.MILLISECONDS);
+        autoSaver.restart();
+        Utils.debug("autosave " + autoSaver.getStats());
+    }
+
+    /**
+     * Called by the view every time the sketch is changed, to schedule an
+     * autosave.
+     */
+    void editHappened() {
+        if (autoSaver != null)
+            autoSaver.editHappened();
     }
 
     private List<String> initFileList() {
-        List<String> files = new ArrayList<String>();
-        BufferedReader reader = null;
         if (Environment.MEDIA_MOUNTED.equals(Environment
                 .getExternalStorageState())) {
-            File listFileProject = new File(homeFolder, LIST_FILE_NAME);
-            try {
-                if (!listFileProject.exists())
-                    listFileProject.createNewFile();
-                reader = new BufferedReader(new FileReader(
-                        listFileProject));
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    String fileName = line.endsWith(FILE_EXTENSION) ? line
-                            .substring(0, line.lastIndexOf(FILE_EXTENSION))
-                            : line;
-                    files.add(fileName);
-                }
-            } catch (FileNotFoundException e) {
+            if (catalog == null) {
+                File noMedia = new File(homeFolder, DISABLE_GALLERY);
                 try {
-                    listFileProject.createNewFile();
-                } catch (IOException e1) {
-                    e1.printStackTrace();
+                    if (!noMedia.exists())
+                        noMedia.createNewFile();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-            	if (reader != null)
-					try {
-						reader.close();
-					} catch (IOException e) {
-						// can't do much more than that, really...
-						e.printStackTrace();
-					}
+                catalog = new SketchCatalog(homeFolder);
+                catalog.load(FILE_EXTENSION);
             }
+            return catalog.getNames();
         }
-        return files;
+        return new ArrayList<String>();
     }
 
     /**
@@ -664,32 +647,128 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         return view;
     }
 
-    private void save(final String input, final String jsonData) {
+    private void save(final String input) {
         try {
-            openLock.lock();
+            fileLock.lock();
             File newFile = new File(homeFolder, input + FILE_EXTENSION);
             chosenFile = input;
             updateFileList();
-            FileWriter writer = new FileWriter(newFile);
-            writer.write(jsonData);
-            writer.flush();
-            writer.close();
+            if (journal == null || !journal.isFor(newFile))
+                journal = new SketchJournal(newFile);
+            // drawing goes on while the snapshot is written
+            SceneSnapshot scene = view.captureScene();
+            if (scene == null) {
+                // still unsaved, so the autosave scheduler tries again later
+                Log.w(TAG, "drawing thread busy, not saving " + newFile);
+                return;
+            }
+            journal.capture(scene);
+            // write to a temp file first, so that a failure halfway through
+            // doesn't leave a truncated sketch behind
+            File tmpFile = new File(homeFolder, input + FILE_EXTENSION
+                    + TMP_EXTENSION);
+            SketchOutput out = SketchOutput.create(tmpFile, COMPRESS_SKETCHES);
+            try {
+                scene.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(newFile)) {
+                Log.e(TAG, "could not replace " + newFile);
+                return;
+            }
+            journal.snapshotWritten();
+            view.markSaved(scene.getVersion());
+            updateImageReferences(input, scene);
+            if (catalog != null)
+                catalog.update(input, newFile, scene.size());
             File thumbnail = new File(homeFolder, input + THUMBNAIL_EXTENSION);
-            view.createThumbnail(thumbnail);
-            view.resetChangeCounter();
+            view.requestThumbnail(thumbnail, scene);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void updateImageReferences(String input, SceneSnapshot scene) {
+        if (imageStore != null)
+            imageStore.setReferences(input, scene.getImages(),
+                    scene.hasAllImages());
+    }
+
+    /**
+     * Drops the references to images of a sketch that was deleted, deleting
+     * images that are not used by other sketches any more.
+     */
+    private void forgetImages(String sketch) {
+        if (imageStore == null)
+            return;
+        imageStore.removeReferences(sketch);
+        imageStore.removeReferences("~" + sketch);
+        imageStore.collectGarbage();
+    }
+
+    private void autoSave(final String input) {
+        File file = new File(homeFolder, input + FILE_EXTENSION);
+        boolean appended = false;
+        try {
+            fileLock.lock();
+            if (journal != null && journal.isFor(file) && journal.canAppend()) {
+                SceneSnapshot scene = view.captureScene();
+                if (scene == null) {
+                    // still unsaved, so the autosave scheduler tries again
+                    Log.w(TAG, "drawing thread busy, not saving " + file);
+                    return;
+                }
+                journal.append(scene);
+                view.markSaved(scene.getVersion());
+                updateImageReferences(input, scene);
+                // once the journal gets too big, save the whole sketch again
+                appended = !journal.needsCompaction();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "could not append to journal, saving " + file, e);
+        } finally {
+            fileLock.unlock();
+        }
+        if (!appended)
+            save(input);
+    }
+
+    private void backup(final String input) {
+        File file = new File(homeFolder, input + FILE_EXTENSION);
+        if (!file.exists())
+            return;
+        try {
+            fileLock.lock();
+            SketchJournal.backup(file, new File(homeFolder, "~" + input
+                    + FILE_EXTENSION), COMPRESS_BACKUPS);
+            if (imageStore != null)
+                imageStore.copyReferences(input, "~" + input);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            openLock.unlock();
+            fileLock.unlock();
         }
     }
 
-    private SaveProgressBar getSaveProgressBar(final String input) {
+    private SaveTask getSaveTask(final String input) {
         if (Environment.MEDIA_MOUNTED.equals(Environment
                 .getExternalStorageState())) {
             if (userPickedANewName) {
                 new File(homeFolder, chosenFile + FILE_EXTENSION).delete();
                 new File(homeFolder, "~" + chosenFile + FILE_EXTENSION).delete();
+                SketchJournal.delete(new File(homeFolder, chosenFile
+                        + FILE_EXTENSION));
+                SketchJournal.delete(new File(homeFolder, "~" + chosenFile
+                        + FILE_EXTENSION));
+                if (imageStore != null) {
+                    // the sketch keeps its images: no garbage is collected
+                    // here, only when the app starts
+                    imageStore.renameReferences(chosenFile, input);
+                    imageStore.renameReferences("~" + chosenFile, "~" + input);
+                }
                 fileList.remove(currentFileListIndex);
                 chosenFile = input;
                 fileList.add(currentFileListIndex, input);
@@ -719,86 +798,74 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
                                 }
                             }).create();
         }
-        if (view.areThereMoreThanThisPoints(MIN_POINTS_PER_PROGRESSBAR)) {
-            return new SaveProgressBar(this);
-        }
-        return null;
+        return new SaveTask();
     }
 
-    private void saveAndMaybeShowProgressBar(final String input) {
+    private void saveInBackground(final String input) {
         fileHasBeenSaved = false;
-        SaveProgressBar progressBar = getSaveProgressBar(input);
-        if (progressBar != null)
-            progressBar.execute(chosenFile);
-        else {
-            try {
-                saveLock.lock();
-                save(chosenFile, toJSON().toString());
-                fileHasBeenSaved = true;
-                fileSaved.signalAll();
-            } catch (JSONException e) {
-                e.printStackTrace();
-            } finally {
-                saveLock.unlock();
-            }
-        }
+        getSaveTask(input).execute(chosenFile);
     }
 
     private void updateFileList() {
-        if (Environment.MEDIA_MOUNTED.equals(Environment
+        if (catalog != null && Environment.MEDIA_MOUNTED.equals(Environment
                 .getExternalStorageState())) {
-            File listFileProject = new File(homeFolder, LIST_FILE_NAME);
-            File noMedia = new File(homeFolder, DISABLE_GALLERY);
-            try {
-                if (!noMedia.exists()) {
-                    noMedia.createNewFile();
-                }
-                PrintStream ps = new PrintStream(listFileProject);
-                for (String file : fileList) {
-                    ps.println(file);
-                }
-                ps.flush();
-                ps.close();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // only the differences are written
+            catalog.setNames(fileList);
         }
     }
 
     private void load(File toBeLoaded) {
         try {
-            load(new FileInputStream(toBeLoaded));
+            // apply changes that were autosaved to the journal before the
+            // application was last closed (or crashed)
+            SketchJournal.recover(toBeLoaded);
+        } catch (IOException e) {
+            Log.e(TAG, "could not recover journal for " + toBeLoaded, e);
+        }
+        try {
+            // uncompressed binary sketches are decoded straight from the
+            // mapped file
+            SketchInput sketch = SketchInput.open(toBeLoaded);
+            if (sketch.isBinary()) {
+                journal = new SketchJournal(toBeLoaded);
+                syncAndLoad(sketch, null);
+            } else {
+                load(new FileInputStream(toBeLoaded));
+            }
         } catch (FileNotFoundException e) {
             fileList.remove(currentFileListIndex);
             updateFileList();
+        } catch (IOException e) {
+            Log.e(TAG, "error while loading sketch", e);
+            loadPrevious();
+        } catch (RuntimeException e) {
+            // records with out-of-range values or unknown types
+            Log.e(TAG, "malformed sketch", e);
+            loadPrevious();
         }
     }
 
     private void load(InputStream toBeLoaded) {
+        // JSON sketches are converted to binary on the first autosave
+        journal = null;
         try {
-            runOnUiThread(new Runnable() {
-                public void run() {
-                    invalidateOptionsMenu();
-                }
-            });
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    toBeLoaded));
-            String in, newLine = "";
-            StringBuilder builder = new StringBuilder();
-            while ((in = reader.readLine()) != null) {
-                builder.append(newLine);
-                builder.append(in);
-                newLine = "\n";
-            }
-            reader.close();
-            syncAndLoad(builder.toString());
+            syncAndLoad(new BufferedInputStream(toBeLoaded, IO_BUFFER_SIZE));
         } catch (IOException e) {
-            e.printStackTrace();
-        } catch (JSONException e) {
-            Log.e(TAG, "JSONException", e);
+            // malformed files are reported as an IOException, too
+            Log.e(TAG, "error while loading sketch", e);
+            loadPrevious();
+        } catch (RuntimeException e) {
+            // unexpected tokens (IllegalStateException), malformed numbers
+            // (NumberFormatException) and unknown style or enum names
+            // (IllegalArgumentException) all end up here
+            Log.e(TAG, "malformed sketch", e);
             loadPrevious();
+        } finally {
+            try {
+                toBeLoaded.close();
+            } catch (IOException e) {
+                // not much we can do about it...
+            }
         }
     }
 
@@ -818,16 +885,30 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         boolean knownOption = true;
         switch (item.getItemId()) {
         case R.id.fit_zoom:
-            view.fitZoom();
+            view.runOnDrawingThread(new Runnable() {
+                public void run() {
+                    view.fitZoom();
+                }
+            });
             break;
         case R.id.eraser:
-            view.toggleEraserMode();
+            toggleEraserMode();
             eraserMode = !eraserMode;
             invalidateOptionsMenu();
             break;
+        case R.id.partial_eraser:
+            partialEraser = !partialEraser;
+            final boolean splitStrokes = partialEraser;
+            view.runOnDrawingThread(new Runnable() {
+                public void run() {
+                    view.setEraserSplitsStrokes(splitStrokes);
+                }
+            });
+            invalidateOptionsMenu();
+            break;
         case R.id.line_style:
             if (eraserMode) {
-                view.toggleEraserMode();
+                toggleEraserMode();
                 eraserMode = !eraserMode;
                 invalidateOptionsMenu();
             }
@@ -860,6 +941,9 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         case R.id.share_snapshot:
             shareSnapshot();
             break;
+        case R.id.share_json:
+            shareJSON();
+            break;
         case R.id.delete:
             deleteDialog.setMessage(String.format(
                     getResources().getString(R.string.delete_dialog_message),
@@ -882,13 +966,14 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         MenuItem eraser = menu.findItem(R.id.eraser);
         eraser.setIcon(eraserMode ? R.drawable.ic_eraser_highlighted
                 : R.drawable.ic_eraser);
+        menu.findItem(R.id.partial_eraser).setChecked(partialEraser);
         return super.onPrepareOptionsMenu(menu);
     }
 
     private void newSketch() {
         userPickedANewName = false;
         if (chosenFile != null) {
-            saveAndMaybeShowProgressBar(chosenFile);
+            saveInBackground(chosenFile);
             try {
                 saveLock.lock();
                 while (!fileHasBeenSaved) {
@@ -902,11 +987,17 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
                 saveLock.unlock();
             }
         }
-        view.reset();
-        view.forceRedraw();
-        view.setDrawableCanvas(getDisplaySize());
+        // the new sketch is in place before the save below captures it
+        final RectF displaySize = getDisplaySize();
+        view.runOnDrawingThread(new Runnable() {
+            public void run() {
+                view.reset();
+                view.forceRedraw();
+                view.setDrawableCanvas(displaySize);
+            }
+        });
         chosenFile = generateAutoSaveName();
-        saveAndMaybeShowProgressBar(chosenFile);
+        saveInBackground(chosenFile);
         fileList.add(currentFileListIndex, chosenFile);
         invalidateOptionsMenu();
         input.setText("");
@@ -921,10 +1012,13 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         if (newFile.exists()) {
             if (!newFile.delete())
                 Utils.debug("couldn't delete file");
+            SketchJournal.delete(newFile);
             newFile = new File(homeFolder, "~" + fileName + FILE_EXTENSION);
             if (newFile.exists())
                 if (!newFile.delete())
                     Utils.debug("couldn't delete file");
+            SketchJournal.delete(newFile);
+            forgetImages(fileName);
             fileList.remove(currentFileListIndex);
             updateFileList();
         } else {
@@ -950,12 +1044,12 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
             saveDialog.show();
         } else {
             restartAutoSaving();
-            saveAndMaybeShowProgressBar(chosenFile);
+            saveInBackground(chosenFile);
         }
     }
 
     private void share() {
-        saveAndMaybeShowProgressBar(chosenFile);
+        saveInBackground(chosenFile);
         File newFile = new File(homeFolder, chosenFile + FILE_EXTENSION);
         Intent intent = new Intent(android.content.Intent.ACTION_SEND);
         intent.setType("application/octet-stream");
@@ -968,25 +1062,42 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
                 getResources().getString(R.string.share_message)));
     }
 
-    private void shareSnapshot() {
-        File tmpImage = new File(homeFolder, chosenFile + ".png");
-        tmpSnapshotName = chosenFile + ".png";
+    private void shareJSON() {
+        File json = new File(homeFolder, chosenFile + JSON_EXTENSION);
         try {
-            openLock.lock();
-            Painter painter = view.getPainter();
-            painter.stopForFileOpen(openLock, fileOpened, drawingThreadWaiting);
-            while (!painter.isWaiting())
-                try {
-                    drawingThreadWaiting.await(Painter.SCREEN_REFRESH_TIME,
-                            TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            view.createSnapshot(tmpImage, fileOpened);
+            fileLock.lock();
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                    new BufferedOutputStream(new FileOutputStream(json),
+                            IO_BUFFER_SIZE), "UTF-8"));
+            try {
+                toJSON(writer);
+                writer.flush();
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "could not export " + json, e);
+            return;
         } finally {
-            openLock.unlock();
+            fileLock.unlock();
         }
         Intent intent = new Intent(android.content.Intent.ACTION_SEND);
+        intent.setType("application/json");
+        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
+        intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(json));
+        intent.putExtra(Intent.EXTRA_SUBJECT, R.string.share_message_subject);
+        intent.putExtra(Intent.EXTRA_TEXT,
+                getResources().getString(R.string.share_message_text));
+        startActivity(Intent.createChooser(intent,
+                getResources().getString(R.string.share_message)));
+    }
+
+    private void shareSnapshot() {
+        File tmpImage = new File(homeFolder, chosenFile + ".png");
+        tmpSnapshotName = chosenFile + ".png";
+        // drawn by the drawing thread in between two frames
+        view.createSnapshot(tmpImage);
+        Intent intent = new Intent(android.content.Intent.ACTION_SEND);
         intent.setType("image/png");
         intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
         intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(tmpImage));
@@ -1012,18 +1123,13 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         case IMAGE_LOADED_FROM_CAMERA:
             if (resultCode == RESULT_OK)
             	if (resultCode == RESULT_OK)
-                    view.addScrap(new ImageScrap(view).setImage(ImageScrap
-                            .copyImage(homeFolder.getAbsolutePath(),
-                                    imageURI.getPath())), false);
+                    addImage(importImage(imageURI.getPath()));
             break;
         case IMAGE_LOADED_FROM_GALLERY:
             if (resultCode == RESULT_OK) {
                 String imagePath = getGalleryImagePath(data.getData());
                 if (imagePath != null)
-                    view.addScrap(
-                            new ImageScrap(view).setImage(ImageScrap.copyImage(
-                                    homeFolder.getAbsolutePath(), imagePath)),
-                            false);
+                    addImage(importImage(imagePath));
             }
             break;
         case CONTENT_SHARED:
@@ -1033,7 +1139,39 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
             break;
         }
     }
+
+    /**
+     * Adds a new scrap showing the argument image to the sketch. The scrap is
+     * created by the drawing thread, as its size depends on the sketch.
+     */
+    private void addImage(final String imagePath) {
+        view.runOnDrawingThread(new Runnable() {
+            public void run() {
+                view.addScrap(new ImageScrap(view).setImage(imagePath), false);
+            }
+        });
+    }
+
+    private void toggleEraserMode() {
+        view.runOnDrawingThread(new Runnable() {
+            public void run() {
+                view.toggleEraserMode();
+            }
+        });
+    }
     
+    /**
+     * Adds the argument image to the image store, returning the path to the
+     * stored copy. Pictures taken by the camera are saved to the home folder,
+     * so they're moved instead of being copied.
+     */
+    private String importImage(String imagePath) {
+        File src = new File(imagePath);
+        if (imageStore == null)
+            return src.getAbsolutePath();
+        return imageStore.add(src, homeFolder.equals(src.getParentFile()));
+    }
+
     /**
      * Returns a reference to the home directory for the app.
      * 
@@ -1119,12 +1257,7 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
                 final File toBeLoaded = new File(getApplicationContext()
                         .getExternalFilesDir(null), file + FILE_EXTENSION);
                 if (toBeLoaded.length() > MIN_FILE_SIZE_FOR_PROGRESSBAR) {
-                    try {
-                        new LoadProgressBar(parent)
-                                .execute(new FileInputStream(toBeLoaded));
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                    }
+                    new LoadProgressBar(parent, toBeLoaded).execute();
                 } else {
                     load(toBeLoaded);
                     String fileName = toBeLoaded.getName();
@@ -1140,14 +1273,8 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
             }
         };
         if (view.hasChanged()) {
-            SaveProgressBar saveProgressBar = getSaveProgressBar(chosenFile);
-            if (saveProgressBar != null) {
-                saveProgressBar.setCallback(callback);
-                saveProgressBar.execute(chosenFile);
-                return;
-            } else {
-                saveAndMaybeShowProgressBar(chosenFile);
-            }
+            getSaveTask(chosenFile).setCallback(callback).execute(chosenFile);
+            return;
         }
         callback.run();
     }
@@ -1206,6 +1333,17 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         return view.toJSON();
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.JSONSerializable#toJSON(android.util.JsonWriter)
+     */
+    @Override
+    public void toJSON(JsonWriter writer) throws IOException {
+        view.toJSON(writer);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -1218,23 +1356,57 @@ public class CaliSmall extends Activity implements JSONSerializable<CaliSmall> {
         return this;
     }
 
-    private void syncAndLoad(String jsonString) throws JSONException {
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.JSONSerializable#fromJSON(android.util.JsonReader)
+     */
+    @Override
+    public CaliSmall fromJSON(JsonReader reader) throws IOException {
+        view.fromJSON(reader);
+        view.resetChangeCounter();
+        return this;
+    }
+
+    private void syncAndLoad(BufferedInputStream in) throws IOException {
+        if (SketchFormat.isCompressed(in))
+            syncAndLoad(new BufferedInputStream(new GZIPInputStream(in,
+                    IO_BUFFER_SIZE), IO_BUFFER_SIZE));
+        else if (SketchFormat.isBinary(in))
+            // binary sketches are small, read them all before decoding
+            syncAndLoad(SketchInput.readFully(in), null);
+        else
+            // sketches saved by older versions, or exported as JSON
+            syncAndLoad(null, new JsonReader(new InputStreamReader(in,
+                    "UTF-8")));
+    }
+
+    private void syncAndLoad(SketchInput binary, JsonReader json)
+            throws IOException {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                invalidateOptionsMenu();
+            }
+        });
         try {
-            openLock.lock();
-            Painter painter = view.getPainter();
-            painter.stopForFileOpen(openLock, fileOpened, drawingThreadWaiting);
-            while (!painter.isWaiting()) {
-                drawingThreadWaiting.await(Painter.SCREEN_REFRESH_TIME,
-                        TimeUnit.MILLISECONDS);
+            fileLock.lock();
+            // the sketch is decoded while the current one is still drawn, and
+            // swapped in by the drawing thread in between two frames
+            if (binary != null) {
+                // the journal starts from what was loaded, not from what the
+                // view shows when we get here
+                SceneSnapshot loaded = view.loadBinary(binary);
+                view.resetChangeCounter();
+                if (journal != null) {
+                    journal.capture(loaded);
+                    journal.snapshotWritten();
+                }
+            } else {
+                fromJSON(json);
             }
-            view.close();
-            fromJSON(new JSONObject(jsonString));
-            view.fitZoom();
-            fileOpened.signalAll();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         } finally {
-            openLock.unlock();
+            fileLock.unlock();
         }
     }
 
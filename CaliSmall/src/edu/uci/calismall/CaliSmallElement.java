@@ -27,10 +27,11 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
-import java.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -97,10 +98,37 @@ public abstract class CaliSmallElement implements Comparable<CaliSmallElement> {
 
     }
 
+    /**
+     * A comparator to sort elements by their ID, that is by the order in which
+     * they were created.
+     * 
+     * @param <T>
+     *            the actual type of element to be sorted
+     */
+    public static class IDComparator<T extends CaliSmallElement> implements
+            Comparator<T> {
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
+         */
+        @Override
+        public int compare(T lhs, T rhs) {
+            return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+        }
+    }
+
     /**
      * The generator used to assign id's to elements.
      */
     protected static final AtomicLong ID_GENERATOR = new AtomicLong();
+    /**
+     * Set for threads that are decoding elements, see
+     * {@link #setDecoding(boolean)}.
+     */
+    private static final ThreadLocal<Boolean> DECODING =
+            new ThreadLocal<Boolean>();
 
     /**
      * The region representing the area of this element.
@@ -136,12 +164,6 @@ public abstract class CaliSmallElement implements Comparable<CaliSmallElement> {
      * before the last call to {@link #setArea(RectF)}.
      */
     protected PointF previousTopLeftPoint = topLeftPoint;
-    /**
-     * Whether this element has already been added to the list of elements
-     * within a {@link TempScrap} and should therefore be ignored when testing
-     * for elements within the newly created {@link TempScrap}.
-     */
-    protected boolean addedToSelection;
     /**
      * The view within which this element was created.
      */
@@ -165,6 +187,17 @@ public abstract class CaliSmallElement implements Comparable<CaliSmallElement> {
 
     private boolean committedToBg;
 
+    /**
+     * Incremented every time this element changes in a way that must be
+     * persisted, so that its cached record is encoded again.
+     */
+    private volatile int revision;
+    /**
+     * The binary record of this element as of {@link #recordRevision}.
+     */
+    private ByteBuffer record;
+    private int recordRevision;
+
     /**
      * Creates a new element.
      * 
@@ -274,35 +307,6 @@ public abstract class CaliSmallElement implements Comparable<CaliSmallElement> {
         return id == ((CaliSmallElement) o).id;
     }
 
-    /**
-     * Resets the selection status of all the elements in the argument list.
-     * 
-     * @param elements
-     *            a list of elements whose selection status should be set to
-     *            <code>false</code>
-     */
-    public static void resetSelectionStatus(
-            List<? extends CaliSmallElement> elements) {
-        for (CaliSmallElement element : elements) {
-            element.addedToSelection = false;
-        }
-    }
-
-    /**
-     * Sets the selection status of all elements in the argument list to
-     * <code>true</code>.
-     * 
-     * @param elements
-     *            a list of elements whose selection status should be set to
-     *            <code>true</code>
-     */
-    public static void setAllAddedToSelection(
-            List<? extends CaliSmallElement> elements) {
-        for (CaliSmallElement element : elements) {
-            element.addedToSelection = true;
-        }
-    }
-
     /**
      * Marks this element as <i>committed</i> to the background image or unmarks
      * it.
@@ -351,21 +355,23 @@ public abstract class CaliSmallElement implements Comparable<CaliSmallElement> {
     abstract boolean contains(PointF point);
 
     /**
-     * Marks this element as <i>toBeDeleted</i>, so that calls to
-     * {@link #deleteMarkedFromList(List, SpaceOccupationList)} will remove it
-     * from lists.
+     * Marks this element as <i>toBeDeleted</i>, so that the drawing thread
+     * removes it from the lists of the parent view before the next frame.
      */
     public void delete() {
         toBeDeleted = true;
+        modified();
+        if (parentView != null)
+            parentView.deleted(this);
     }
 
     /**
-     * Unmarks this element as <i>toBeDeleted</i>, so that calls to
-     * {@link #deleteMarkedFromList(List, SpaceOccupationList)} won't remove it
-     * from lists.
+     * Unmarks this element as <i>toBeDeleted</i>, so that it's not removed
+     * from lists if the drawing thread didn't remove it yet.
      */
     public void restore() {
         toBeDeleted = false;
+        modified();
     }
 
     /**
@@ -432,35 +438,6 @@ public abstract class CaliSmallElement implements Comparable<CaliSmallElement> {
         this.mustBeDrawn = mustBeDrawn;
     }
 
-    /**
-     * Removes all elements marked for deletion from the argument lists.
-     * 
-     * <p>
-     * An element is marked for deletion when {@link #hasToBeDeleted()} returns
-     * <code>true</code>. This method removes the elements from both lists.
-     * 
-     * @param <T>
-     *            the type of elements that the two lists store
-     * @param deleteList
-     *            the list containing all elements of type <tt>T</tt>, including
-     *            elements that are not to be deleted
-     * @param spaceOccupationList
-     *            the space occupation list from which elements are also to be
-     *            deleted
-     */
-    public static <T extends CaliSmallElement> void deleteMarkedFromList(
-            List<T> deleteList, SpaceOccupationList<T> spaceOccupationList) {
-        List<T> elementsToRemove = new ArrayList<T>();
-        for (Iterator<T> iterator = deleteList.iterator(); iterator.hasNext();) {
-            T next = iterator.next();
-            if (next.toBeDeleted) {
-                iterator.remove();
-                elementsToRemove.add(next);
-            }
-        }
-        spaceOccupationList.removeAll(elementsToRemove);
-    }
-
     /**
      * Returns the region enclosing this element.
      * 
@@ -478,6 +455,7 @@ public abstract class CaliSmallElement implements Comparable<CaliSmallElement> {
      *            the perimeter of the region enclosing this element
      */
     protected void setBoundaries(Path path) {
+        modified();
         path.computeBounds(bounds, true);
         setArea(bounds);
         Rect intRegion = new Rect((int) Math.floor(bounds.left),
@@ -486,6 +464,91 @@ public abstract class CaliSmallElement implements Comparable<CaliSmallElement> {
         boundaries.setPath(path, new Region(intRegion));
     }
 
+    /**
+     * Marks this element as changed since the last time it was saved.
+     * 
+     * <p>
+     * Changes made by a thread that is decoding elements only invalidate the
+     * element's record: they're not edits, so they don't make the sketch
+     * unsaved.
+     */
+    protected void modified() {
+        revision++;
+        if (parentView != null && DECODING.get() == null)
+            parentView.edited();
+    }
+
+    /**
+     * Tells whether the calling thread is decoding elements from a file, so
+     * that changes it makes to elements are not reported to the view as
+     * edits.
+     * 
+     * <p>
+     * Must be called in a <tt>try</tt> block whose <tt>finally</tt> restores
+     * the value returned by this method.
+     * 
+     * @param decoding
+     *            <code>true</code> when starting to decode elements,
+     *            <code>false</code> when done
+     * @return the previous value, so that calls can be nested
+     */
+    static boolean setDecoding(boolean decoding) {
+        final boolean previous = DECODING.get() != null;
+        if (decoding)
+            DECODING.set(Boolean.TRUE);
+        else
+            DECODING.remove();
+        return previous;
+    }
+
+    /**
+     * Returns the binary record of this element, encoding it again only if the
+     * element was modified since the last call.
+     * 
+     * <p>
+     * Elements in the scene are only changed by the drawing thread, so this
+     * method must be called by the drawing thread, or while the drawing thread
+     * is stopped (see {@link CaliView#captureScene()}): the element is then
+     * guaranteed not to change while it's being encoded.
+     * 
+     * @return a buffer containing the record for this element, which must
+     *         not be modified
+     * @throws IOException
+     *             if the element cannot be encoded
+     */
+    synchronized ByteBuffer getRecord() throws IOException {
+        if (record == null || recordRevision != revision) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            toBinary(new SketchOutput(bytes));
+            record = ByteBuffer.wrap(bytes.toByteArray());
+            recordRevision = revision;
+        }
+        return record;
+    }
+
+    /**
+     * Sets the binary record of this element, which must describe the current
+     * state of the element, so that it's not encoded again until the element
+     * is modified.
+     * 
+     * @param record
+     *            the record from which this element was just read
+     */
+    synchronized void setRecord(ByteBuffer record) {
+        this.record = record;
+        recordRevision = revision;
+    }
+
+    /**
+     * Writes the binary record for this element to the argument output.
+     * 
+     * @param out
+     *            the output to which the record is written
+     * @throws IOException
+     *             if anything goes wrong while writing
+     */
+    public abstract void toBinary(SketchOutput out) throws IOException;
+
     /**
      * Returns the identifier for this element.
      * 
@@ -31,14 +31,22 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -47,7 +55,6 @@ import org.json.JSONObject;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.BlurMaskFilter;
 import android.graphics.BlurMaskFilter.Blur;
@@ -61,7 +68,8 @@ import android.graphics.Path;
 import android.graphics.PathMeasure;
 import android.graphics.PointF;
 import android.graphics.RectF;
-import android.os.Handler;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -86,21 +94,23 @@ import android.view.SurfaceView;
  * data structures whose only purpose is to communicate with the drawing thread.
  * 
  * <p>
- * Input (touch) events are handles by the
+ * Input (touch) events are received by the
  * {@link CaliView#onTouchEvent(MotionEvent)} method, which is called by the
  * Android Event Dispatcher Thread (or whatever they call it for Android, it's
- * the equivalent of Java's good ol' EDT).
+ * the equivalent of Java's good ol' EDT). The EDT only copies them to a
+ * {@link TouchQueue}, which the drawing thread drains before drawing every
+ * frame.
  * 
  * <p>
- * To simplify code, and to avoid conflicts, all drawing operations are
- * performed by the drawing thread (no <tt>postXYZ()</tt> calls), and all object
- * creation/editing and border inclusion/intersection computation is done by the
- * EDT.
+ * To simplify code, and to avoid conflicts, all drawing operations as well as
+ * all object creation/editing and border inclusion/intersection computation
+ * triggered by touch events are performed by the drawing thread (no
+ * <tt>postXYZ()</tt> calls), so the scene is only changed by one thread.
  * 
  * @author Michele Bonazza
  */
 public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
-        JSONSerializable<CaliView> {
+        JSONSerializable<CaliView>, BinarySerializable<CaliView> {
 
     /**
      * Absolute {@link Stroke} width (to be rescaled by {@link #scaleFactor}).
@@ -219,6 +229,11 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
      * of the canvas.
      */
     public static final Paint DRAWABLE_SHADOW_PAINT = new Paint();
+    /**
+     * The paint object that is used to draw the bar showing the progress of
+     * editing operations that are still being computed in the background.
+     */
+    public static final Paint PROGRESS_PAINT = new Paint();
     /**
      * The offset applied to the drawable area's shadow, which is the same
      * applied to the blur effect of said shadow.
@@ -237,6 +252,17 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
      * The stroke thickness in use when drawing the long press animation.
      */
     public static final int LONG_PRESS_CIRCLE_THICKNESS = 3;
+    /**
+     * The height in pixels of the bar shown at the top of the screen while
+     * the {@link SceneWorker} is busy.
+     */
+    public static final float PROGRESS_BAR_HEIGHT = 4f;
+    /**
+     * The maximum time in milliseconds that {@link #captureScene()} waits for
+     * the drawing thread to take a snapshot before giving up, in which case
+     * the save is postponed.
+     */
+    public static final long SCENE_CAPTURE_TIMEOUT = 1000;
     private static final int INVALID_POINTER_ID = -1;
     /**
      * The portion of the canvas that represents paper, so it's colored white
@@ -467,25 +493,105 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
      */
     boolean zoomOutOfBounds;
 
+    // element lists are only replaced by the drawing thread when elements are
+    // added or removed: other threads must read a field once and keep using
+    // the version they got (see PersistentList)
     // a list of strokes kept in chronological order (oldest first)
-    private final List<Stroke> strokes;
+    private volatile PersistentList<Stroke> strokes;
     // a list of scraps kept in chronological order (oldest first)
-    private final List<Scrap> scraps;
-    private final List<Stroke> foregroundStrokes;
+    private volatile PersistentList<Scrap> scraps;
+    private volatile PersistentList<Stroke> foregroundStrokes;
+    /**
+     * Elements that have been {@link CaliSmallElement#delete()}'d since the
+     * last frame, waiting for the drawing thread to remove them from lists.
+     */
+    private final Queue<CaliSmallElement> deletedElements;
     private final List<Stroke> newStrokes;
     private final List<Scrap> newScraps;
     /**
      * A list containing all created scraps sorted by their position in the
      * canvas.
      */
-    private final SpaceOccupationList<Stroke> allStrokes;
+    private SpaceOccupationList<Stroke> allStrokes;
     /**
      * A list containing all created strokes sorted by their position in the
      * canvas.
      */
-    private final SpaceOccupationList<Scrap> allScraps;
-    private final Handler longPressListener = new Handler();
+    private SpaceOccupationList<Scrap> allScraps;
+    /**
+     * Touch events received by the EDT, waiting for the drawing thread to
+     * handle them.
+     */
+    private final TouchQueue touchQueue;
+    /**
+     * Changes to the scene requested by other threads, waiting for the drawing
+     * thread to run them.
+     */
+    private final Queue<Runnable> pendingTasks;
+    /**
+     * The time at which the drawing thread must run {@link #longPressAction},
+     * or <code>0</code> if no long press is pending.
+     */
+    private long longPressTime;
     private final CaliSmall parent;
+    /**
+     * The portion of the canvas that must be redrawn on the background on the
+     * next frame, in canvas coordinates.
+     */
+    private final RectF dirtyArea = new RectF();
+    private final RectF redrawArea = new RectF();
+    /**
+     * Lock held while drawing onto the background canvas, since both the
+     * drawing thread and the committer thread do so.
+     */
+    private final Object backgroundLock = new Object();
+    /**
+     * Lock used by the drawing thread to hand snapshots requested through
+     * {@link #captureScene()} over to the requesting thread.
+     */
+    private final Object sceneLock = new Object();
+    private volatile boolean sceneRequested;
+    private int sceneGeneration;
+    private SceneSnapshot capturedScene;
+    /**
+     * Elements decoded by a {@link TileLoader}, waiting for the drawing thread
+     * to add them to the sketch.
+     */
+    private final Queue<LoadedTile> loadedTiles;
+    /**
+     * The records of elements that are still being loaded in the background,
+     * so that they're not lost if the sketch is saved before they're loaded.
+     */
+    private final Map<Long, PendingRecord> pendingRecords;
+    /**
+     * Incremented every time the sketch is reset, so that elements loaded in
+     * the background for a previous sketch are discarded.
+     */
+    private volatile int loadGeneration;
+    /**
+     * A sketch that has been loaded in the background, waiting for the drawing
+     * thread to swap it in place of the current one before the next frame.
+     */
+    private final AtomicReference<LoadedSketch> loadedSketch;
+    /**
+     * Lock used by threads waiting for the drawing thread to swap a loaded
+     * sketch in, or to draw a screenshot requested through
+     * {@link #captureScreen()}.
+     */
+    private final Object swapLock = new Object();
+    private Bitmap requestedScreen;
+    /**
+     * Incremented every time an element is changed, see
+     * {@link #getEditVersion()}.
+     */
+    private final AtomicLong editVersion;
+    private volatile long savedVersion, lastInputTime;
+    private volatile boolean touching;
+    private final Thumbnailer thumbnailer;
+    private final SceneWorker sceneWorker;
+    private SceneWorker.Job selectionJob;
+    private final BitmapBudget bitmapBudget;
+    private final BitmapBudget.Holder backgroundHolder, snapshotHolder;
     private Canvas backgroundCanvas;
     private Bitmap background, snapshot;
     private LongPressAction longPressAction;
@@ -502,7 +608,7 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     private DrawingHandler drawingHandler;
     private PathMeasure pathMeasure;
     private boolean running, mustShowLandingZone, mustClearCanvas, longPressed,
-            mustShowLongPressCircle, didSomething, forcedRedraw,
+            mustShowLongPressCircle, forcedRedraw,
             foregroundRefresh, mustFixCanvasSize;
     private PointF landingZoneCenter;
     private int currentPointerID = INVALID_POINTER_ID, screenWidth,
@@ -530,6 +636,7 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
                 ABS_LANDING_ZONE_INTERVAL, ABS_LANDING_ZONE_INTERVAL },
                 (float) 1.0));
         LANDING_ZONE_PAINT.setStyle(Style.STROKE);
+        PROGRESS_PAINT.setColor(TempScrap.REGION_COLOR | 0xff000000);
     }
 
     /**
@@ -544,13 +651,35 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
             throw new IllegalArgumentException(
                     "CaliView can only be placed within a CaliSmall Activity");
         parent = (CaliSmall) c;
-        strokes = new ArrayList<Stroke>();
-        scraps = new ArrayList<Scrap>();
-        foregroundStrokes = new ArrayList<Stroke>();
+        strokes = PersistentList.empty();
+        scraps = PersistentList.empty();
+        foregroundStrokes = PersistentList.empty();
+        deletedElements = new ConcurrentLinkedQueue<CaliSmallElement>();
         allStrokes = new SpaceOccupationList<Stroke>();
         allScraps = new SpaceOccupationList<Scrap>();
         newStrokes = new ArrayList<Stroke>();
         newScraps = new ArrayList<Scrap>();
+        loadedTiles = new ConcurrentLinkedQueue<LoadedTile>();
+        pendingRecords = new LinkedHashMap<Long, PendingRecord>();
+        loadedSketch = new AtomicReference<LoadedSketch>();
+        touchQueue = new TouchQueue();
+        pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+        thumbnailer = new Thumbnailer(this);
+        sceneWorker = new SceneWorker();
+        editVersion = new AtomicLong();
+        bitmapBudget = new BitmapBudget();
+        backgroundHolder = new BitmapBudget.Holder() {
+            public long evict() {
+                // needed by every frame
+                return BitmapBudget.sizeOf(background);
+            }
+        };
+        snapshotHolder = new BitmapBudget.Holder() {
+            public long evict() {
+                // only kept while zooming
+                return BitmapBudget.sizeOf(snapshot);
+            }
+        };
         eraserHandler = new EraserHandler(this);
         bubbleMenu = new BubbleMenu(this);
         ghostHandler = new GhostStrokeHandler(this);
@@ -570,9 +699,18 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
      * Resets the state of this view.
      */
     public void reset() {
-        strokes.clear();
-        scraps.clear();
-        foregroundStrokes.clear();
+        loadGeneration++;
+        thumbnailer.cancel();
+        sceneWorker.cancelAll();
+        selectionJob = null;
+        loadedTiles.clear();
+        synchronized (pendingRecords) {
+            pendingRecords.clear();
+        }
+        strokes = PersistentList.empty();
+        scraps = PersistentList.empty();
+        foregroundStrokes = PersistentList.empty();
+        deletedElements.clear();
         allStrokes.clear();
         allScraps.clear();
         backgroundCanvas = new Canvas();
@@ -592,7 +730,6 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         mustClearCanvas = false;
         longPressed = false;
         mustShowLongPressCircle = false;
-        didSomething = false;
         matrix = new Matrix();
         screenBounds = new RectF();
         longPressCircleBounds = new RectF();
@@ -633,6 +770,12 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
      *            the canvas onto which this view is to be drawn
      */
     public void drawView(Canvas canvas) {
+        swapLoadedSketch();
+        sceneWorker.publishFinished();
+        processTouchEvents();
+        runPendingTasks();
+        publishRequestedScene();
+        thumbnailer.renderRequested();
         if (zooming || forceSingleRedraw) {
             forceSingleRedraw = false;
             if (!forcedRedraw) {
@@ -650,13 +793,78 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
             return;
         } else if (forcedRedraw) {
             forcedRedraw = false;
+            // the snapshot is taken again the next time the user zooms
+            snapshot = null;
+            bitmapBudget.release(snapshotHolder);
             // force a full redraw by Android Drawing Thread
             updateBackground();
         }
+        redrawDirtyArea();
         drawBackground(canvas);
         drawForeground(canvas);
     }
 
+    /**
+     * Redraws the portion of the background that has been invalidated through
+     * {@link #invalidateArea(RectF)} since the last frame, if any.
+     */
+    private void redrawDirtyArea() {
+        synchronized (dirtyArea) {
+            if (dirtyArea.isEmpty())
+                return;
+            redrawArea.set(dirtyArea);
+            dirtyArea.setEmpty();
+        }
+        synchronized (backgroundLock) {
+            backgroundCanvas.save();
+            backgroundCanvas.clipRect(redrawArea);
+            drawDrawableArea(backgroundCanvas);
+            for (int i = 0; i < scraps.size(); i++) {
+                Scrap scrap = scraps.get(i);
+                if (!scrap.hasToBeDeleted() && scrap.hasToBeDrawnVectorially()
+                        && RectF.intersects(scrap.bounds, redrawArea)) {
+                    scrap.draw(this, backgroundCanvas, scaleFactor, true);
+                }
+            }
+            for (int i = 0; i < strokes.size(); i++) {
+                Stroke stroke = strokes.get(i);
+                if (!stroke.hasToBeDeleted() && !stroke.isGhost()
+                        && stroke.hasToBeDrawnVectorially()
+                        && intersects(stroke, redrawArea))
+                    stroke.draw(backgroundCanvas, PAINT);
+            }
+            backgroundCanvas.restore();
+        }
+    }
+
+    private static boolean intersects(Stroke stroke, RectF area) {
+        final float margin = stroke.getStrokeWidth();
+        final RectF bounds = stroke.bounds;
+        return bounds.left - margin <= area.right
+                && bounds.right + margin >= area.left
+                && bounds.top - margin <= area.bottom
+                && bounds.bottom + margin >= area.top;
+    }
+
+    /**
+     * Requests the portion of the canvas enclosed by the argument rectangle to
+     * be redrawn on the background on the next frame.
+     * 
+     * <p>
+     * Unlike {@link #forceRedraw()}, only elements intersecting the argument
+     * area are redrawn, so this is the method to be called when content is
+     * removed from a small area of the canvas. Multiple calls before the next
+     * frame are merged into a single redraw.
+     * 
+     * @param area
+     *            the area to be redrawn, in canvas coordinates
+     */
+    public void invalidateArea(RectF area) {
+        synchronized (dirtyArea) {
+            dirtyArea.union(area);
+        }
+    }
+
     private void redrawEverything(Canvas canvas) {
         canvas.concat(matrix);
         drawDrawableArea(canvas);
@@ -682,6 +890,7 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     }
 
     private void drawForeground(Canvas canvas) {
+        drawProgress(canvas);
         canvas.concat(matrix);
         if (mustShowLongPressCircle) {
             drawLongPressAnimation(canvas);
@@ -695,31 +904,73 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
             deleteElements();
             boolean tempScrapCreated = createTempScrap();
             addNewStrokesAndScraps();
+            addLoadedTiles();
             drawSelected(canvas);
             drawHighlighted(canvas);
             drawForegroundStrokes(canvas);
-            if (bubbleMenu.isVisible()) {
-                bubbleMenu.draw(canvas);
-            }
-            if (eraserHandler.isEnabled()) {
-                eraserHandler.draw(canvas);
-            }
-            activeStroke.draw(canvas, PAINT);
-            ghostHandler.drawGhosts(canvas, PAINT);
-            drawLandingZone(canvas);
+            drawOverlays(canvas);
             if (activeStroke != stroke) {
                 // that is, after DrawingHandler.onUp() has been called
                 if (!tempScrapCreated) {
                     // selection strokes are temporary, don't mind them
-                    strokes.add(activeStroke);
+                    strokes = strokes.plus(activeStroke);
                     allStrokes.add(activeStroke);
                 }
-                foregroundStrokes.add(activeStroke);
+                foregroundStrokes = foregroundStrokes.plus(activeStroke);
                 activeStroke = stroke;
             }
         }
     }
 
+    /**
+     * Draws what is on top of all elements: the bubble menu, the eraser, the
+     * stroke being drawn, ghost strokes and the landing zone.
+     */
+    private void drawOverlays(Canvas canvas) {
+        if (bubbleMenu.isVisible()) {
+            bubbleMenu.draw(canvas);
+        }
+        if (eraserHandler.isEnabled()) {
+            eraserHandler.draw(canvas);
+        }
+        activeStroke.draw(canvas, PAINT);
+        ghostHandler.drawGhosts(canvas, PAINT);
+        drawLandingZone(canvas);
+    }
+
+    /**
+     * Draws what the last frame showed to the argument canvas.
+     * 
+     * <p>
+     * Unlike {@link #drawView(Canvas)}, this method doesn't change anything:
+     * pending changes to the scene, requests and forced redraws are all left
+     * for the next frame.
+     * 
+     * @param canvas
+     *            the canvas onto which the screen is to be drawn
+     */
+    private void renderScreen(Canvas canvas) {
+        if (zooming || forcedRedraw || background == null) {
+            redrawEverything(canvas);
+            return;
+        }
+        drawBackground(canvas);
+        canvas.concat(matrix);
+        drawSelected(canvas);
+        drawHighlighted(canvas);
+        for (Stroke stroke : foregroundStrokes) {
+            stroke.draw(canvas, PAINT);
+        }
+        drawOverlays(canvas);
+    }
+
+    private void drawProgress(Canvas canvas) {
+        if (sceneWorker.isBusy()) {
+            canvas.drawRect(0, 0, screenWidth * sceneWorker.getProgress(),
+                    PROGRESS_BAR_HEIGHT, PROGRESS_PAINT);
+        }
+    }
+
     /**
      * Draws the selected scrap on the argument canvas, if a scrap is selected
      * and it's <u>not</u> being drawn from vector data. This way the bitmap
@@ -749,19 +1000,24 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
 
     private void drawForegroundStrokes(Canvas canvas) {
         if (!foregroundStrokes.isEmpty()) {
-            for (Iterator<Stroke> iterator = foregroundStrokes.iterator(); iterator
-                    .hasNext();) {
-                Stroke stroke = iterator.next();
+            List<Stroke> committed = null;
+            for (Stroke stroke : foregroundStrokes) {
                 stroke.draw(canvas, PAINT);
-                if (stroke.isCommitted())
-                    iterator.remove();
+                if (stroke.isCommitted()) {
+                    if (committed == null)
+                        committed = new ArrayList<Stroke>();
+                    committed.add(stroke);
+                }
             }
+            if (committed != null)
+                foregroundStrokes = foregroundStrokes.minusAll(committed);
         }
     }
 
     private void updateBackground() {
-        background = Bitmap.createBitmap(screenWidth, screenHeight,
-                Config.ARGB_8888);
+        background = bitmapBudget.create(backgroundHolder,
+                BitmapBudget.VISIBLE, screenWidth, screenHeight,
+                Config.ARGB_8888, true);
         backgroundCanvas = new Canvas(background);
         backgroundCanvas.concat(matrix);
         drawDrawableArea(backgroundCanvas);
@@ -798,8 +1054,8 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     }
 
     /**
-     * Called by {@link CaliSmall} when loading a new sketch, so memory can be
-     * freed.
+     * Called when a new sketch is swapped in place of the current one, so
+     * memory can be freed.
      */
     public void close() {
         for (Scrap scrap : allScraps.list) {
@@ -812,26 +1068,16 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     /**
      * Sets zooming and panning so that the drawable portion of the current
      * canvas fits the width of the screen.
+     * 
+     * <p>
+     * Must be called by the drawing thread, see
+     * {@link #runOnDrawingThread(Runnable)}.
      */
     public void fitZoom() {
-        final float dX = drawableCanvas.width() - screenWidth;
-        final float dY = drawableCanvas.height() - screenHeight;
-        canvasOffsetX = 0;
-        canvasOffsetY = 0;
-        scaleFactor = 1f;
-        if (dX != 0 || dY != 0) {
-            if (dY < dX) {
-                scaleFactor = screenWidth / drawableCanvas.width();
-                canvasOffsetY = screenHeight / 2;
-            } else {
-                scaleFactor = screenHeight / drawableCanvas.height();
-                canvasOffsetX = screenWidth / 2;
-            }
-            if (scaleFactor >= 1) {
-                canvasOffsetX = 0;
-                canvasOffsetY = 0;
-            }
-        }
+        final PointF offset = new PointF();
+        scaleFactor = computeFitZoom(drawableCanvas, offset);
+        canvasOffsetX = offset.x;
+        canvasOffsetY = offset.y;
         Utils.debug(
                 "fitZoom, file is [%.2fx%.2f], canvas is [%dx%d] new zoom: %.2f new offsetX: %.2f new offsetY: %.2f",
                 drawableCanvas.width(), drawableCanvas.height(), screenWidth,
@@ -843,6 +1089,36 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         forceSingleRedraw = true;
     }
 
+    /**
+     * Computes the zoom and panning that {@link #fitZoom()} would set for the
+     * argument drawable canvas, without changing the current ones.
+     * 
+     * @param drawable
+     *            the drawable portion of the canvas to be fit to the screen
+     * @param offset
+     *            the point that is set to the canvas offset
+     * @return the scale factor
+     */
+    private float computeFitZoom(RectF drawable, PointF offset) {
+        final float dX = drawable.width() - screenWidth;
+        final float dY = drawable.height() - screenHeight;
+        float scale = 1f;
+        offset.set(0, 0);
+        if (dX != 0 || dY != 0) {
+            if (dY < dX) {
+                scale = screenWidth / drawable.width();
+                offset.y = screenHeight / 2;
+            } else {
+                scale = screenHeight / drawable.height();
+                offset.x = screenWidth / 2;
+            }
+            if (scale >= 1) {
+                offset.set(0, 0);
+            }
+        }
+        return scale;
+    }
+
     /**
      * Forces the drawing thread to perform a single redraw of the whole canvas
      * using vector data (skipping the background bitmap redraw).
@@ -869,8 +1145,8 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     }
 
     private void clearCanvas() {
-        strokes.clear();
-        scraps.clear();
+        strokes = PersistentList.empty();
+        scraps = PersistentList.empty();
         allStrokes.clear();
         allScraps.clear();
         setSelected(null);
@@ -890,8 +1166,12 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     private boolean createTempScrap() {
         if (selectionStroke != null) {
             selectionStroke.delete();
-            changeTempScrap(new TempScrap(selectionStroke, scaleFactor));
-            bubbleMenu.setVisible(true);
+            TempScrap selection = new TempScrap(selectionStroke, scaleFactor);
+            changeTempScrap(selection);
+            // the selection is filled when the job is published, see
+            // selectionFound()
+            selectionJob = selection.findSelected(scaleFactor);
+            sceneWorker.submit(selectionJob);
             selectionStroke = null;
             return true;
         }
@@ -909,38 +1189,44 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
             // remove deleted elements from the background
             forceSingleRedraw = true;
         }
-        CaliSmallElement.deleteMarkedFromList(strokes, allStrokes);
-        CaliSmallElement.deleteMarkedFromList(scraps, allScraps);
         ghostHandler.deleteOldStrokes();
-        removeMarkedForDeletion();
+        removeDeletedElements();
     }
 
-    private void removeMarkedForDeletion() {
-        if (!strokes.isEmpty()) {
-            for (Iterator<Stroke> iterator = strokes.iterator(); iterator
-                    .hasNext();) {
-                Stroke stroke = iterator.next();
-                if (stroke.hasToBeDeleted())
-                    iterator.remove();
-            }
-        }
-        if (!foregroundStrokes.isEmpty()) {
-            for (Iterator<Stroke> iterator = foregroundStrokes.iterator(); iterator
-                    .hasNext();) {
-                Stroke stroke = iterator.next();
-                if (stroke.hasToBeDeleted())
-                    iterator.remove();
-            }
-        }
-        if (!scraps.isEmpty()) {
-            for (Iterator<Scrap> iterator = scraps.iterator(); iterator
-                    .hasNext();) {
-                Scrap scrap = iterator.next();
-                if (scrap.hasToBeDeleted()) {
-                    iterator.remove();
-                }
-            }
-        }
+    /**
+     * Called by elements of this sketch when they're deleted, so that they're
+     * removed from all lists before the next frame.
+     * 
+     * @param element
+     *            the element that has been deleted
+     */
+    void deleted(CaliSmallElement element) {
+        deletedElements.add(element);
+    }
+
+    /**
+     * Publishes new versions of the element lists without the elements that
+     * have been deleted since the last frame, if any. Only the chunks of the
+     * lists that contained deleted elements are copied.
+     */
+    private void removeDeletedElements() {
+        if (deletedElements.isEmpty())
+            return;
+        Set<CaliSmallElement> deleted = Collections.newSetFromMap(
+                new IdentityHashMap<CaliSmallElement, Boolean>());
+        CaliSmallElement element;
+        while ((element = deletedElements.poll()) != null) {
+            // elements can be restored before they're removed
+            if (element.hasToBeDeleted())
+                deleted.add(element);
+        }
+        if (deleted.isEmpty())
+            return;
+        strokes = strokes.minusAll(deleted);
+        foregroundStrokes = foregroundStrokes.minusAll(deleted);
+        scraps = scraps.minusAll(deleted);
+        allStrokes.removeAll(deleted);
+        allScraps.removeAll(deleted);
     }
 
     private void longPress(Stroke selected) {
@@ -956,13 +1242,13 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
 
     private void addNewStrokesAndScraps() {
         if (!newStrokes.isEmpty()) {
-            strokes.addAll(newStrokes);
+            strokes = strokes.plusAll(newStrokes);
             allStrokes.addAll(newStrokes);
-            foregroundStrokes.addAll(newStrokes);
+            foregroundStrokes = foregroundStrokes.plusAll(newStrokes);
             newStrokes.clear();
         }
         if (!newScraps.isEmpty()) {
-            scraps.addAll(newScraps);
+            scraps = scraps.plusAll(newScraps);
             allScraps.addAll(newScraps);
             newScraps.clear();
             forceSingleRedraw = true;
@@ -991,6 +1277,15 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
      *            there shouldn't be any scrap selected
      */
     public void setSelected(Scrap selected) {
+        if (selected != this.selected) {
+            // the old selection can't be filled anymore, but it must be
+            // parented right before it's rolled back
+            if (selectionJob != null) {
+                selectionJob.cancel();
+                selectionJob = null;
+            }
+            bubbleMenu.finishParenting();
+        }
         if (this.selected != null && selected != this.selected) {
             Stroke outerBorder = this.selected.deselect();
             if (outerBorder != null) {
@@ -1006,6 +1301,7 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
             bubbleMenu.setVisible(false);
         }
         this.selected = selected;
+        updateBitmapPriorities();
     }
 
     /**
@@ -1051,11 +1347,30 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
 
     /**
      * Enables/disables the eraser mode.
+     * 
+     * <p>
+     * Must be called by the drawing thread, see
+     * {@link #runOnDrawingThread(Runnable)}.
      */
     public void toggleEraserMode() {
         eraserHandler.toggleEnabled();
     }
 
+    /**
+     * Sets whether the eraser should only remove the portions of strokes that
+     * it touches, rather than deleting whole strokes.
+     * 
+     * <p>
+     * Must be called by the drawing thread, see
+     * {@link #runOnDrawingThread(Runnable)}.
+     * 
+     * @param splitStrokes
+     *            <code>true</code> to split strokes when erasing
+     */
+    public void setEraserSplitsStrokes(boolean splitStrokes) {
+        eraserHandler.setSplitStrokes(splitStrokes);
+    }
+
     /**
      * Sets the argument scrap as highlighted, meaning that its border will be
      * drawn on the foreground using a blueish background.
@@ -1081,9 +1396,64 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         }
     }
 
+    /**
+     * Moves the elements found by the argument job into the argument temp
+     * scrap, unless the scrap is not the current selection anymore. Called by
+     * the drawing thread when the job created by
+     * {@link TempScrap#findSelected(float)} is published.
+     * 
+     * @param selection
+     *            the temp scrap whose content was searched
+     * @param job
+     *            the job that searched the content
+     */
+    void selectionFound(TempScrap selection, SceneWorker.Job job) {
+        if (job != selectionJob || selection != tempScrap)
+            return;
+        selectionJob = null;
+        selection.addSelected(job);
+        forceSingleRedraw = true;
+    }
+
+    /**
+     * Completes all background jobs whose results must be part of the scene
+     * before the current selection is edited. Must be called by the drawing
+     * thread.
+     */
+    void finishPendingEdits() {
+        if (selectionJob != null)
+            sceneWorker.finish(selectionJob);
+        bubbleMenu.finishParenting();
+    }
+
+    /**
+     * Returns the worker that runs the expensive parts of editing operations
+     * for this view.
+     * 
+     * @return the worker for this view
+     */
+    SceneWorker getSceneWorker() {
+        return sceneWorker;
+    }
+
+    /**
+     * Returns how much of the editing work that is running in the background
+     * has been done, see {@link SceneWorker#getProgress()}.
+     * 
+     * @return a value between <tt>0</tt> and <tt>1</tt>, which is <tt>1</tt>
+     *         when no work is pending
+     */
+    public float getEditProgress() {
+        return sceneWorker.getProgress();
+    }
+
     /**
      * Adds the argument scrap to the canvas.
      * 
+     * <p>
+     * Must be called by the drawing thread, see
+     * {@link #runOnDrawingThread(Runnable)}.
+     * 
      * @param scrap
      *            the scrap to be added
      * @param addContent
@@ -1178,10 +1548,77 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         toBeRemoved = scrap;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see android.view.View#onTouchEvent(android.view.MotionEvent)
+     */
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         final int action = event.getAction() & MotionEvent.ACTION_MASK;
         // Log.d("MotionEvent", Utils.actionToString(action));
+        lastInputTime = System.currentTimeMillis();
+        touching = action != MotionEvent.ACTION_UP
+                && action != MotionEvent.ACTION_CANCEL;
+        if (!running) {
+            // nobody's drawing, so the EDT can safely edit the sketch
+            processTouchEvent(event);
+        } else {
+            // if the drawing thread lags behind, moves are merged
+            touchQueue.offer(event);
+        }
+        // events are handled later on, so all of them must be received
+        return true;
+    }
+
+    /**
+     * Runs the argument task on the drawing thread, in between two frames.
+     * 
+     * <p>
+     * Methods that change the scene, like {@link #fitZoom()} or
+     * {@link #addScrap(Scrap, boolean)}, must only be called by the drawing
+     * thread: other threads should wrap calls to them in a task and pass it to
+     * this method. If the drawing thread is not running, the task is run by
+     * the calling thread, which must be the EDT.
+     * 
+     * @param task
+     *            the task to be run
+     */
+    public void runOnDrawingThread(Runnable task) {
+        if (!running) {
+            // nobody's drawing, so the EDT can safely edit the sketch
+            task.run();
+        } else {
+            pendingTasks.add(task);
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Handles all touch events received since the last frame, and runs the
+     * long press action if it's due. Called by the drawing thread.
+     */
+    private void processTouchEvents() {
+        MotionEvent event;
+        while ((event = touchQueue.poll()) != null) {
+            processTouchEvent(event);
+            event.recycle();
+        }
+        if (longPressTime != 0
+                && System.currentTimeMillis() >= longPressTime) {
+            longPressTime = 0;
+            longPressAction.run();
+        }
+    }
+
+    private boolean processTouchEvent(MotionEvent event) {
+        final int action = event.getAction() & MotionEvent.ACTION_MASK;
         try {
             PointF touchPoint = getTouchPoint(action, event);
             boolean redirected = false;
@@ -1275,18 +1712,71 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     }
 
     /**
-     * Returns <code>true</code> if the content of this view changed since this
-     * method was last called (therefore this call has also the same effect as
-     * {@link #resetChangeCounter()}).
+     * Returns <code>true</code> if the content of this view changed since it
+     * was last saved (or loaded).
      * 
-     * @return <code>true</code> if something changed in this view since last
-     *         call
+     * @return <code>true</code> if the edit version moved since the last call
+     *         to {@link #resetChangeCounter()} or {@link #markSaved(long)}
      */
     public boolean hasChanged() {
-        // FIXME this method is a lame replacement for a proper history
-        boolean returnMe = didSomething;
-        didSomething = false;
-        return returnMe;
+        return editVersion.get() != savedVersion;
+    }
+
+    /**
+     * Returns the current edit version of this view, which is incremented
+     * every time any element in the sketch is changed.
+     * 
+     * @return a number that only grows as the sketch is changed
+     */
+    public long getEditVersion() {
+        return editVersion.get();
+    }
+
+    /**
+     * Called by elements of this sketch every time they're changed.
+     */
+    void edited() {
+        editVersion.incrementAndGet();
+        parent.editHappened();
+    }
+
+    /**
+     * Records that the sketch was saved as it was at the argument edit
+     * version.
+     * 
+     * @param version
+     *            the edit version at which the saved snapshot was taken (see
+     *            {@link SceneSnapshot#getVersion()})
+     */
+    public void markSaved(long version) {
+        synchronized (editVersion) {
+            if (version > savedVersion)
+                savedVersion = version;
+        }
+    }
+
+    /**
+     * Returns whether users are currently touching the screen.
+     * 
+     * @return <code>true</code> if at least one finger is on the screen
+     */
+    public boolean isTouching() {
+        return touching;
+    }
+
+    /**
+     * Returns whether users haven't touched the screen for at least the
+     * argument time.
+     * 
+     * @param idleTime
+     *            the time in milliseconds
+     * @return <code>true</code> if no finger is on the screen, and the last
+     *         touch event was received at least <tt>idleTime</tt>
+     *         milliseconds ago
+     */
+    public boolean isInputIdle(long idleTime) {
+        return !touching
+                && System.currentTimeMillis() - lastInputTime >= idleTime;
     }
 
     /**
@@ -1314,7 +1804,9 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
      * this method call.
      */
     public void resetChangeCounter() {
-        didSomething = false;
+        synchronized (editVersion) {
+            savedVersion = editVersion.get();
+        }
     }
 
     /**
@@ -1484,7 +1976,8 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         if (!intersectsBounds(selected)) {
             setSelected(null);
         }
-        background = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        background = bitmapBudget.create(backgroundHolder,
+                BitmapBudget.VISIBLE, width, height, Config.ARGB_8888, true);
         backgroundCanvas = new Canvas(background);
         forceSingleRedraw = true;
     }
@@ -1520,6 +2013,32 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         return allScraps;
     }
 
+    /**
+     * Returns the current version of the list of all strokes in this view.
+     * 
+     * <p>
+     * Unlike {@link #getStrokeList()}, the returned list is never changed, so
+     * it can be read by any thread.
+     * 
+     * @return the current version of the list of strokes
+     */
+    List<Stroke> getStrokes() {
+        return strokes;
+    }
+
+    /**
+     * Returns the current version of the list of all scraps in this view.
+     * 
+     * <p>
+     * Unlike {@link #getScrapList()}, the returned list is never changed, so
+     * it can be read by any thread.
+     * 
+     * @return the current version of the list of scraps
+     */
+    List<Scrap> getScraps() {
+        return scraps;
+    }
+
     /**
      * Returns the current canvas' scale factor.
      * 
@@ -1549,6 +2068,33 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         final PointF max = adjustForZoom(screenWidth, screenHeight);
         final PointF min = adjustForZoom(0, 0);
         screenBounds.set(min.x, min.y, max.x, max.y);
+        updateBitmapPriorities();
+    }
+
+    /**
+     * Tells the bitmap budget which images are on screen or selected, so that
+     * the bitmaps of the other ones are released first when memory is tight.
+     */
+    private void updateBitmapPriorities() {
+        final List<Scrap> scraps = this.scraps;
+        for (int i = 0; i < scraps.size(); i++) {
+            Scrap scrap = scraps.get(i);
+            if (scrap instanceof ImageScrap) {
+                ImageScrap image = (ImageScrap) scrap;
+                image.setBudgetPriority(getBitmapPriority(image));
+            }
+        }
+    }
+
+    private int getBitmapPriority(Scrap scrap) {
+        if (RectF.intersects(scrap.bounds, screenBounds))
+            return BitmapBudget.VISIBLE;
+        for (CaliSmallElement ancestor = scrap; ancestor != null;
+                ancestor = ancestor.parent) {
+            if (ancestor == selected)
+                return BitmapBudget.SELECTED;
+        }
+        return BitmapBudget.CACHED;
     }
 
     /**
@@ -1564,21 +2110,21 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     /**
      * Takes a snapshot of this view and saves it to the argument file.
      * 
+     * <p>
+     * Must not be called by the drawing thread.
+     * 
      * @param tmpImage
      *            the file to which the snapshot will be saved
-     * @param signalCondition
-     *            the condition to be {@link Condition#signal()}'ed after the
-     *            snapshot has been taken
      */
-    public void createSnapshot(File tmpImage, Condition signalCondition) {
+    public void createSnapshot(File tmpImage) {
+        Bitmap bitmap = captureScreen();
+        if (bitmap == null) {
+            Log.e(VIEW_LOG_TAG, "could not take a snapshot of the screen");
+            return;
+        }
         FileOutputStream tmp = null;
         try {
             tmp = new FileOutputStream(tmpImage);
-            Bitmap bitmap = Bitmap.createBitmap(screenWidth, screenHeight,
-                    Config.ARGB_8888);
-            Canvas canvas = new Canvas(bitmap);
-            drawView(canvas);
-            signalCondition.signalAll();
             bitmap.compress(Bitmap.CompressFormat.PNG, 100, tmp);
             tmp.flush();
             tmp.close();
@@ -1597,38 +2143,129 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     }
 
     /**
-     * Saves a JPEG thumbnail of this canvas to the argument file.
+     * Returns a screenshot of this view.
      * 
-     * @param dst
-     *            the file to which the thumbnail will be saved
+     * <p>
+     * The screenshot is drawn by the drawing thread right after the next
+     * frame, so that the sketch is never drawn by two threads at once. If the
+     * drawing thread is not running, the screenshot is drawn by the calling
+     * thread.
+     * 
+     * <p>
+     * Must not be called by the drawing thread.
+     * 
+     * @return a bitmap as large as the screen, or <code>null</code> if the
+     *         drawing thread stopped before drawing it
      */
-    public void createThumbnail(File dst) {
-        if (background != null) {
-            FileOutputStream tmp = null;
-            try {
-                tmp = new FileOutputStream(dst);
-                Bitmap bitmap = takeSnapshot();
-                Bitmap.createScaledBitmap(bitmap, bitmap.getWidth() / 4,
-                        bitmap.getHeight() / 4, false).compress(
-                        CompressFormat.JPEG, 70, tmp);
-                tmp.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
+    public Bitmap captureScreen() {
+        Bitmap bitmap = Bitmap.createBitmap(screenWidth, screenHeight,
+                Config.ARGB_8888);
+        if (!running) {
+            renderScreen(new Canvas(bitmap));
+            return bitmap;
+        }
+        synchronized (swapLock) {
+            requestedScreen = bitmap;
+            while (requestedScreen == bitmap && running) {
                 try {
-                    if (tmp != null)
-                        tmp.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    swapLock.wait(Painter.SCREEN_REFRESH_TIME);
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
+            if (requestedScreen == bitmap) {
+                requestedScreen = null;
+                return null;
+            }
         }
+        return bitmap;
     }
 
-    private Bitmap takeSnapshot() {
-        Bitmap bitmap = Bitmap.createBitmap((int) drawableCanvas.width(),
-                (int) drawableCanvas.height(), Config.ARGB_8888);
+    /**
+     * Draws the screenshot requested through {@link #captureScreen()}, if
+     * any. Called by the drawing thread between two frames.
+     */
+    void drawRequestedScreen() {
+        synchronized (swapLock) {
+            if (requestedScreen == null)
+                return;
+            renderScreen(new Canvas(requestedScreen));
+            requestedScreen = null;
+            swapLock.notifyAll();
+        }
+    }
+
+    /**
+     * Requests a thumbnail of this canvas to be saved to the argument file in
+     * the background.
+     * 
+     * @param dst
+     *            the file to which the thumbnail will be saved
+     * @param scene
+     *            the state of the sketch that was just saved
+     * @see Thumbnailer#request(File, SceneSnapshot)
+     */
+    public void requestThumbnail(File dst, SceneSnapshot scene) {
+        thumbnailer.request(dst, scene);
+    }
+
+    /**
+     * Draws all elements in this sketch onto a new bitmap, scaled by the
+     * argument factor.
+     * 
+     * <p>
+     * Must be called by the drawing thread, or while it's stopped.
+     * 
+     * @param scale
+     *            the scale at which the whole canvas is drawn
+     * @return the new bitmap, or <code>null</code> if the canvas has not been
+     *         sized yet
+     */
+    Bitmap drawThumbnail(float scale) {
+        final int width = (int) (drawableCanvas.width() * scale);
+        final int height = (int) (drawableCanvas.height() * scale);
+        if (width <= 0 || height <= 0)
+            return null;
+        // JPEG thumbnails have no alpha channel anyway
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.RGB_565);
         Canvas canvas = new Canvas(bitmap);
+        canvas.scale(scale, scale);
+        drawScene(canvas);
+        return bitmap;
+    }
+
+    /**
+     * Returns the budget that all bitmaps of this view are allocated from.
+     * 
+     * @return the bitmap budget
+     */
+    BitmapBudget getBitmapBudget() {
+        return bitmapBudget;
+    }
+
+    /**
+     * Returns whether some of the elements of the current sketch are still
+     * being loaded in the background.
+     * 
+     * @return <code>true</code> if not all tiles of the sketch were loaded yet
+     */
+    boolean isLoadingTiles() {
+        synchronized (pendingRecords) {
+            return !pendingRecords.isEmpty();
+        }
+    }
+
+    private Bitmap takeSnapshot() {
+        // let the previous one be collected if memory is tight
+        snapshot = null;
+        Bitmap bitmap = bitmapBudget.create(snapshotHolder,
+                BitmapBudget.VISIBLE, (int) drawableCanvas.width(),
+                (int) drawableCanvas.height(), Config.ARGB_8888, true);
+        drawScene(new Canvas(bitmap));
+        return bitmap;
+    }
+
+    private void drawScene(Canvas canvas) {
         canvas.drawColor(Color.WHITE);
         for (int i = 0; i < scraps.size(); i++) {
             Scrap scrap = scraps.get(i);
@@ -1639,7 +2276,6 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
             if (!stroke.hasToBeDeleted() && stroke.hasToBeDrawnVectorially())
                 stroke.draw(canvas, PAINT);
         }
-        return bitmap;
     }
 
     /**
@@ -1729,6 +2365,9 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
                 // retry
             }
         }
+        // the EDT handles the events that the drawing thread didn't get to
+        processTouchEvents();
+        runPendingTasks();
     }
 
     /**
@@ -1754,27 +2393,218 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
          */
         @Override
         public void run() {
-            if (!foregroundStrokes.isEmpty()) {
-                for (int i = 0; i < foregroundStrokes.size(); i++) {
-                    Stroke stroke = foregroundStrokes.get(i);
-                    if (!stroke.isCommitted() && !stroke.isGhost()
-                            && !stroke.hasToBeDeleted()
-                            && stroke.hasToBeDrawnVectorially()) {
-                        stroke.draw(backgroundCanvas, PAINT);
-                        stroke.setCommitted(true);
-                    }
+            // the versions of the lists to be committed in this pass
+            final List<Stroke> foreground = foregroundStrokes;
+            if (!foreground.isEmpty()) {
+                synchronized (backgroundLock) {
+                    commit(foreground, scraps);
                 }
-                for (int i = 0; i < scraps.size(); i++) {
-                    Scrap scrap = scraps.get(i);
-                    if (!scrap.isCommitted() && scrap.hasToBeDrawnVectorially()) {
-                        scrap.draw(parentView, backgroundCanvas, scaleFactor,
-                                true);
-                        scrap.setCommitted(true);
-                    }
+            }
+        }
+
+        private void commit(List<Stroke> foreground, List<Scrap> scraps) {
+            for (Stroke stroke : foreground) {
+                if (!stroke.isCommitted() && !stroke.isGhost()
+                        && !stroke.hasToBeDeleted()
+                        && stroke.hasToBeDrawnVectorially()) {
+                    stroke.draw(backgroundCanvas, PAINT);
+                    stroke.setCommitted(true);
+                }
+            }
+            for (Scrap scrap : scraps) {
+                if (!scrap.isCommitted() && scrap.hasToBeDrawnVectorially()) {
+                    scrap.draw(parentView, backgroundCanvas, scaleFactor, true);
+                    scrap.setCommitted(true);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A sketch that has been read from file, but is not shown yet.
+     * 
+     * <p>
+     * Elements are decoded into their own lists rather than into those of the
+     * view, so that users can keep drawing on the current sketch (and the
+     * drawing thread can keep drawing it) while a new one is being loaded.
+     */
+    private static class LoadedSketch {
+
+        private final List<Stroke> strokes;
+        private final List<Scrap> scraps;
+        private final SpaceOccupationList<Stroke> allStrokes;
+        private final SpaceOccupationList<Scrap> allScraps;
+        private final Map<Long, PendingRecord> pendingRecords;
+        private List<PendingTile> pendingTiles;
+        private PersistentList<Stroke> strokeList;
+        private PersistentList<Scrap> scrapList;
+        private RectF drawableCanvas;
+        private long maxId;
+        private boolean swapped;
+
+        private LoadedSketch() {
+            strokes = new ArrayList<Stroke>();
+            scraps = new ArrayList<Scrap>();
+            allStrokes = new SpaceOccupationList<Stroke>();
+            allScraps = new SpaceOccupationList<Scrap>();
+            pendingRecords = new LinkedHashMap<Long, PendingRecord>();
+            maxId = -1;
+        }
+
+        private void add(Stroke stroke) {
+            if (stroke.getID() > maxId)
+                maxId = stroke.getID();
+            strokes.add(stroke);
+            allStrokes.add(stroke);
+        }
+
+        private void add(Scrap scrap) {
+            if (scrap.getID() > maxId)
+                maxId = scrap.getID();
+            scraps.add(scrap);
+            allScraps.add(scrap);
+        }
+
+        /**
+         * Adds elements decoded from a binary file: files are sorted by tile,
+         * but strokes must be drawn in the order in which they were created,
+         * which is the order of their ID's.
+         */
+        private void add(CaliSmallElement[] elements) {
+            Arrays.sort(elements,
+                    new CaliSmallElement.IDComparator<CaliSmallElement>());
+            for (CaliSmallElement element : elements) {
+                if (element instanceof Stroke)
+                    add((Stroke) element);
+                else
+                    add((Scrap) element);
+            }
+        }
+
+        /**
+         * Links scraps to their children, and copies elements to the lists
+         * that the drawing thread will publish.
+         */
+        private void finish() {
+            // scraps can only be linked to their children once all are loaded
+            final boolean decoding = CaliSmallElement.setDecoding(true);
+            try {
+                for (Scrap scrap : scraps) {
+                    scrap.addChildrenFromJSON(allStrokes, allScraps);
                 }
+            } finally {
+                CaliSmallElement.setDecoding(decoding);
+            }
+            strokeList = PersistentList.copyOf(strokes);
+            scrapList = PersistentList.copyOf(scraps);
+        }
+    }
+
+    /**
+     * A tile whose elements are loaded in the background.
+     */
+    private static class PendingTile implements Comparable<PendingTile> {
+
+        private final long[] ids;
+        private final byte[] types;
+        private final ByteBuffer[] records;
+        private final float centerX, centerY, distance;
+
+        private PendingTile(SketchInput in, SketchInput.ElementTable table,
+                int first, int count, RectF bounds, float distance)
+                throws IOException {
+            ids = new long[count];
+            types = new byte[count];
+            records = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                final int index = first + i;
+                ids[i] = table.ids[index];
+                types[i] = table.types[index];
+                records[i] = in.slice(table.offsets[index],
+                        table.length(index));
             }
+            centerX = bounds.centerX();
+            centerY = bounds.centerY();
+            this.distance = distance;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(PendingTile another) {
+            return Float.compare(distance, another.distance);
+        }
+    }
+
+    /**
+     * The record of an element that hasn't been loaded yet, along with the
+     * center of its tile, so that it's saved to the same tile.
+     */
+    private static class PendingRecord {
+
+        private final ByteBuffer record;
+        private final float centerX, centerY;
+
+        private PendingRecord(ByteBuffer record, float centerX, float centerY) {
+            this.record = record;
+            this.centerX = centerX;
+            this.centerY = centerY;
         }
+    }
+
+    /**
+     * The elements of a tile that has been decoded in the background.
+     */
+    private static class LoadedTile {
+
+        private final int generation;
+        private final CaliSmallElement[] elements;
 
+        private LoadedTile(int generation, CaliSmallElement[] elements) {
+            this.generation = generation;
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * Decodes tiles that were not visible when a sketch was opened, handing
+     * them over to the drawing thread one by one.
+     */
+    private class TileLoader implements Runnable {
+
+        private final int generation;
+        private final List<PendingTile> tiles;
+
+        private TileLoader(int generation, List<PendingTile> tiles) {
+            this.generation = generation;
+            this.tiles = tiles;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            for (PendingTile tile : tiles) {
+                if (generation != loadGeneration) {
+                    // another sketch has been opened
+                    return;
+                }
+                try {
+                    loadedTiles.add(new LoadedTile(generation, SketchDecoder
+                            .decode(CaliView.this, tile.types, tile.records)));
+                } catch (IOException e) {
+                    // records stay pending, so they're still saved
+                    Log.e(VIEW_LOG_TAG, "could not load tile", e);
+                }
+            }
+        }
     }
 
     /**
@@ -1796,7 +2626,7 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         }
 
         public boolean onPointerDown(PointF adjusted, MotionEvent event) {
-            longPressListener.removeCallbacks(longPressAction);
+            longPressTime = 0;
             mustShowLandingZone = false;
             stroke.reset();
             scaleDetector.onTouchEvent(event);
@@ -1936,13 +2766,11 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         }
 
         public boolean onDown(PointF adjusted) {
-            if (!didSomething)
-                didSomething = true;
             actionStart = -System.currentTimeMillis();
             mustShowLandingZone = false;
             longPressed = false;
             selectionStroke = null;
-            longPressListener.postDelayed(longPressAction, LONG_PRESS_DURATION);
+            longPressTime = System.currentTimeMillis() + LONG_PRESS_DURATION;
             stroke.setStart(adjusted);
             setSelected(getSelectedScrap(adjusted));
             return true;
@@ -1971,7 +2799,7 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
             // I LIED! (see onMove())
             mustShowLandingZone = false;
             actionCompleted = true;
-            longPressListener.removeCallbacks(longPressAction);
+            longPressTime = 0;
             if (longPressAction.completed) {
                 stroke.reset();
                 createNewStroke();
@@ -2082,7 +2910,8 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
             parent.landingZoneCircleSweepAngle = 0;
             this.completed = completed;
             if (completed)
-                parent.longPressListener.post(this);
+                // run it before the next frame
+                parent.longPressTime = System.currentTimeMillis();
         }
     }
 
@@ -2094,15 +2923,16 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
     @Override
     public JSONObject toJSON() throws JSONException {
         JSONObject json = new JSONObject();
+        final List<Stroke> strokes = this.strokes;
+        final List<Scrap> scraps = this.scraps;
         List<JSONObject> jsonStrokes = new ArrayList<JSONObject>(strokes.size());
-        for (int i = 0; i < strokes.size(); i++) {
-            Stroke stroke = strokes.get(i);
+        for (Stroke stroke : strokes) {
             if (!stroke.isEmpty() && !stroke.isGhost())
                 jsonStrokes.add(stroke.toJSON());
         }
         List<JSONObject> jsonScraps = new ArrayList<JSONObject>(scraps.size());
-        for (int i = 0; i < scraps.size(); i++) {
-            jsonScraps.add(scraps.get(i).toJSON());
+        for (Scrap scrap : scraps) {
+            jsonScraps.add(scrap.toJSON());
         }
         json.put("x", drawableCanvas.width());
         json.put("y", drawableCanvas.height());
@@ -2111,6 +2941,33 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
         return json;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.JSONSerializable#toJSON(android.util.JsonWriter)
+     */
+    @Override
+    public void toJSON(JsonWriter writer) throws IOException {
+        final List<Stroke> strokes = this.strokes;
+        final List<Scrap> scraps = this.scraps;
+        writer.beginObject();
+        writer.name("x").value(drawableCanvas.width());
+        writer.name("y").value(drawableCanvas.height());
+        writer.name("str").beginArray();
+        for (Stroke stroke : strokes) {
+            if (!stroke.isEmpty() && !stroke.isGhost())
+                stroke.toJSON(writer);
+        }
+        writer.endArray();
+        writer.name("scr").beginArray();
+        for (Scrap scrap : scraps) {
+            scrap.toJSON(writer);
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -2118,52 +2975,469 @@ public class CaliView extends SurfaceView implements SurfaceHolder.Callback,
      */
     @Override
     public CaliView fromJSON(JSONObject jsonData) throws JSONException {
-        Stroke restore = activeStroke;
-        reset();
+        LoadedSketch sketch = new LoadedSketch();
         try {
-            drawableCanvas = new RectF(0, 0, (float) jsonData.getDouble("x"),
+            sketch.drawableCanvas = new RectF(0, 0,
+                    (float) jsonData.getDouble("x"),
                     (float) jsonData.getDouble("y"));
         } catch (JSONException e) {
             // old format, assume it's in portrait mode
             Utils.debug("old format, no size given");
-            drawableCanvas = new RectF(0, 0,
-                    Math.max(screenHeight, screenWidth), Math.min(screenHeight,
-                            screenWidth));
+            sketch.drawableCanvas = new RectF(0, 0, Math.max(screenHeight,
+                    screenWidth), Math.min(screenHeight, screenWidth));
         }
-        setDrawableCanvasInternal(drawableCanvas);
-        zoomOutOfBounds = drawableCanvas.height() < screenHeight
-                || drawableCanvas.width() < screenWidth;
-        JSONArray array = jsonData.getJSONArray("str");
-        long maxId = -1;
-        for (int i = 0; i < array.length(); i++) {
-            Stroke stroke = new Stroke(this);
-            stroke = stroke.fromJSON(array.getJSONObject(i));
-            if (stroke.getID() > maxId)
-                maxId = stroke.getID();
-            strokes.add(stroke);
-            allStrokes.add(stroke);
+        final boolean decoding = CaliSmallElement.setDecoding(true);
+        try {
+            JSONArray array = jsonData.getJSONArray("str");
+            for (int i = 0; i < array.length(); i++) {
+                Stroke stroke = new Stroke(this);
+                sketch.add(stroke.fromJSON(array.getJSONObject(i)));
+            }
+            array = jsonData.getJSONArray("scr");
+            for (int i = 0; i < array.length(); i++) {
+                Scrap scrap = new Scrap(this);
+                sketch.add(scrap.fromJSON(array.getJSONObject(i)));
+            }
+        } finally {
+            CaliSmallElement.setDecoding(decoding);
         }
-        array = jsonData.getJSONArray("scr");
-        for (int i = 0; i < array.length(); i++) {
-            Scrap scrap = new Scrap(this);
-            scrap = scrap.fromJSON(array.getJSONObject(i));
-            if (scrap.getID() > maxId)
-                maxId = scrap.getID();
-            scraps.add(scrap);
-            allScraps.add(scrap);
+        sketch.finish();
+        swapIn(sketch);
+        return this;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.JSONSerializable#fromJSON(android.util.JsonReader)
+     */
+    @Override
+    public CaliView fromJSON(JsonReader reader) throws IOException {
+        LoadedSketch sketch = new LoadedSketch();
+        float width = -1, height = -1;
+        final boolean decoding = CaliSmallElement.setDecoding(true);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("x".equals(name)) {
+                    width = (float) reader.nextDouble();
+                } else if ("y".equals(name)) {
+                    height = (float) reader.nextDouble();
+                } else if ("str".equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        sketch.add(new Stroke(this).fromJSON(reader));
+                    }
+                    reader.endArray();
+                } else if ("scr".equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        sketch.add(new Scrap(this).fromJSON(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            CaliSmallElement.setDecoding(decoding);
+        }
+        if (width < 0 || height < 0) {
+            // old format, assume it's in portrait mode
+            Utils.debug("old format, no size given");
+            sketch.drawableCanvas = new RectF(0, 0, Math.max(screenHeight,
+                    screenWidth), Math.min(screenHeight, screenWidth));
+        } else {
+            sketch.drawableCanvas = new RectF(0, 0, width, height);
+        }
+        sketch.finish();
+        swapIn(sketch);
+        return this;
+    }
+
+    /**
+     * Returns an immutable snapshot of all elements in this sketch, that can be
+     * saved in the background while users keep drawing.
+     * 
+     * <p>
+     * The snapshot is taken by the drawing thread right before the next frame
+     * is drawn, so this method usually waits for at most one frame. If the
+     * drawing thread is not running, the snapshot is taken by the calling
+     * thread; if it's stuck for longer than {@link #SCENE_CAPTURE_TIMEOUT},
+     * no snapshot is taken at all, since the scene could be changed while
+     * it's read.
+     * 
+     * <p>
+     * Must not be called by the drawing thread.
+     * 
+     * @return the current state of the sketch, or <code>null</code> if the
+     *         drawing thread didn't take the snapshot in time, in which case
+     *         saving should be postponed
+     * @throws IOException
+     *             if any of the elements cannot be encoded
+     */
+    public SceneSnapshot captureScene() throws IOException {
+        if (!running)
+            return buildScene();
+        SceneSnapshot scene;
+        synchronized (sceneLock) {
+            final int generation = sceneGeneration;
+            sceneRequested = true;
+            final long deadline = System.currentTimeMillis()
+                    + SCENE_CAPTURE_TIMEOUT;
+            long timeLeft = SCENE_CAPTURE_TIMEOUT;
+            while (sceneGeneration == generation && timeLeft > 0) {
+                try {
+                    sceneLock.wait(timeLeft);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                timeLeft = deadline - System.currentTimeMillis();
+            }
+            if (sceneGeneration == generation) {
+                // the drawing thread is stuck waiting for something else
+                sceneRequested = false;
+                return null;
+            }
+            scene = capturedScene;
+        }
+        if (scene == null)
+            throw new IOException("could not capture the scene");
+        return scene;
+    }
+
+    /**
+     * Takes the snapshot requested through {@link #captureScene()}, if any.
+     * Called by the drawing thread between two frames.
+     */
+    private void publishRequestedScene() {
+        if (!sceneRequested)
+            return;
+        synchronized (sceneLock) {
+            try {
+                capturedScene = buildScene();
+            } catch (IOException e) {
+                Log.e(VIEW_LOG_TAG, "could not capture the scene", e);
+                capturedScene = null;
+            }
+            sceneRequested = false;
+            sceneGeneration++;
+            sceneLock.notifyAll();
+        }
+    }
+
+    /**
+     * Takes a snapshot of all elements in this sketch from the calling thread.
+     * 
+     * <p>
+     * Unlike {@link #captureScene()}, this method doesn't wait for the drawing
+     * thread, so it must only be called by the drawing thread or when the
+     * drawing thread is stopped: elements are encoded as they are, see
+     * {@link CaliSmallElement#getRecord()}.
+     * 
+     * @return the current state of the sketch
+     * @throws IOException
+     *             if any of the elements cannot be encoded
+     */
+    SceneSnapshot buildScene() throws IOException {
+        synchronized (pendingRecords) {
+            // changes made while the snapshot is taken might be in it or not,
+            // so read the version first
+            final long version = editVersion.get();
+            return buildScene(drawableCanvas, strokes, scraps, pendingRecords,
+                    version);
+        }
+    }
+
+    private static SceneSnapshot buildScene(RectF drawableCanvas,
+            List<Stroke> strokes, List<Scrap> scraps,
+            Map<Long, PendingRecord> pendingRecords, long version)
+            throws IOException {
+        SceneSnapshot scene = new SceneSnapshot(drawableCanvas.width(),
+                drawableCanvas.height(), strokes.size() + scraps.size()
+                        + pendingRecords.size(), version);
+        for (Stroke stroke : strokes) {
+            if (!stroke.isEmpty() && !stroke.isGhost())
+                scene.add(stroke);
         }
         for (Scrap scrap : scraps) {
-            scrap.addChildrenFromJSON();
+            scene.add(scrap);
+        }
+        for (Map.Entry<Long, PendingRecord> entry : pendingRecords.entrySet()) {
+            PendingRecord pending = entry.getValue();
+            scene.addRecord(entry.getKey(), pending.record, pending.centerX,
+                    pending.centerY);
         }
+        return scene;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.BinarySerializable#toBinary(edu.uci.calismall.SketchOutput
+     * )
+     */
+    @Override
+    public void toBinary(SketchOutput out) throws IOException {
+        buildScene().writeTo(out);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.BinarySerializable#fromBinary(edu.uci.calismall.SketchInput
+     * )
+     */
+    @Override
+    public CaliView fromBinary(SketchInput in) throws IOException {
+        loadBinary(in);
+        return this;
+    }
+
+    /**
+     * Loads a sketch from the argument binary file, like
+     * {@link #fromBinary(SketchInput)}, returning a snapshot of the sketch as
+     * it was loaded.
+     * 
+     * <p>
+     * The snapshot is taken before the sketch is handed over to the drawing
+     * thread, so it never includes changes that users make right after the
+     * sketch is shown, and it's available even if the drawing thread is busy.
+     * 
+     * @param in
+     *            the file to be loaded
+     * @return the state of the sketch stored in the file
+     * @throws IOException
+     *             if the file is malformed
+     */
+    SceneSnapshot loadBinary(SketchInput in) throws IOException {
+        LoadedSketch sketch = new LoadedSketch();
+        PointF size = in.readHeader();
+        SketchInput.TileDirectory tiles = in.readTileDirectory();
+        SketchInput.ElementTable table = in.readElementTable();
+        sketch.drawableCanvas = new RectF(0, 0, size.x, size.y);
+        // elements loaded in the background must not get ID's used by new ones
+        for (int i = 0; i < table.size(); i++) {
+            if (table.ids[i] > sketch.maxId)
+                sketch.maxId = table.ids[i];
+        }
+        if (tiles == null) {
+            int[] all = new int[table.size()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            // paths and boundaries are built in parallel...
+            sketch.add(SketchDecoder.decode(this, in, table, all));
+        } else {
+            loadVisibleTiles(sketch, in, table, tiles);
+        }
+        // ...while scraps are linked to their children sequentially
+        sketch.finish();
+        SceneSnapshot scene;
+        synchronized (sketch.pendingRecords) {
+            scene = buildScene(sketch.drawableCanvas, sketch.strokes,
+                    sketch.scraps, sketch.pendingRecords, editVersion.get());
+        }
+        swapIn(sketch);
+        return scene;
+    }
+
+    /**
+     * Decodes the tiles that will be on screen once the sketch is zoomed to
+     * fit the screen, and collects all of the others, sorted by their distance
+     * from the center of the screen, so that a {@link TileLoader} can load
+     * them once the sketch is shown.
+     */
+    private void loadVisibleTiles(LoadedSketch sketch, SketchInput in,
+            SketchInput.ElementTable table, SketchInput.TileDirectory tiles)
+            throws IOException {
+        final PointF offset = new PointF();
+        final float scale = computeFitZoom(sketch.drawableCanvas, offset);
+        final RectF screenBounds = new RectF(-offset.x, -offset.y,
+                screenWidth / scale - offset.x, screenHeight / scale
+                        - offset.y);
+        final float centerX = screenBounds.centerX();
+        final float centerY = screenBounds.centerY();
+        final boolean[] visibleTiles = new boolean[tiles.size()];
+        int visibleCount = 0;
+        List<PendingTile> pending = new ArrayList<PendingTile>();
+        for (int tile = 0; tile < tiles.size(); tile++) {
+            final int first = tiles.firstRecords[tile];
+            final int count = tiles.counts[tile];
+            if (first < 0 || count < 0 || first + count > table.size())
+                throw new IOException("malformed tile directory");
+            if (count == 0)
+                continue;
+            RectF bounds = tiles.getBounds(tile);
+            if (RectF.intersects(bounds, screenBounds)) {
+                visibleTiles[tile] = true;
+                visibleCount += count;
+            } else {
+                pending.add(new PendingTile(in, table, first, count, bounds,
+                        distance(bounds, centerX, centerY)));
+            }
+        }
+        int[] visible = new int[visibleCount];
+        int next = 0;
+        for (int tile = 0; tile < tiles.size(); tile++) {
+            if (visibleTiles[tile]) {
+                for (int i = 0; i < tiles.counts[tile]; i++) {
+                    visible[next++] = tiles.firstRecords[tile] + i;
+                }
+            }
+        }
+        sketch.add(SketchDecoder.decode(this, in, table, visible));
+        if (pending.isEmpty())
+            return;
+        Collections.sort(pending);
+        for (PendingTile tile : pending) {
+            for (int i = 0; i < tile.ids.length; i++) {
+                sketch.pendingRecords.put(tile.ids[i], new PendingRecord(
+                        tile.records[i], tile.centerX, tile.centerY));
+            }
+        }
+        sketch.pendingTiles = pending;
+    }
+
+    private static float distance(RectF bounds, float x, float y) {
+        final float dx = bounds.centerX() - x;
+        final float dy = bounds.centerY() - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Adds the argument elements, which have just been loaded, to the sketch.
+     * 
+     * <p>
+     * Files are sorted by tile, but strokes must be drawn in the order in
+     * which they were created, which is the order of their ID's.
+     */
+    private void addLoadedElements(CaliSmallElement[] elements) {
+        Arrays.sort(elements,
+                new CaliSmallElement.IDComparator<CaliSmallElement>());
+        List<Stroke> loadedStrokes = new ArrayList<Stroke>();
+        List<Scrap> loadedScraps = new ArrayList<Scrap>();
+        for (CaliSmallElement element : elements) {
+            if (element instanceof Stroke)
+                loadedStrokes.add((Stroke) element);
+            else
+                loadedScraps.add((Scrap) element);
+        }
+        strokes = strokes.plusAll(loadedStrokes);
+        allStrokes.addAll(loadedStrokes);
+        scraps = scraps.plusAll(loadedScraps);
+        allScraps.addAll(loadedScraps);
+    }
+
+    /**
+     * Adds the elements that have been loaded in the background since the
+     * last frame to the sketch. Called by the drawing thread.
+     */
+    private void addLoadedTiles() {
+        LoadedTile tile;
+        while ((tile = loadedTiles.poll()) != null) {
+            if (tile.generation != loadGeneration)
+                continue;
+            addLoadedElements(tile.elements);
+            synchronized (pendingRecords) {
+                for (CaliSmallElement element : tile.elements) {
+                    pendingRecords.remove(element.getID());
+                }
+            }
+            // scraps and their content always are in the same tile, and
+            // linking them is not an edit
+            final boolean decoding = CaliSmallElement.setDecoding(true);
+            try {
+                for (CaliSmallElement element : tile.elements) {
+                    if (element instanceof Scrap)
+                        ((Scrap) element).addChildrenFromJSON();
+                }
+            } finally {
+                CaliSmallElement.setDecoding(decoding);
+            }
+            forceSingleRedraw = true;
+        }
+    }
+
+    /**
+     * Shows the argument sketch once the drawing thread is done with the
+     * current frame, waiting for it to do so.
+     * 
+     * <p>
+     * The sketch is swapped in by the drawing thread in between two frames,
+     * so that it's never drawn while it's being replaced; if the drawing
+     * thread is not running, the sketch is swapped in by the calling thread.
+     * 
+     * <p>
+     * Must not be called by the drawing thread.
+     */
+    private void swapIn(LoadedSketch sketch) {
+        loadedSketch.set(sketch);
+        synchronized (swapLock) {
+            while (!sketch.swapped) {
+                if (!running && loadedSketch.compareAndSet(sketch, null)) {
+                    swap(sketch);
+                    return;
+                }
+                try {
+                    swapLock.wait(Painter.SCREEN_REFRESH_TIME);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Swaps the sketch loaded through {@link #swapIn(LoadedSketch)} in, if
+     * any. Called by the drawing thread before drawing a frame.
+     */
+    private void swapLoadedSketch() {
+        LoadedSketch sketch = loadedSketch.getAndSet(null);
+        if (sketch == null)
+            return;
+        swap(sketch);
+        synchronized (swapLock) {
+            sketch.swapped = true;
+            swapLock.notifyAll();
+        }
+    }
+
+    private void swap(LoadedSketch sketch) {
+        Stroke restore = activeStroke;
+        close();
+        reset();
+        strokes = sketch.strokeList;
+        scraps = sketch.scrapList;
+        allStrokes = sketch.allStrokes;
+        allScraps = sketch.allScraps;
+        setDrawableCanvasInternal(sketch.drawableCanvas);
+        synchronized (pendingRecords) {
+            pendingRecords.putAll(sketch.pendingRecords);
+        }
+        zoomOutOfBounds = drawableCanvas.height() < screenHeight
+                || drawableCanvas.width() < screenWidth;
         // avoid collisions in ID's!
-        CaliSmallElement.ID_GENERATOR.set(++maxId);
-        Utils.debug("element IDs will start from " + maxId);
+        final long firstId = sketch.maxId + 1;
+        CaliSmallElement.ID_GENERATOR.set(firstId);
+        Utils.debug("element IDs will start from " + firstId);
         // this lets the new stroke be added to fg
         activeStroke = restore;
         activeStroke.refreshID();
+        fitZoom();
         // let android flip the buffer twice... weird, I know..
         foregroundRefresh = true;
-        return this;
+        if (sketch.pendingTiles != null) {
+            Thread loader = new Thread(new TileLoader(loadGeneration,
+                    sketch.pendingTiles), "tile loader");
+            loader.setPriority(Thread.MIN_PRIORITY);
+            loader.start();
+        }
     }
 
 }
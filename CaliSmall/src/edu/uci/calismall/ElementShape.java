@@ -0,0 +1,202 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.graphics.PointF;
+import android.graphics.Region;
+
+/**
+ * The geometry of a {@link CaliSmallElement} as it was when the shape was
+ * created, which {@link SceneWorker} threads can read while the drawing
+ * thread keeps changing the element.
+ * 
+ * <p>
+ * Shapes are created by the drawing thread when a {@link SceneWorker.Job} is
+ * created, and hold copies of the rectangle enclosing the element and of the
+ * points used for inclusion tests. Shapes of scraps also keep a copy of the
+ * region enclosed by their border and the list of their content.
+ */
+public final class ElementShape implements Comparable<ElementShape> {
+
+    /**
+     * The element whose shape this is.
+     */
+    final CaliSmallElement element;
+    /**
+     * The sides of the rectangle enclosing the element.
+     */
+    final float left, top, right, bottom;
+    private final float[] points;
+    private final Region boundaries;
+    private final List<CaliSmallElement> content;
+
+    /**
+     * Copies the current shape of the argument stroke. Must be called by the
+     * drawing thread.
+     * 
+     * @param stroke
+     *            the stroke whose shape is to be copied
+     */
+    ElementShape(Stroke stroke) {
+        this(stroke, null, Collections.<CaliSmallElement> emptyList());
+    }
+
+    /**
+     * Copies the current shape of the argument scrap, together with the list
+     * of all elements inside of it that haven't been deleted. Must be called
+     * by the drawing thread.
+     * 
+     * @param scrap
+     *            the scrap whose shape is to be copied
+     */
+    ElementShape(Scrap scrap) {
+        this(scrap, scrap.getBoundaries(), collectContent(scrap));
+    }
+
+    private ElementShape(CaliSmallElement element, Region boundaries,
+            List<CaliSmallElement> content) {
+        this.element = element;
+        left = element.topLeftPoint.x;
+        top = element.topLeftPoint.y;
+        right = left + element.width;
+        bottom = top + element.height;
+        List<PointF> inclusionPoints = element.getPointsForInclusionTests();
+        points = new float[inclusionPoints.size() * 2];
+        for (int i = 0, j = 0; j < points.length; i++) {
+            PointF point = inclusionPoints.get(i);
+            points[j++] = point.x;
+            points[j++] = point.y;
+        }
+        this.boundaries = boundaries;
+        this.content = content;
+    }
+
+    private static List<CaliSmallElement> collectContent(Scrap scrap) {
+        List<CaliSmallElement> content = new ArrayList<CaliSmallElement>();
+        scrap.collectContent(content, content);
+        return content;
+    }
+
+    /**
+     * Returns the number of points used for inclusion tests.
+     * 
+     * @return the number of points in this shape
+     */
+    int size() {
+        return points.length / 2;
+    }
+
+    /**
+     * Returns the X coordinate of the point at the argument index.
+     * 
+     * @param index
+     *            the index of the point, between <tt>0</tt> and
+     *            {@link #size()}
+     * @return the X coordinate of the point
+     */
+    float getX(int index) {
+        return points[index * 2];
+    }
+
+    /**
+     * Returns the Y coordinate of the point at the argument index.
+     * 
+     * @param index
+     *            the index of the point, between <tt>0</tt> and
+     *            {@link #size()}
+     * @return the Y coordinate of the point
+     */
+    float getY(int index) {
+        return points[index * 2 + 1];
+    }
+
+    /**
+     * Returns the elements that were inside of the scrap when this shape was
+     * created.
+     * 
+     * @return all descendants of the scrap, or an empty list if this is the
+     *         shape of a stroke
+     */
+    List<CaliSmallElement> getContent() {
+        return content;
+    }
+
+    /**
+     * Tests whether the rectangles enclosing this shape and the argument one
+     * overlap, like {@link CaliSmallElement#intersectsX(CaliSmallElement)}
+     * and {@link CaliSmallElement#intersectsY(CaliSmallElement)} do.
+     * 
+     * @param other
+     *            the shape to be tested
+     * @return <code>true</code> if the two rectangles overlap
+     */
+    boolean intersects(ElementShape other) {
+        return left <= other.right && other.left <= right
+                && top <= other.bottom && other.top <= bottom;
+    }
+
+    /**
+     * Tests whether all points of the argument shape fall within the region
+     * enclosed by this shape, like
+     * {@link CaliSmallElement#contains(CaliSmallElement)} does.
+     * 
+     * @param other
+     *            the shape to be tested
+     * @return <code>true</code> if this is the shape of a scrap that contains
+     *         the other shape
+     */
+    boolean contains(ElementShape other) {
+        if (boundaries == null)
+            return false;
+        for (int i = 0; i < other.points.length; i += 2) {
+            if (!boundaries.contains(Math.round(other.points[i]),
+                    Math.round(other.points[i + 1])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether this shape is smaller (-1) or bigger (1) than the
+     * argument shape, like {@link CaliSmallElement#compareTo(CaliSmallElement)}
+     * does for elements.
+     */
+    @Override
+    public int compareTo(ElementShape another) {
+        if (another == null)
+            return -1;
+        if (element.getID() == another.element.getID())
+            return 0;
+        return Float.compare(right - left + bottom - top, another.right
+                - another.left + another.bottom - another.top);
+    }
+}
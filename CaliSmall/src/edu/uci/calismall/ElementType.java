@@ -0,0 +1,218 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The type of an element stored in a sketch file, which tells what class must
+ * be instantiated to read the element back.
+ * 
+ * <p>
+ * Every type is identified by a short tag, stored under the {@link #TAG_KEY}
+ * key in JSON sketches, and by a record type (see {@link SketchFormat}) in
+ * binary sketches. All types are kept in a registry, so that readers can look
+ * up the type of an element from its tag or record type, and then let the
+ * element read its own fields. JSON sketches written before tags were
+ * introduced have no {@link #TAG_KEY}: their type is inferred by
+ * {@link Stroke} and {@link Scrap} from the flags that subclasses used to
+ * write.
+ */
+public abstract class ElementType {
+
+    /**
+     * The key under which the tag of an element is stored in JSON sketches.
+     */
+    public static final String TAG_KEY = "t";
+    private static final Map<String, ElementType> BY_TAG;
+    private static final ElementType[] BY_RECORD_TYPE;
+
+    static {
+        // must come before all types are registered
+        BY_TAG = new HashMap<String, ElementType>();
+        BY_RECORD_TYPE = new ElementType[Byte.MAX_VALUE + 1];
+    }
+
+    /**
+     * A {@link Stroke}.
+     */
+    public static final ElementType STROKE = register(new ElementType("s",
+            SketchFormat.STROKE) {
+        @Override
+        public Stroke newElement(CaliView parentView) {
+            return new Stroke(parentView);
+        }
+    });
+    /**
+     * A {@link RectStroke}.
+     */
+    public static final ElementType RECT_STROKE = register(new ElementType(
+            "rs", SketchFormat.RECT_STROKE) {
+        @Override
+        public Stroke newElement(CaliView parentView) {
+            return new RectStroke(parentView);
+        }
+    });
+    /**
+     * A {@link RoundRectStroke}.
+     */
+    public static final ElementType ROUND_RECT_STROKE = register(
+            new ElementType("rr", SketchFormat.ROUND_RECT_STROKE) {
+                @Override
+                public Stroke newElement(CaliView parentView) {
+                    return new RoundRectStroke(parentView);
+                }
+            });
+    /**
+     * A {@link Scrap}.
+     */
+    public static final ElementType SCRAP = register(new ElementType("sc",
+            SketchFormat.SCRAP) {
+        @Override
+        public Scrap newElement(CaliView parentView) {
+            return new Scrap(parentView);
+        }
+    });
+    /**
+     * An {@link ImageScrap}.
+     */
+    public static final ElementType IMAGE_SCRAP = register(new ElementType(
+            "is", SketchFormat.IMAGE_SCRAP) {
+        @Override
+        public Scrap newElement(CaliView parentView) {
+            return new ImageScrap(parentView);
+        }
+    });
+
+    private final String tag;
+    private final byte recordType;
+
+    /**
+     * Creates a new element type, which must then be passed to
+     * {@link #register(ElementType)} to be found by readers.
+     * 
+     * @param tag
+     *            the tag identifying the type in JSON sketches
+     * @param recordType
+     *            the record type identifying the type in binary sketches
+     */
+    protected ElementType(String tag, byte recordType) {
+        this.tag = tag;
+        this.recordType = recordType;
+    }
+
+    /**
+     * Adds the argument type to the registry.
+     * 
+     * @param type
+     *            the type to be registered
+     * @return the argument <tt>type</tt>
+     * @throws IllegalArgumentException
+     *             if another type was already registered with the same tag
+     *             or record type
+     */
+    public static synchronized ElementType register(ElementType type) {
+        if (type.recordType < 0)
+            throw new IllegalArgumentException("invalid record type "
+                    + type.recordType);
+        if (BY_TAG.containsKey(type.tag)
+                || BY_RECORD_TYPE[type.recordType] != null)
+            throw new IllegalArgumentException("duplicate element type "
+                    + type);
+        BY_TAG.put(type.tag, type);
+        BY_RECORD_TYPE[type.recordType] = type;
+        return type;
+    }
+
+    /**
+     * Returns the type identified by the argument tag.
+     * 
+     * @param tag
+     *            the tag read from a JSON sketch, can be <code>null</code>
+     * @return the registered type, or <code>null</code> if no type was
+     *         registered with the argument tag
+     */
+    public static synchronized ElementType forTag(String tag) {
+        if (tag == null)
+            return null;
+        return BY_TAG.get(tag);
+    }
+
+    /**
+     * Returns the type identified by the argument record type.
+     * 
+     * @param recordType
+     *            the first byte of a record read from a binary sketch
+     * @return the registered type, or <code>null</code> if no type was
+     *         registered with the argument record type
+     */
+    public static synchronized ElementType forRecordType(byte recordType) {
+        if (recordType < 0)
+            return null;
+        return BY_RECORD_TYPE[recordType];
+    }
+
+    /**
+     * Creates a new, empty element of this type, whose fields are then read
+     * by the element itself.
+     * 
+     * @param parentView
+     *            the view within which the element will be drawn
+     * @return a new element
+     */
+    public abstract CaliSmallElement newElement(CaliView parentView);
+
+    /**
+     * Returns the tag identifying this type in JSON sketches.
+     * 
+     * @return the tag of this type
+     */
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * Returns the record type identifying this type in binary sketches.
+     * 
+     * @return one of the record types defined in {@link SketchFormat}
+     */
+    public byte getRecordType() {
+        return recordType;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return tag + " (" + recordType + ")";
+    }
+}
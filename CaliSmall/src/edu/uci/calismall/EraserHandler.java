@@ -59,8 +59,9 @@ public class EraserHandler extends GenericTouchHandler {
         ERASER_PAINT.setStrokeWidth(ABS_STROKE_WIDTH);
     }
 
-    private final RectF eraserArea;
-    private boolean enabled, drawIt;
+    private final RectF eraserArea, sweptArea, erasedArea;
+    private final PointF lastPosition;
+    private boolean enabled, drawIt, splitStrokes;
     private float halfEraserSize;
 
     /**
@@ -72,6 +73,9 @@ public class EraserHandler extends GenericTouchHandler {
     public EraserHandler(CaliView parent) {
         super("EraserHandler", parent);
         eraserArea = new RectF();
+        sweptArea = new RectF();
+        erasedArea = new RectF();
+        lastPosition = new PointF();
     }
 
     /*
@@ -88,10 +92,8 @@ public class EraserHandler extends GenericTouchHandler {
         halfEraserSize = ABS_HALF_ERASER_SIZE / parentView.getScaleFactor();
         ERASER_PAINT.setStrokeWidth(ABS_STROKE_WIDTH
                 / parentView.getScaleFactor());
-        eraserArea.set(touchPoint.x - halfEraserSize, touchPoint.y
-                - halfEraserSize, touchPoint.x + halfEraserSize, touchPoint.y
-                + halfEraserSize);
-        checkForIntersections();
+        lastPosition.set(touchPoint);
+        moveEraser(touchPoint);
         return true;
     }
 
@@ -111,11 +113,20 @@ public class EraserHandler extends GenericTouchHandler {
     public boolean onMove(PointF touchPoint) {
         if (!enabled)
             return false;
+        moveEraser(touchPoint);
+        return true;
+    }
+
+    private void moveEraser(PointF touchPoint) {
         eraserArea.set(touchPoint.x - halfEraserSize, touchPoint.y
                 - halfEraserSize, touchPoint.x + halfEraserSize, touchPoint.y
                 + halfEraserSize);
-        checkForIntersections();
-        return true;
+        sweptArea.set(lastPosition.x - halfEraserSize, lastPosition.y
+                - halfEraserSize, lastPosition.x + halfEraserSize,
+                lastPosition.y + halfEraserSize);
+        sweptArea.union(eraserArea);
+        checkForIntersections(lastPosition, touchPoint);
+        lastPosition.set(touchPoint);
     }
 
     /**
@@ -138,22 +149,71 @@ public class EraserHandler extends GenericTouchHandler {
         return false;
     }
 
-    private void checkForIntersections() {
-        List<Stroke> candidates = parentView.getIntersectingStrokes(eraserArea);
-        if (!candidates.isEmpty()) {
-            for (Stroke stroke : candidates) {
-                if (stroke.rawIntersects(eraserArea)) {
-                    // if (stroke.bezierContains(touchPoint)) {
-                    stroke.delete();
-                    CaliSmallElement parent = stroke.getParent();
-                    if (parent instanceof Scrap) {
-                        ((Scrap) parent).forceBitmapRedraw();
-                    }
-                    parentView.forceRedraw();
-                    return;
+    /**
+     * Deletes all strokes touched by the eraser while moving from
+     * <tt>from</tt> to <tt>to</tt>.
+     * 
+     * <p>
+     * The whole segment between the two positions is tested, so that a fast
+     * swipe doesn't skip strokes that lie between two consecutive touch
+     * events. All hit strokes are deleted at once (or split in pieces, if
+     * {@link #setSplitStrokes(boolean)} was turned on), and only the area that
+     * they used to cover is invalidated.
+     */
+    private void checkForIntersections(PointF from, PointF to) {
+        List<Stroke> candidates = parentView.getStrokeList()
+                .findIntersectionCandidates(sweptArea);
+        erasedArea.setEmpty();
+        for (int i = 0; i < candidates.size(); i++) {
+            Stroke stroke = candidates.get(i);
+            if (stroke.hasToBeDeleted())
+                continue;
+            List<Stroke> pieces = null;
+            if (splitStrokes) {
+                pieces = stroke.split(from, to, halfEraserSize);
+                if (pieces == null)
+                    continue;
+            } else if (!stroke.intersectsSwept(from, to, halfEraserSize)) {
+                continue;
+            }
+            stroke.delete();
+            CaliSmallElement parent = stroke.getParent();
+            if (parent instanceof Scrap) {
+                ((Scrap) parent).forceBitmapRedraw();
+            }
+            final float margin = stroke.getStrokeWidth();
+            if (pieces == null) {
+                erasedArea.union(stroke.bounds.left - margin,
+                        stroke.bounds.top - margin,
+                        stroke.bounds.right + margin, stroke.bounds.bottom
+                                + margin);
+            } else {
+                for (Stroke piece : pieces) {
+                    if (parent instanceof Scrap)
+                        ((Scrap) parent).add(piece);
+                    parentView.addStroke(piece);
                 }
+                // pieces cover the rest, only redraw around the eraser
+                erasedArea.union(sweptArea.left - margin - halfEraserSize,
+                        sweptArea.top - margin - halfEraserSize,
+                        sweptArea.right + margin + halfEraserSize,
+                        sweptArea.bottom + margin + halfEraserSize);
             }
         }
+        if (!erasedArea.isEmpty())
+            parentView.invalidateArea(erasedArea);
+    }
+
+    /**
+     * Sets whether the eraser should only remove the portions of strokes that
+     * it touches, splitting strokes in pieces, rather than deleting whole
+     * strokes.
+     * 
+     * @param splitStrokes
+     *            <code>true</code> to only erase the touched parts of strokes
+     */
+    public void setSplitStrokes(boolean splitStrokes) {
+        this.splitStrokes = splitStrokes;
     }
 
     /*
@@ -50,41 +50,6 @@ import android.widget.TextView;
  */
 public class FileListAdapter extends BaseAdapter {
 
-    private class FileListItem {
-        private final String sketchName;
-        private final Drawable image;
-
-        private FileListItem(Drawable newSketch) {
-            image = newSketch;
-            sketchName = "Create new";
-        }
-
-        public FileListItem(File folder, String sketchName) {
-            image = Drawable.createFromPath(new File(folder, sketchName
-                    + CaliSmall.THUMBNAIL_EXTENSION).getAbsolutePath());
-            this.sketchName = sketchName;
-        }
-
-        /**
-         * Returns the name of the linked sketch, without any file extension.
-         * 
-         * @return the sketchName
-         */
-        public String getSketchName() {
-            return sketchName + "";
-        }
-
-        /**
-         * Returns the image to be drawn next to the linked sketch's name.
-         * 
-         * @return the snapshot to be drawn as a thumbnail preview
-         */
-        public Drawable getImage() {
-            return image;
-        }
-
-    }
-
     /**
      * The number of items displayed for every row.
      */
@@ -93,18 +58,23 @@ public class FileListAdapter extends BaseAdapter {
      * yes, COLUMNS is hardcoded, it's ugly, but {@link GridView} is not
      * behaving and I need to have things done now!
      */
-    private static final List<FileListItem> items = new ArrayList<FileListItem>();
     private static final List<Integer> IMAGE_IDS = Arrays.asList(R.id.icon1,
             R.id.icon2, R.id.icon3);
     private static final List<Integer> LABELS_IDS = Arrays.asList(R.id.label1,
             R.id.label2, R.id.label3);
     private final CaliSmall parentActivity;
+    private final File homeFolder;
+    private final List<String> items;
     private final int selection;
 
     /**
      * Creates an adapter to show the argument list of file names along with
      * their thumbnail snapshot.
      * 
+     * <p>
+     * Thumbnails are loaded in the background as rows are shown, so creating
+     * the adapter doesn't read any file.
+     * 
      * @param parent
      *            the current main instance of the activity
      * @param homeFolder
@@ -117,12 +87,11 @@ public class FileListAdapter extends BaseAdapter {
     public FileListAdapter(CaliSmall parent, File homeFolder,
             List<String> files, int selectedSketch) {
         this.parentActivity = parent;
-        items.clear();
-        items.add(new FileListItem(parent.getResources().getDrawable(
-                R.drawable.new_sketch)));
-        for (String file : files) {
-            items.add(new FileListItem(homeFolder, file));
-        }
+        this.homeFolder = homeFolder;
+        items = new ArrayList<String>(files.size() + 1);
+        // the first item is the "create new" button
+        items.add(null);
+        items.addAll(files);
         // don't count the "create new" button
         selection = selectedSketch + 1;
     }
@@ -159,7 +128,12 @@ public class FileListAdapter extends BaseAdapter {
         return position;
     }
 
-    private static class ViewHolder {
+    private Drawable getDrawable(int id) {
+        // drawables can't be shared by views, but their bitmaps are
+        return parentActivity.getResources().getDrawable(id);
+    }
+
+    private class ViewHolder {
         private final List<ImageView> images = new ArrayList<ImageView>();
         private final List<TextView> text = new ArrayList<TextView>();
 
@@ -170,21 +144,31 @@ public class FileListAdapter extends BaseAdapter {
                 images.add((ImageView) rowView.findViewById(i));
         }
 
-        private void
-                populate(int startingIndex, final CaliSmall parentActivity) {
+        private void populate(int startingIndex) {
             for (int i = 0; i < images.size(); i++) {
-                String textString = "";
-                Drawable drawable = null;
                 final int position = startingIndex * images.size() + i;
-                if (position < items.size()) {
-                    FileListItem item = items.get(position);
-                    textString = item.getSketchName();
-                    drawable = item.getImage();
-                    if (drawable == null)
-                        drawable = parentActivity.getResources().getDrawable(
-                                R.drawable.no_preview);
-                }
                 ImageView image = images.get(i);
+                TextView textView = text.get(i);
+                textView.setSelected(false);
+                if (position >= items.size()) {
+                    ThumbnailLoader.clear(image);
+                    image.setImageDrawable(null);
+                    image.setOnClickListener(null);
+                    textView.setText("");
+                    textView.setOnClickListener(null);
+                    continue;
+                }
+                final String sketchName = items.get(position);
+                if (sketchName == null) {
+                    ThumbnailLoader.clear(image);
+                    image.setImageDrawable(getDrawable(R.drawable.new_sketch));
+                    textView.setText("Create new");
+                } else {
+                    ThumbnailLoader.load(new File(homeFolder, sketchName
+                            + CaliSmall.THUMBNAIL_EXTENSION), image,
+                            getDrawable(R.drawable.no_preview));
+                    textView.setText(sketchName);
+                }
                 OnClickListener listener = new OnClickListener() {
 
                     @Override
@@ -193,11 +177,7 @@ public class FileListAdapter extends BaseAdapter {
                     }
                 };
                 image.setOnClickListener(listener);
-                TextView textView = text.get(i);
-                textView.setText(textString);
-                textView.setSelected(false);
                 textView.setOnClickListener(listener);
-                images.get(i).setImageDrawable(drawable);
             }
         }
     }
@@ -210,12 +190,18 @@ public class FileListAdapter extends BaseAdapter {
      */
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        LayoutInflater inflater = parentActivity.getLayoutInflater();
-        View rowView = inflater.inflate(R.layout.file_list, null);
-        ViewHolder viewHolder = new ViewHolder();
-        viewHolder.addLayout(rowView);
-        rowView.setTag(viewHolder);
-        viewHolder.populate(position, parentActivity);
+        View rowView = convertView;
+        ViewHolder viewHolder;
+        if (rowView == null) {
+            LayoutInflater inflater = parentActivity.getLayoutInflater();
+            rowView = inflater.inflate(R.layout.file_list, null);
+            viewHolder = new ViewHolder();
+            viewHolder.addLayout(rowView);
+            rowView.setTag(viewHolder);
+        } else {
+            viewHolder = (ViewHolder) rowView.getTag();
+        }
+        viewHolder.populate(position);
         // every row has COLUMNS sketches, check if selection is in this row
         if (selection > 0 && selection / COLUMNS == position) {
             viewHolder.text.get(selection % COLUMNS).setSelected(true);
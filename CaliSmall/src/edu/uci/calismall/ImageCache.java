@@ -0,0 +1,278 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+
+/**
+ * A cache on disk of the bitmaps shown by {@link ImageScrap}'s.
+ * 
+ * <p>
+ * Images picked from the gallery or taken with the camera are usually much
+ * larger than the canvas, so they are subsampled, scaled and rotated every
+ * time a sketch is opened. The result of all that work is stored by this
+ * cache as raw pixels in the {@link #FOLDER_NAME} folder next to the images,
+ * so that the next time the same image is needed at the same size its pixels
+ * are copied from the mapped file straight into a bitmap without decoding
+ * anything.
+ * 
+ * <p>
+ * Cached images are identified by the path of the source image, the time it
+ * was last modified, the rotation applied to it and the size it was scaled
+ * to. Once the cache takes more than {@link #MAX_SIZE} bytes, the images that
+ * were used least recently are deleted.
+ */
+public class ImageCache {
+
+    /**
+     * The name of the folder storing cached images, within the folder of the
+     * source images.
+     */
+    public static final String FOLDER_NAME = ".cache";
+    /**
+     * The maximum size of the cache in bytes.
+     */
+    public static final long MAX_SIZE = 64 * 1024 * 1024;
+    /**
+     * The first four bytes of every cached image ("CSI" followed by a
+     * <tt>0x1a</tt> byte).
+     */
+    public static final int MAGIC = 0x4353491a;
+    private static final int HEADER_SIZE = 12;
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final String EXTENSION = ".px";
+    private static final long IDLE_THREAD_TIMEOUT = 5;
+    private static final ThreadPoolExecutor WRITER = new ThreadPoolExecutor(1,
+            1, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        // don't keep the thread around when no image is being added
+        WRITER.allowCoreThreadTimeOut(true);
+    }
+
+    private static class LeastRecentlyUsed implements Comparator<File> {
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Comparator#compare(java.lang.Object,
+         * java.lang.Object)
+         */
+        @Override
+        public int compare(File lhs, File rhs) {
+            final long lhsTime = lhs.lastModified();
+            final long rhsTime = rhs.lastModified();
+            return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+        }
+    }
+
+    private ImageCache() {
+        // only static methods
+    }
+
+    /**
+     * Returns the cached version of the argument image, if any.
+     * 
+     * @param srcImage
+     *            the absolute path to the source image
+     * @param rotation
+     *            the rotation applied to the source image
+     * @param width
+     *            the width the source image was scaled to
+     * @param height
+     *            the height the source image was scaled to
+     * @param reusable
+     *            a bitmap that can be overwritten with the cached pixels if
+     *            it's of the right size, can be <code>null</code>
+     * @return the cached image, or <code>null</code> if it's not in the cache
+     */
+    public static Bitmap get(String srcImage, int rotation, int width,
+            int height, Bitmap reusable) {
+        File cached = getCacheFile(srcImage, rotation, width, height);
+        if (cached == null || !cached.exists())
+            return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(cached);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0,
+                    channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.remaining() < HEADER_SIZE
+                    || buffer.getInt() != MAGIC)
+                return null;
+            final int cachedWidth = buffer.getInt();
+            final int cachedHeight = buffer.getInt();
+            if (buffer.remaining() != cachedWidth * cachedHeight
+                    * BYTES_PER_PIXEL)
+                return null;
+            Bitmap bitmap = reusable;
+            if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                    || bitmap.getWidth() != cachedWidth
+                    || bitmap.getHeight() != cachedHeight
+                    || bitmap.getConfig() != Config.ARGB_8888)
+                bitmap = Bitmap.createBitmap(cachedWidth, cachedHeight,
+                        Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(buffer);
+            // least recently used entries are evicted first
+            cached.setLastModified(System.currentTimeMillis());
+            return bitmap;
+        } catch (IOException e) {
+            Log.e(CaliSmall.TAG, "could not read " + cached, e);
+            return null;
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /**
+     * Stores the argument image in the cache.
+     * 
+     * <p>
+     * Pixels are copied by the calling thread, and written to disk in the
+     * background.
+     * 
+     * @param srcImage
+     *            the absolute path to the source image
+     * @param rotation
+     *            the rotation applied to the source image
+     * @param width
+     *            the width the source image was scaled to
+     * @param height
+     *            the height the source image was scaled to
+     * @param image
+     *            the rotated and scaled image
+     */
+    public static void put(String srcImage, int rotation, int width,
+            int height, Bitmap image) {
+        final File cached = getCacheFile(srcImage, rotation, width, height);
+        if (cached == null || image.getConfig() != Config.ARGB_8888)
+            return;
+        final ByteBuffer pixels = ByteBuffer.allocate(HEADER_SIZE
+                + image.getWidth() * image.getHeight() * BYTES_PER_PIXEL);
+        pixels.order(ByteOrder.nativeOrder());
+        pixels.putInt(MAGIC);
+        pixels.putInt(image.getWidth());
+        pixels.putInt(image.getHeight());
+        image.copyPixelsToBuffer(pixels);
+        pixels.flip();
+        WRITER.execute(new Runnable() {
+            public void run() {
+                write(pixels, cached);
+                trim(cached.getParentFile());
+            }
+        });
+    }
+
+    private static File getCacheFile(String srcImage, int rotation,
+            int width, int height) {
+        if (srcImage == null)
+            return null;
+        File src = new File(srcImage);
+        final long lastModified = src.lastModified();
+        if (lastModified == 0)
+            // the source image is gone
+            return null;
+        File folder = new File(src.getParentFile(), FOLDER_NAME);
+        return new File(folder, src.getName() + "_"
+                + Integer.toHexString(srcImage.hashCode()) + "_"
+                + Long.toHexString(lastModified) + "_" + rotation + "_"
+                + width + "x" + height + EXTENSION);
+    }
+
+    private static void write(ByteBuffer pixels, File dst) {
+        File folder = dst.getParentFile();
+        if (!folder.exists() && !folder.mkdirs())
+            return;
+        File tmp = new File(folder, dst.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            FileChannel channel = out.getChannel();
+            while (pixels.hasRemaining())
+                channel.write(pixels);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(dst))
+                Log.e(CaliSmall.TAG, "could not replace " + dst);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used images until the cache fits within
+     * {@link #MAX_SIZE}.
+     */
+    private static void trim(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null)
+            return;
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= MAX_SIZE)
+            return;
+        Arrays.sort(files, new LeastRecentlyUsed());
+        for (int i = 0; i < files.length && size > MAX_SIZE; i++) {
+            size -= files[i].length();
+            if (!files[i].delete())
+                Utils.debug("couldn't delete " + files[i]);
+        }
+    }
+}
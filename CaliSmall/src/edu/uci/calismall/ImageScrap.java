@@ -27,14 +27,9 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.util.List;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -48,6 +43,7 @@ import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.ExifInterface;
+import android.util.JsonWriter;
 
 /**
  * @author Michele Bonazza
@@ -57,10 +53,35 @@ public class ImageScrap extends Scrap {
 	
     private int initialRotation, sampleSize, scaledWidth, scaledHeight;
 
-    private static final String IMAGES_FOLDER_NAME = "images";
     private String srcImage;
     private Matrix bitmapMatrix;
     private Bitmap scaled;
+    private TiledImage tiles;
+    /**
+     * How important {@link #scaled} is to the {@link BitmapBudget}, updated
+     * by the drawing thread through {@link #setBudgetPriority(int)}.
+     */
+    private volatile int budgetPriority = BitmapBudget.CACHED;
+    private final BitmapBudget.Holder scaledHolder =
+            new BitmapBudget.Holder() {
+                public long evict() {
+                    final Bitmap current = scaled;
+                    if (current != null
+                            && current.getConfig() == Config.ARGB_8888
+                            && !current.hasAlpha()) {
+                        try {
+                            // photos look almost the same with half the memory
+                            Bitmap downgraded = current.copy(Config.RGB_565,
+                                    false);
+                            if (downgraded != null)
+                                scaled = downgraded;
+                        } catch (OutOfMemoryError e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    return BitmapBudget.sizeOf(scaled);
+                }
+            };
 
     /**
      * Creates a new image scrap.
@@ -86,8 +107,13 @@ public class ImageScrap extends Scrap {
         super(clone.parentView);
         bitmapMatrix = new Matrix(clone.bitmapMatrix);
         srcImage = clone.srcImage;
+        budgetPriority = clone.budgetPriority;
         try {
+            parentView.getBitmapBudget().reserve(scaledHolder,
+                    BitmapBudget.sizeOf(clone.scaled), budgetPriority);
             scaled = Bitmap.createBitmap(clone.scaled);
+            parentView.getBitmapBudget().track(scaledHolder, scaled,
+                    budgetPriority);
         } catch (OutOfMemoryError e) {
             e.printStackTrace();
             throw e;
@@ -95,6 +121,7 @@ public class ImageScrap extends Scrap {
         initialRotation = clone.initialRotation;
         scaledHeight = clone.scaledHeight;
         scaledWidth = clone.scaledWidth;
+        tiles = new TiledImage(this, srcImage, initialRotation, scaledWidth);
         outerBorder = new RectStroke((RectStroke) clone.outerBorder);
         copyContent(clone);
     }
@@ -196,65 +223,12 @@ public class ImageScrap extends Scrap {
     }
     
     /**
-     * Copies the image pointed by the argument uri the argument folder changing
-     * its name to follow CaliSmall's convention.
+     * Returns the path to the image shown by this scrap.
      * 
-     * <p>
-     * If <tt>imageUri</tt> points to a file in <tt>folder</tt> the file is
-     * <b>renamed</b>, and not copied (this is because that case should happen
-     * only when getting pictures from the camera app, which can be set to save
-     * pictures to a specific folder -- hence there's no need to copy files).
-     * 
-     * @param folder
-     *            the absolute path to the folder into which the image is going
-     *            to be copied
-     * @param imageUri
-     *            the absolute path to the image
-     * @return the absolute path to the newly copied image
+     * @return the absolute path to the image file
      */
-    public static String copyImage(String folder, String imageUri) {
-        File src = new File(imageUri);
-        File imagesFolder = new File(folder, IMAGES_FOLDER_NAME);
-        if (!imagesFolder.exists()) {
-            imagesFolder.mkdir();
-        }
-        File dst = new File(imagesFolder, System.currentTimeMillis() + ".jpg");
-        if (folder.equals(src.getParent()))
-            // this is coming from the camera, just rename
-            src.renameTo(dst);
-        else {
-            // coming from the gallery, copy image
-            FileInputStream in = null;
-            FileOutputStream out = null;
-            try {
-                in = new FileInputStream(src);
-                out = new FileOutputStream(dst);
-                FileChannel source = in.getChannel();
-                FileChannel destination = out.getChannel();
-                destination.transferFrom(source, 0, source.size());
-                source.close();
-                destination.close();
-            } catch (IOException e) {
-                // FIXME notify user!
-                e.printStackTrace();
-            } finally {
-                if (in != null)
-                    try {
-                        in.close();
-                    } catch (IOException e) {
-                        // not much we can do about it...
-                    }
-                ;
-                if (out != null)
-                    try {
-                        out.close();
-                    } catch (IOException e) {
-                        // not much we can do about it...
-                    }
-                ;
-            }
-        }
-        return dst.getAbsolutePath();
+    public String getImagePath() {
+        return srcImage;
     }
 
     /**
@@ -263,6 +237,34 @@ public class ImageScrap extends Scrap {
     public void close() {
         if (scaled != null && !scaled.isRecycled())
             scaled.recycle();
+        parentView.getBitmapBudget().release(scaledHolder);
+        parentView.getBitmapBudget().release(snapshotHolder);
+        if (tiles != null)
+            tiles.close();
+    }
+
+    /**
+     * Changes how important the bitmap of this image is when memory is tight.
+     * Called by the drawing thread whenever the screen or the selection
+     * change.
+     * 
+     * @param priority
+     *            one of {@link BitmapBudget#CACHED},
+     *            {@link BitmapBudget#SELECTED} or {@link BitmapBudget#VISIBLE}
+     */
+    void setBudgetPriority(int priority) {
+        if (priority != budgetPriority) {
+            budgetPriority = priority;
+            parentView.getBitmapBudget().setPriority(scaledHolder, priority);
+        }
+    }
+
+    /**
+     * Called by the {@link TiledImage} of this scrap when new tiles are ready
+     * to be drawn.
+     */
+    void tilesLoaded() {
+        parentView.invalidateArea(new RectF(bounds));
     }
 
     /*
@@ -275,8 +277,9 @@ public class ImageScrap extends Scrap {
         setBoundaries();
         Rect size = getBounds();
         // create a new bitmap as large as the scrap
-        Bitmap snapshot = Bitmap.createBitmap(size.width(), size.height(),
-                Config.ARGB_4444);
+        Bitmap snapshot = parentView.getBitmapBudget().create(snapshotHolder,
+                BitmapBudget.SELECTED, size.width(), size.height(),
+                Config.ARGB_4444, false);
         // move the bitmap over the scrap
         Canvas snapshotCanvas = new Canvas(snapshot);
         snapshotCanvas.translate(-size.left, -size.top);
@@ -319,6 +322,8 @@ public class ImageScrap extends Scrap {
             boolean drawBorder) {
         if (hasToBeDrawnVectorially() || (snapshot == null)) {
             canvas.drawBitmap(scaled, bitmapMatrix, null);
+            if (tiles != null)
+                tiles.draw(canvas, bitmapMatrix, scaleFactor);
             for (int i = 0; i < scraps.size(); i++) {
                 Scrap scrap = scraps.get(i);
                 scrap.draw(parent, canvas, scaleFactor, drawBorder);
@@ -363,12 +368,44 @@ public class ImageScrap extends Scrap {
     
     private void scaleImage(int requestedWidth, int requestedHeight) {
         Utils.debug("requested size: " + requestedWidth + "x" + requestedHeight);
+        if (tiles != null)
+            tiles.close();
+        tiles = new TiledImage(this, srcImage, initialRotation,
+                requestedWidth);
+        try {
+            parentView.getBitmapBudget().reserve(scaledHolder,
+                    BitmapBudget.sizeOf(requestedWidth, requestedHeight,
+                            Config.ARGB_8888), budgetPriority);
+            Bitmap cached = ImageCache.get(srcImage, initialRotation,
+                    requestedWidth, requestedHeight, scaled);
+            if (cached != null) {
+                scaled = cached;
+                parentView.getBitmapBudget().track(scaledHolder, scaled,
+                        budgetPriority);
+                return;
+            }
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            parentView.showOutOfMemoryError();
+            return;
+        }
+        if (sampleSize < 1)
+            sampleSize = computeSampleSize(requestedWidth, requestedHeight);
+        decodeImage(requestedWidth, requestedHeight, true);
+    }
+
+    private void decodeImage(final int width, final int height,
+            boolean retry) {
+        int requestedWidth = width, requestedHeight = height;
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = false;
         options.inSampleSize = sampleSize;
-        System.gc();
         Bitmap downSampled = null;
         try {
+            // both the decoded and the scaled image are around for a while
+            parentView.getBitmapBudget().reserve(scaledHolder,
+                    getDecodedSize() + BitmapBudget.sizeOf(width, height,
+                            Config.ARGB_8888), budgetPriority);
             downSampled = BitmapFactory.decodeFile(srcImage, options);
             Utils.debug("loaded image size: " + downSampled.getWidth() + "x"
                     + downSampled.getHeight() + " scale is " + sampleSize);
@@ -386,10 +423,16 @@ public class ImageScrap extends Scrap {
             scaled = Bitmap.createBitmap(downSampled, 0, 0,
                     downSampled.getWidth(), downSampled.getHeight(), matrix,
                     false);
-            if (scale < 1)
+            if (scaled != downSampled)
                 downSampled.recycle();
             Utils.debug("scaled image size: " + scaled.getWidth() + "x"
                     + scaled.getHeight());
+            if (retry)
+                // don't cache blurrier versions
+                ImageCache.put(srcImage, initialRotation, width, height,
+                        scaled);
+            parentView.getBitmapBudget().track(scaledHolder, scaled,
+                    budgetPriority);
         } catch (OutOfMemoryError e) {
             Utils.debug("out of memory, lol");
             if (downSampled != null)
@@ -398,11 +441,48 @@ public class ImageScrap extends Scrap {
             if (scaled != null)
                 scaled.recycle();
             scaled = null;
-            System.gc();
+            parentView.getBitmapBudget().release(scaledHolder);
+            if (retry) {
+                // free other bitmaps and settle for a blurrier image
+                parentView.getBitmapBudget().trim(BitmapBudget.SELECTED);
+                sampleSize *= 2;
+                decodeImage(width, height, false);
+                return;
+            }
             e.printStackTrace();
             parentView.showOutOfMemoryError();
         }
     }
+
+    /**
+     * Reads the size of the source image to find how many bytes decoding it
+     * with the current sample size takes.
+     */
+    private long getDecodedSize() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(srcImage, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return 0;
+        final int sample = Math.max(1, sampleSize);
+        return BitmapBudget.sizeOf(options.outWidth / sample,
+                options.outHeight / sample, Config.ARGB_8888);
+    }
+
+    /**
+     * Reads the size of the source image to find how many of its pixels can
+     * be skipped while decoding it at the argument size.
+     */
+    private int computeSampleSize(int requestedWidth, int requestedHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(srcImage, options);
+        if (options.outWidth <= 0 || requestedWidth <= 0
+                || requestedHeight <= 0)
+            return 1;
+        return Math.max(1, Math.min(options.outWidth / requestedWidth,
+                options.outHeight / requestedHeight));
+    }
     
     /*
      * (non-Javadoc)
@@ -420,7 +500,76 @@ public class ImageScrap extends Scrap {
         object.put("m", Utils.matrixToJson(bitmapMatrix));
         return object;
     }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Scrap#writeFields(android.util.JsonWriter)
+     */
+    @Override
+    protected void writeFields(JsonWriter writer) throws IOException {
+        super.writeFields(writer);
+        writer.name("i").value(true);
+        writer.name("file").value(srcImage);
+        writer.name("r").value(initialRotation);
+        writer.name("h").value(scaledHeight);
+        writer.name("w").value(scaledWidth);
+        writer.name("m");
+        Utils.writeMatrix(writer, bitmapMatrix);
+    }
     
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Scrap#getType()
+     */
+    @Override
+    public ElementType getType() {
+        return ElementType.IMAGE_SCRAP;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.Scrap#writeBinaryFields(edu.uci.calismall.SketchOutput)
+     */
+    @Override
+    protected void writeBinaryFields(SketchOutput out) throws IOException {
+        super.writeBinaryFields(out);
+        out.writeString(srcImage);
+        out.writeVarInt(initialRotation);
+        out.writeVarInt(scaledHeight);
+        out.writeVarInt(scaledWidth);
+        float[] values = new float[9];
+        bitmapMatrix.getValues(values);
+        for (float value : values) {
+            out.writeFloat(value);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.Scrap#readBinaryFields(edu.uci.calismall.SketchInput)
+     */
+    @Override
+    protected Scrap readBinaryFields(SketchInput in) throws IOException {
+        super.readBinaryFields(in);
+        final String file = in.readString();
+        final int rotation = in.readVarInt();
+        final int height = in.readVarInt();
+        final int width = in.readVarInt();
+        float[] values = new float[9];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readFloat();
+        }
+        Matrix matrix = new Matrix();
+        matrix.setValues(values);
+        return restoreImage(file, rotation, width, height, matrix);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -428,38 +577,70 @@ public class ImageScrap extends Scrap {
      */
     @Override
     public ImageScrap fromJSON(JSONObject jsonData) throws JSONException {
-        try {
+        if (jsonData.has("id"))
             id = jsonData.getLong("id");
-        } catch (JSONException e) {
+        else
             Utils.debug("old format!");
-        }
         outerBorder = new RectStroke(parentView);
         outerBorder.fromJSON(jsonData.getJSONObject("b"));
         outerBorder.getPath().close();
-        try {
-            JSONArray array = jsonData.getJSONArray("str");
-            for (int i = 0; i < array.length(); i++) {
-                Stroke stroke = parentView.getStrokeList().getById(
-                        array.getString(i));
-                add(stroke);
-            }
-        } catch (JSONException e) { /* it's ok, no strokes */}
-        try {
-            JSONArray array = jsonData.getJSONArray("scr");
-            scrapIDs = new ArrayList<String>(array.length());
-            for (int i = 0; i < array.length(); i++) {
-                scrapIDs.add(array.getString(i));
-            }
-        } catch (JSONException e) { /* it's ok, no scraps */}
+        readChildrenFromJSON(jsonData);
         srcImage = jsonData.getString("file");
         initialRotation = jsonData.getInt("r");
         scaledHeight = jsonData.getInt("h");
         scaledWidth = jsonData.getInt("w");
-        sampleSize = 1;
+        // only computed if the image is not cached
+        sampleSize = 0;
         scaleImage(scaledWidth, scaledHeight);
         bitmapMatrix.set(Utils.jsonToMatrix(jsonData.getJSONArray("m")));
         setBoundaries();
         return this;
     }
 
+    /**
+     * Loads the argument image within this scrap, as it was when the sketch
+     * was saved.
+     * 
+     * @param imagePath
+     *            the absolute path to the image file
+     * @param rotation
+     *            the rotation read from the image's EXIF data
+     * @param width
+     *            the width of the scaled image
+     * @param height
+     *            the height of the scaled image
+     * @param matrix
+     *            the transformation to be applied to the scaled image, if
+     *            <code>null</code> no transformation is applied
+     * @return a reference to this scrap
+     */
+    ImageScrap restoreImage(String imagePath, int rotation, int width,
+            int height, Matrix matrix) {
+        srcImage = imagePath;
+        initialRotation = rotation;
+        scaledWidth = width;
+        scaledHeight = height;
+        // only computed if the image is not cached
+        sampleSize = 0;
+        scaleImage(scaledWidth, scaledHeight);
+        if (matrix != null)
+            bitmapMatrix.set(matrix);
+        return this;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Scrap#restore(long, edu.uci.calismall.Stroke,
+     * java.util.List, java.util.List)
+     */
+    @Override
+    Scrap restore(long id, Stroke border, List<String> strokeIDs,
+            List<String> scrapIDs) {
+        if (!(border instanceof RectStroke))
+            border = new RectStroke(border);
+        border.getPath().close();
+        return super.restore(id, border, strokeIDs, scrapIDs);
+    }
+
 }
@@ -0,0 +1,385 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * The folder where images added to sketches are stored.
+ * 
+ * <p>
+ * Images are named after the SHA-1 hash of their content, so that importing
+ * the same picture twice only costs hashing it: the second import links to
+ * the file that was stored the first time. The store also keeps track of
+ * which images are used by every sketch file (backups included), and deletes
+ * images that are not used by any of them.
+ * 
+ * <p>
+ * References are only known for sketches saved since the store was
+ * introduced, so only images that were added through the store are ever
+ * collected, and only if they were imported more than
+ * {@link #GRACE_PERIOD} milliseconds ago, so that images added to sketches
+ * that haven't been saved yet are safe.
+ */
+public class ImageStore {
+
+    /**
+     * The name of the folder storing images, within the home folder.
+     */
+    public static final String FOLDER_NAME = "images";
+    /**
+     * How long images that are not used by any sketch are kept, in
+     * milliseconds.
+     */
+    public static final long GRACE_PERIOD = 24 * 60 * 60 * 1000;
+    private static final String REFERENCES_FILE_NAME = ".references";
+    private static final String EXTENSION = ".jpg";
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final int HASH_LENGTH = 40;
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final char SEPARATOR = '\t';
+
+    private final File folder, referencesFile;
+    private final Map<String, Set<String>> references;
+    private boolean loaded, readable;
+
+    /**
+     * Creates a store for the argument home folder.
+     * 
+     * @param homeFolder
+     *            the folder where sketches are stored
+     */
+    public ImageStore(File homeFolder) {
+        folder = new File(homeFolder, FOLDER_NAME);
+        referencesFile = new File(folder, REFERENCES_FILE_NAME);
+        references = new HashMap<String, Set<String>>();
+    }
+
+    /**
+     * Adds the argument image to the store, unless an image with the same
+     * content is already stored.
+     * 
+     * @param src
+     *            the image to be added
+     * @param move
+     *            whether the source file should be moved to the store
+     *            instead of being copied (like pictures just taken by the
+     *            camera)
+     * @return the absolute path to the image in the store, or that of
+     *         <tt>src</tt> if the image could not be stored
+     */
+    public synchronized String add(File src, boolean move) {
+        if (!folder.exists() && !folder.mkdirs()) {
+            Log.e(CaliSmall.TAG, "could not create " + folder);
+            return src.getAbsolutePath();
+        }
+        String hash = hash(src);
+        if (hash == null)
+            return src.getAbsolutePath();
+        File dst = new File(folder, hash + EXTENSION);
+        if (dst.exists()) {
+            // already imported, restart the grace period
+            dst.setLastModified(System.currentTimeMillis());
+            if (move && !src.delete())
+                Utils.debug("couldn't delete " + src);
+        } else if (move) {
+            if (!src.renameTo(dst))
+                return src.getAbsolutePath();
+        } else if (!copy(src, dst)) {
+            return src.getAbsolutePath();
+        }
+        return dst.getAbsolutePath();
+    }
+
+    private static String hash(File src) {
+        InputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            in = new FileInputStream(src);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder builder = new StringBuilder(HASH_LENGTH);
+            for (byte b : digest.digest()) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            Log.e(CaliSmall.TAG, "could not read " + src, e);
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+        }
+        return null;
+    }
+
+    private static boolean copy(File src, File dst) {
+        // never leave a truncated image with the name of a complete one
+        File tmp = new File(dst.getParentFile(), dst.getName() + ".tmp");
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(src);
+            out = new FileOutputStream(tmp);
+            FileChannel source = in.getChannel();
+            out.getChannel().transferFrom(source, 0, source.size());
+            out.close();
+            out = null;
+            return tmp.renameTo(dst);
+        } catch (IOException e) {
+            Log.e(CaliSmall.TAG, "could not copy " + src, e);
+            return false;
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            if (out != null)
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            if (tmp.exists())
+                tmp.delete();
+        }
+    }
+
+    /**
+     * Records the images used by the argument sketch file.
+     * 
+     * @param sketch
+     *            the name of the sketch file, without extension
+     * @param images
+     *            the absolute paths of all images in the sketch
+     * @param complete
+     *            whether <tt>images</tt> lists all images in the sketch, if
+     *            <code>false</code> images previously recorded for the
+     *            sketch are kept
+     */
+    public synchronized void setReferences(String sketch,
+            Collection<String> images, boolean complete) {
+        load();
+        Set<String> names = new HashSet<String>();
+        for (String image : images) {
+            File file = new File(image);
+            if (folder.equals(file.getParentFile()))
+                names.add(file.getName());
+        }
+        Set<String> previous = references.get(sketch);
+        if (!complete && previous != null)
+            names.addAll(previous);
+        if (names.equals(previous) || (previous == null && names.isEmpty()))
+            return;
+        if (names.isEmpty())
+            references.remove(sketch);
+        else
+            references.put(sketch, names);
+        store();
+    }
+
+    /**
+     * Makes the images used by a sketch file be also used by another one,
+     * like a backup copy of the sketch.
+     * 
+     * @param from
+     *            the name of the sketch file whose images are copied
+     * @param to
+     *            the name of the sketch file that now uses the same images
+     */
+    public synchronized void copyReferences(String from, String to) {
+        load();
+        Set<String> names = references.get(from);
+        if (names == null || names.equals(references.get(to)))
+            return;
+        references.put(to, new HashSet<String>(names));
+        store();
+    }
+
+    /**
+     * Moves the references to images of a sketch file to the new name of the
+     * file, adding them to those already recorded for that name, if any.
+     * 
+     * @param from
+     *            the name of the sketch file before it was renamed
+     * @param to
+     *            the new name of the sketch file
+     */
+    public synchronized void renameReferences(String from, String to) {
+        load();
+        Set<String> names = references.remove(from);
+        if (names == null)
+            return;
+        Set<String> existing = references.get(to);
+        if (existing != null)
+            names.addAll(existing);
+        references.put(to, names);
+        store();
+    }
+
+    /**
+     * Forgets about all images used by the argument sketch file, which has
+     * been deleted.
+     * 
+     * @param sketch
+     *            the name of the sketch file, without extension
+     */
+    public synchronized void removeReferences(String sketch) {
+        load();
+        if (references.remove(sketch) != null)
+            store();
+    }
+
+    /**
+     * Deletes all images added through the store that are not used by any
+     * sketch file, and that are older than {@link #GRACE_PERIOD}.
+     * 
+     * @return the number of images that were deleted
+     */
+    public synchronized int collectGarbage() {
+        load();
+        File[] files = folder.listFiles();
+        if (files == null || !readable)
+            return 0;
+        Set<String> used = new HashSet<String>();
+        for (Set<String> names : references.values()) {
+            used.addAll(names);
+        }
+        final long oldest = System.currentTimeMillis() - GRACE_PERIOD;
+        int deleted = 0;
+        for (File file : files) {
+            final String name = file.getName();
+            if (isStored(name) && !used.contains(name)
+                    && file.lastModified() < oldest) {
+                if (file.delete())
+                    deleted++;
+                else
+                    Utils.debug("couldn't delete " + file);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns whether the argument file name is that of an image added
+     * through the store, as opposed to images added by older versions.
+     */
+    private static boolean isStored(String name) {
+        if (name.length() != HASH_LENGTH + EXTENSION.length()
+                || !name.endsWith(EXTENSION))
+            return false;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (Character.digit(name.charAt(i), 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        readable = true;
+        if (!referencesFile.exists())
+            return;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(referencesFile));
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(String.valueOf(SEPARATOR));
+                Set<String> names = new HashSet<String>();
+                for (int i = 1; i < fields.length; i++) {
+                    names.add(fields[i]);
+                }
+                references.put(fields[0], names);
+            }
+        } catch (IOException e) {
+            // don't delete images that might still be used
+            readable = false;
+            e.printStackTrace();
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    private void store() {
+        File tmp = new File(folder, REFERENCES_FILE_NAME + ".tmp");
+        try {
+            if (!folder.exists() && !folder.mkdirs())
+                throw new IOException("could not create " + folder);
+            PrintStream ps = new PrintStream(tmp);
+            for (Map.Entry<String, Set<String>> entry : references
+                    .entrySet()) {
+                StringBuilder line = new StringBuilder(entry.getKey());
+                for (String name : entry.getValue()) {
+                    line.append(SEPARATOR).append(name);
+                }
+                ps.println(line);
+            }
+            ps.close();
+            if (ps.checkError() || !tmp.renameTo(referencesFile))
+                throw new IOException("could not write " + referencesFile);
+        } catch (IOException e) {
+            Log.e(CaliSmall.TAG, "could not store image references", e);
+        }
+    }
+}
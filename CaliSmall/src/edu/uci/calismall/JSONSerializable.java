@@ -27,9 +27,14 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
+import java.io.IOException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.util.JsonReader;
+import android.util.JsonWriter;
+
 /**
  * An object that can be serialized to JSON format.
  * 
@@ -56,6 +61,22 @@ public interface JSONSerializable<T> {
      */
     JSONObject toJSON() throws JSONException;
 
+    /**
+     * Serializes this object to JSON format, streaming it to the argument
+     * <tt>writer</tt>.
+     * 
+     * <p>
+     * The output is the same as the one of {@link #toJSON()}, but no
+     * intermediate objects are created, so this is the method to be used when
+     * writing large amounts of data to disk.
+     * 
+     * @param writer
+     *            the writer to which this object must be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    void toJSON(JsonWriter writer) throws IOException;
+
     /**
      * Populates all fields in the argument <tt>newObject</tt> with data
      * retrieved from <tt>jsonData</tt>.
@@ -68,4 +89,23 @@ public interface JSONSerializable<T> {
      *             if anything goes wrong while parsing data from JSON
      */
     T fromJSON(JSONObject jsonData) throws JSONException;
+
+    /**
+     * Populates all fields of this object with data read from the argument
+     * <tt>reader</tt>.
+     * 
+     * <p>
+     * The format is the same as the one read by {@link #fromJSON(JSONObject)},
+     * but objects are built as tokens are read from the stream, so the whole
+     * document never needs to be kept in memory.
+     * 
+     * @param reader
+     *            the reader whose next token is the object to be read
+     * @return the object that was populated with all data coming from the JSON
+     *         representation
+     * @throws IOException
+     *             if anything goes wrong while reading from the stream, or if
+     *             the data is malformed
+     */
+    T fromJSON(JsonReader reader) throws IOException;
 }
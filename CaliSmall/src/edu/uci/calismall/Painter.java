@@ -27,9 +27,6 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-
 import android.graphics.Canvas;
 import android.view.SurfaceHolder;
 
@@ -50,9 +47,6 @@ public class Painter implements Runnable {
     public static final long SCREEN_REFRESH_TIME = 20;
     private final SurfaceHolder holder;
     private final CaliView view;
-    private Lock lock;
-    private Condition fileOpened, drawingThreadWaiting;
-    private boolean waitForFileOpen, drawingThreadSleeping;
 
     /**
      * Creates a new painter that will retrieve a {@link Canvas} from the
@@ -80,9 +74,7 @@ public class Painter implements Runnable {
                 if (canvas != null) {
                     view.drawView(canvas);
                 }
-                if (waitForFileOpen) {
-                    waitForFileOpen();
-                }
+                view.drawRequestedScreen();
             } catch (IllegalArgumentException e) {
                 // activity sent to bg, don't care
             } finally {
@@ -104,51 +96,4 @@ public class Painter implements Runnable {
         }
     }
 
-    /**
-     * Requests for the {@link Painter} thread to stop drawing the associated
-     * {@link CaliView} until the file opener thread is done.
-     * 
-     * @param lock
-     *            the lock that must be acquired to communicate with the opener
-     *            thread
-     * @param waitingCondition
-     *            the condition on which the painter must
-     *            {@link Condition#await()}
-     * @param signalCondition
-     *            the condition that the painter must {@link Condition#signal()}
-     *            right before going to sleep
-     */
-    void stopForFileOpen(Lock lock, Condition waitingCondition,
-            Condition signalCondition) {
-        this.lock = lock;
-        fileOpened = waitingCondition;
-        drawingThreadWaiting = signalCondition;
-        waitForFileOpen = true;
-    }
-
-    /**
-     * Returns whether this painter is currently waiting for the opener thread
-     * to be done.
-     * 
-     * @return <code>true</code> if this thread is currently sleeping
-     */
-    boolean isWaiting() {
-        return drawingThreadSleeping;
-    }
-
-    private void waitForFileOpen() {
-        try {
-            lock.lock();
-            drawingThreadSleeping = true;
-            drawingThreadWaiting.signalAll();
-            fileOpened.await();
-            waitForFileOpen = false;
-            drawingThreadSleeping = false;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            lock.unlock();
-        }
-    }
-
 }
@@ -0,0 +1,342 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list that shares most of its structure with the lists it's
+ * derived from.
+ * 
+ * <p>
+ * Elements are stored in chunks of at most {@link #CHUNK_SIZE} elements that
+ * are never changed once the list is created. Adding elements only copies the
+ * last chunk, and removing elements only copies the chunks that contained
+ * them, while all other chunks are shared between the old and the new list.
+ * This way the drawing thread can publish a new version of a list every time
+ * elements are added or deleted, while other threads keep reading the version
+ * they grabbed for as long as they need, without locking and without ever
+ * getting a {@link java.util.ConcurrentModificationException}.
+ * 
+ * <p>
+ * All methods inherited from {@link List} that would change the list throw an
+ * {@link UnsupportedOperationException}: use {@link #plus(Object)},
+ * {@link #plusAll(Collection)} and {@link #minusAll(Collection)} instead.
+ * 
+ * @param <T>
+ *            the type of elements in this list
+ */
+public final class PersistentList<T> extends AbstractList<T> implements
+        RandomAccess {
+
+    /**
+     * The maximum number of elements in a chunk.
+     */
+    public static final int CHUNK_SIZE = 64;
+    private static final int CHUNK_SHIFT = 6;
+    private static final Object[][] NO_CHUNKS = new Object[0][];
+    private static final PersistentList<Object> EMPTY =
+            new PersistentList<Object>(NO_CHUNKS, new int[] { 0 });
+
+    private final Object[][] chunks;
+    /**
+     * The index of the first element of each chunk, plus the size of the list
+     * as last entry.
+     */
+    private final int[] offsets;
+    /**
+     * Whether all chunks but the last one are full, so that the chunk holding
+     * an element can be found without searching for it.
+     */
+    private final boolean dense;
+
+    private PersistentList(Object[][] chunks, int[] offsets) {
+        this.chunks = chunks;
+        this.offsets = offsets;
+        boolean full = true;
+        for (int i = 0; i < chunks.length - 1 && full; i++) {
+            full = chunks[i].length == CHUNK_SIZE;
+        }
+        dense = full;
+    }
+
+    /**
+     * Returns the empty list.
+     * 
+     * @param <T>
+     *            the type of elements in the list
+     * @return an empty list
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentList<T> empty() {
+        return (PersistentList<T>) EMPTY;
+    }
+
+    /**
+     * Returns a list containing all of the argument elements, in the order in
+     * which they're returned by the collection's iterator.
+     * 
+     * @param <T>
+     *            the type of elements in the list
+     * @param elements
+     *            the elements to be copied
+     * @return a new list
+     */
+    public static <T> PersistentList<T> copyOf(
+            Collection<? extends T> elements) {
+        return PersistentList.<T> empty().plusAll(elements);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractList#get(int)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public T get(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("index " + index + ", size "
+                    + size());
+        int chunk;
+        if (dense) {
+            chunk = index >> CHUNK_SHIFT;
+        } else {
+            chunk = Arrays.binarySearch(offsets, 0, chunks.length, index);
+            if (chunk < 0)
+                // not the first element of a chunk, so it's in the previous one
+                chunk = -chunk - 2;
+        }
+        return (T) chunks[chunk][index - offsets[chunk]];
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        return offsets[chunks.length];
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractList#iterator()
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new ChunkIterator();
+    }
+
+    /**
+     * Returns a new list with the argument element appended to the elements of
+     * this list.
+     * 
+     * @param element
+     *            the element to be added
+     * @return a new list, this list is not changed
+     */
+    public PersistentList<T> plus(T element) {
+        return plusAll(Collections.singletonList(element));
+    }
+
+    /**
+     * Returns a new list with the argument elements appended to the elements
+     * of this list.
+     * 
+     * <p>
+     * Only the last chunk of this list is copied.
+     * 
+     * @param elements
+     *            the elements to be added
+     * @return a new list, or this list if <tt>elements</tt> is empty
+     */
+    public PersistentList<T> plusAll(Collection<? extends T> elements) {
+        if (elements.isEmpty())
+            return this;
+        final Object[] added = elements.toArray();
+        int kept = chunks.length;
+        int carried = 0;
+        if (kept > 0 && chunks[kept - 1].length < CHUNK_SIZE) {
+            // the last chunk is merged with the new elements
+            kept--;
+            carried = chunks[kept].length;
+        }
+        final int total = carried + added.length;
+        final int newChunks = (total + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        Object[][] newList = new Object[kept + newChunks][];
+        int[] newOffsets = new int[newList.length + 1];
+        System.arraycopy(chunks, 0, newList, 0, kept);
+        System.arraycopy(offsets, 0, newOffsets, 0, kept + 1);
+        for (int i = 0; i < newChunks; i++) {
+            final int first = i * CHUNK_SIZE;
+            Object[] chunk = new Object[Math.min(CHUNK_SIZE, total - first)];
+            for (int j = 0; j < chunk.length; j++) {
+                final int index = first + j;
+                chunk[j] = index < carried ? chunks[kept][index]
+                        : added[index - carried];
+            }
+            newList[kept + i] = chunk;
+            newOffsets[kept + i + 1] = newOffsets[kept + i] + chunk.length;
+        }
+        return new PersistentList<T>(newList, newOffsets);
+    }
+
+    /**
+     * Returns a new list containing all elements of this list that are not in
+     * the argument collection.
+     * 
+     * <p>
+     * Only chunks that contain removed elements are copied. Chunks that become
+     * small are merged with the previous one, if the two fit in one chunk.
+     * 
+     * @param removed
+     *            the elements to be removed, which should be a
+     *            {@link java.util.Set} unless very few elements are removed
+     * @return a new list, or this list if none of the elements is in it
+     */
+    public PersistentList<T> minusAll(Collection<?> removed) {
+        if (removed.isEmpty() || chunks.length == 0)
+            return this;
+        Object[][] newList = null;
+        int count = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            final Object[] chunk = chunks[i];
+            Object[] filtered = filter(chunk, removed);
+            if (filtered == chunk && newList == null)
+                continue;
+            if (newList == null) {
+                // first change, copy all the chunks before this one
+                newList = new Object[chunks.length][];
+                System.arraycopy(chunks, 0, newList, 0, i);
+                count = i;
+            }
+            if (filtered.length == 0)
+                continue;
+            if (filtered != chunk && count > 0
+                    && fits(newList[count - 1], filtered)) {
+                newList[count - 1] = concat(newList[count - 1], filtered);
+            } else {
+                newList[count++] = filtered;
+            }
+        }
+        if (newList == null)
+            return this;
+        Object[][] trimmed = new Object[count][];
+        int[] newOffsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            trimmed[i] = newList[i];
+            newOffsets[i + 1] = newOffsets[i] + trimmed[i].length;
+        }
+        return new PersistentList<T>(trimmed, newOffsets);
+    }
+
+    private static Object[] filter(Object[] chunk, Collection<?> removed) {
+        int kept = 0;
+        Object[] filtered = null;
+        for (int i = 0; i < chunk.length; i++) {
+            if (removed.contains(chunk[i])) {
+                if (filtered == null) {
+                    filtered = new Object[chunk.length - 1];
+                    System.arraycopy(chunk, 0, filtered, 0, i);
+                    kept = i;
+                }
+            } else if (filtered != null) {
+                filtered[kept++] = chunk[i];
+            }
+        }
+        if (filtered == null)
+            return chunk;
+        return Arrays.copyOf(filtered, kept);
+    }
+
+    private static boolean fits(Object[] first, Object[] second) {
+        return first.length + second.length <= CHUNK_SIZE;
+    }
+
+    private static Object[] concat(Object[] first, Object[] second) {
+        Object[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /**
+     * Walks through chunks in order, without looking up every element.
+     */
+    private class ChunkIterator implements Iterator<T> {
+
+        private int chunk, index;
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Iterator#hasNext()
+         */
+        @Override
+        public boolean hasNext() {
+            return chunk < chunks.length;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Iterator#next()
+         */
+        @SuppressWarnings("unchecked")
+        @Override
+        public T next() {
+            if (chunk >= chunks.length)
+                throw new NoSuchElementException();
+            final Object next = chunks[chunk][index++];
+            if (index == chunks[chunk].length) {
+                chunk++;
+                index = 0;
+            }
+            return (T) next;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Iterator#remove()
+         */
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("lists are immutable");
+        }
+    }
+}
@@ -27,12 +27,17 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.RectF;
+import android.util.JsonWriter;
 
 /**
  * A rectangular stroke.
@@ -78,10 +83,15 @@ public class RectStroke extends Stroke {
     /**
      * Creates a clone of the argument <tt>RectStroke</tt>, copying its content.
      * 
+     * <p>
+     * A plain {@link Stroke} can be passed as argument as well, as long as its
+     * four points describe a rectangle (this is the case for borders of images
+     * stored by old versions of CaliSmall).
+     * 
      * @param clone
      *            the stroke to be cloned
      */
-    RectStroke(RectStroke clone) {
+    RectStroke(Stroke clone) {
         super(clone.parentView);
         if (clone.points.size() > 0) {
             PointF start = clone.points.get(0);
@@ -103,6 +113,60 @@ public class RectStroke extends Stroke {
         path.close();
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#restorePoints(java.util.List)
+     */
+    @Override
+    protected void restorePoints(List<PointF> newPoints) {
+        setStart(newPoints.get(0));
+        for (int i = 1; i < newPoints.size(); i++)
+            points.add(newPoints.get(i));
+        createPath();
+        setBoundaries();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#getOutline()
+     */
+    @Override
+    protected List<PointF> getOutline() {
+        // pieces are plain strokes, which round their corners off: points
+        // right next to every corner keep them sharp
+        final float guard = Math.max(strokeWidth / 2, 1);
+        final int size = points.size();
+        List<PointF> outline = new ArrayList<PointF>(size * 3 + 1);
+        for (int i = 0; i <= size; i++) {
+            PointF corner = points.get(i % size);
+            if (i > 0)
+                outline.add(towards(corner, points.get(i - 1), guard));
+            outline.add(new PointF(corner.x, corner.y));
+            if (i < size)
+                outline.add(towards(corner, points.get((i + 1) % size), guard));
+        }
+        return outline;
+    }
+
+    private static PointF towards(PointF from, PointF to, float distance) {
+        final float length = Utils.getDistance(from, to);
+        final float t = length > 0 ? Math.min(distance / length, 0.5f) : 0;
+        return new PointF(from.x + t * (to.x - from.x), from.y + t
+                * (to.y - from.y));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#isClosed()
+     */
+    @Override
+    protected boolean isClosed() {
+        return true;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -115,6 +179,27 @@ public class RectStroke extends Stroke {
         return json;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#getType()
+     */
+    @Override
+    public ElementType getType() {
+        return ElementType.RECT_STROKE;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#writeFields(android.util.JsonWriter)
+     */
+    @Override
+    protected void writeFields(JsonWriter writer) throws IOException {
+        super.writeFields(writer);
+        writer.name("rect").value(true);
+    }
+
     /*
      * (non-Javadoc)
      * 
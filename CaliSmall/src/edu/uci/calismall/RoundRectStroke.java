@@ -27,13 +27,19 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.graphics.Paint.Style;
 import android.graphics.Path;
+import android.graphics.PathMeasure;
 import android.graphics.PointF;
 import android.graphics.RectF;
+import android.util.JsonWriter;
 
 /**
  * A rounded rect stroke.
@@ -47,6 +53,12 @@ import android.graphics.RectF;
  */
 public class RoundRectStroke extends Stroke {
 
+    /**
+     * How many points {@link #getOutline()} returns along every portion of the
+     * path that is as long as the corner radius.
+     */
+    private static final int OUTLINE_STEPS_PER_RADIUS = 4;
+
     /**
      * Empty constructor used when creating objects from deserialization.
      * 
@@ -125,6 +137,55 @@ public class RoundRectStroke extends Stroke {
         path.close();
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#getOutline()
+     */
+    @Override
+    protected List<PointF> getOutline() {
+        // corner points are control points that are not on the path, so the
+        // path itself is walked
+        PathMeasure measure = new PathMeasure(path, true);
+        final float length = measure.getLength();
+        final float radius = Utils.getDistance(points.get(0), points.get(1));
+        final int steps = Math.max(4, (int) Math.ceil(length
+                / Math.max(radius / OUTLINE_STEPS_PER_RADIUS, 1)));
+        List<PointF> outline = new ArrayList<PointF>(steps + 1);
+        float[] position = new float[2];
+        for (int i = 0; i < steps; i++) {
+            measure.getPosTan(length * i / steps, position, null);
+            outline.add(new PointF(position[0], position[1]));
+        }
+        PointF start = outline.get(0);
+        outline.add(new PointF(start.x, start.y));
+        return outline;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#isClosed()
+     */
+    @Override
+    protected boolean isClosed() {
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#restorePoints(java.util.List)
+     */
+    @Override
+    protected void restorePoints(List<PointF> newPoints) {
+        path.reset();
+        points.clear();
+        points.addAll(newPoints);
+        createPath();
+        setBoundaries();
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -137,6 +198,27 @@ public class RoundRectStroke extends Stroke {
         return json;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#getType()
+     */
+    @Override
+    public ElementType getType() {
+        return ElementType.ROUND_RECT_STROKE;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see edu.uci.calismall.Stroke#writeFields(android.util.JsonWriter)
+     */
+    @Override
+    protected void writeFields(JsonWriter writer) throws IOException {
+        super.writeFields(writer);
+        writer.name("r").value(true);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -144,11 +226,10 @@ public class RoundRectStroke extends Stroke {
      */
     @Override
     public RoundRectStroke fromJSON(JSONObject jsonData) throws JSONException {
-        try {
+        if (jsonData.has("id"))
             id = jsonData.getLong("id");
-        } catch (JSONException e) {
+        else
             Utils.debug("old format!");
-        }
         color = jsonData.getInt("c");
         strokeWidth = (float) jsonData.getDouble("w");
         style = Style.valueOf(jsonData.getString("s"));
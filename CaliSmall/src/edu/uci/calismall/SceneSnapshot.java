@@ -0,0 +1,267 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable copy of all elements in a sketch, that background threads can
+ * save while users keep drawing.
+ * 
+ * <p>
+ * Snapshots are taken by the drawing thread between two frames (see
+ * {@link CaliView#captureScene()}), so they never contain half-applied
+ * changes. Elements are stored as their binary records (see
+ * {@link SketchFormat}); every element caches its last record and only
+ * encodes it again after it's been modified, so taking a snapshot costs a
+ * pass over the element references plus the encoding of changed elements,
+ * and records of unchanged elements are shared by all snapshots.
+ * 
+ * <p>
+ * Snapshots are written as tiled sketches: records are grouped by the tile
+ * containing the center of the element's outermost parent, as described in
+ * {@link SketchFormat}.
+ */
+public class SceneSnapshot {
+
+    private final float width, height;
+    private final long version;
+    private final long[] ids;
+    private final ByteBuffer[] records;
+    private final float[] centerXs, centerYs;
+    private final List<String> images;
+    private int size;
+    private boolean complete;
+
+    /**
+     * Creates a new, empty snapshot.
+     * 
+     * @param width
+     *            the width of the drawable canvas
+     * @param height
+     *            the height of the drawable canvas
+     * @param capacity
+     *            the number of elements that will be added to the snapshot
+     * @param version
+     *            the edit version of the view when the snapshot was taken
+     */
+    SceneSnapshot(float width, float height, int capacity, long version) {
+        this.width = width;
+        this.height = height;
+        this.version = version;
+        ids = new long[capacity];
+        records = new ByteBuffer[capacity];
+        centerXs = new float[capacity];
+        centerYs = new float[capacity];
+        images = new ArrayList<String>();
+        complete = true;
+    }
+
+    /**
+     * Adds the current state of the argument element to this snapshot.
+     * 
+     * @param element
+     *            the element to be added
+     * @throws IOException
+     *             if the element cannot be encoded
+     */
+    void add(CaliSmallElement element) throws IOException {
+        CaliSmallElement root = element;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        put(element.getID(), element.getRecord(), root.bounds.centerX(),
+                root.bounds.centerY());
+        if (element instanceof ImageScrap)
+            images.add(((ImageScrap) element).getImagePath());
+    }
+
+    /**
+     * Adds an element that is only available as a record to this snapshot.
+     * 
+     * @param id
+     *            the ID of the element
+     * @param record
+     *            the binary record of the element
+     * @param centerX
+     *            the X coordinate of the point used to assign the element to
+     *            a tile
+     * @param centerY
+     *            the Y coordinate of the point used to assign the element to
+     *            a tile
+     */
+    void addRecord(long id, ByteBuffer record, float centerX, float centerY) {
+        if (record.get(0) == SketchFormat.IMAGE_SCRAP)
+            // the image of a record that was never decoded is not known
+            complete = false;
+        put(id, record, centerX, centerY);
+    }
+
+    private void put(long id, ByteBuffer record, float centerX, float centerY) {
+        ids[size] = id;
+        records[size] = record;
+        centerXs[size] = centerX;
+        centerYs[size] = centerY;
+        size++;
+    }
+
+    /**
+     * Returns the paths of the images shown by all {@link ImageScrap}'s in
+     * this snapshot.
+     * 
+     * @return the absolute paths to the images, which may be incomplete (see
+     *         {@link #hasAllImages()})
+     */
+    public List<String> getImages() {
+        return images;
+    }
+
+    /**
+     * Returns whether {@link #getImages()} lists the images of all scraps in
+     * this snapshot, which is not the case if some of the image scraps were
+     * not loaded from file yet.
+     * 
+     * @return <code>true</code> if all images are known
+     */
+    public boolean hasAllImages() {
+        return complete;
+    }
+
+    /**
+     * Returns the width of the drawable canvas when this snapshot was taken.
+     * 
+     * @return the width of the canvas
+     */
+    public float getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the drawable canvas when this snapshot was taken.
+     * 
+     * @return the height of the canvas
+     */
+    public float getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the edit version of the view at the time this snapshot was
+     * taken: all changes up to that version are in the snapshot.
+     * 
+     * @return the edit version of the snapshot
+     * @see CaliView#getEditVersion()
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the number of elements in this snapshot.
+     * 
+     * @return the number of elements
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ID of the element at the argument position.
+     * 
+     * @param index
+     *            the position of the element within this snapshot
+     * @return the ID of the element
+     */
+    public long getID(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Returns the binary record of the element at the argument position.
+     * 
+     * <p>
+     * The returned buffer is shared by all snapshots in which the element is
+     * unchanged, so two snapshots contain the same version of an element if
+     * and only if this method returns the same buffer for it. The buffer must
+     * not be modified: use {@link ByteBuffer#duplicate()} to read it.
+     * 
+     * @param index
+     *            the position of the element within this snapshot
+     * @return the record of the element, starting with the byte identifying
+     *         the record type
+     */
+    public ByteBuffer getRecord(int index) {
+        return records[index];
+    }
+
+    /**
+     * Writes this snapshot as a complete, tiled sketch file.
+     * 
+     * @param out
+     *            the output to which the sketch is written
+     * @throws IOException
+     *             if anything goes wrong while writing
+     */
+    public void writeTo(SketchOutput out) throws IOException {
+        final float tileSize = SketchFormat.TILE_SIZE;
+        final int columns = Math.max(1, (int) Math.ceil(width / tileSize));
+        final int rows = Math.max(1, (int) Math.ceil(height / tileSize));
+        final int[] counts = new int[columns * rows];
+        final int[] tiles = new int[size];
+        for (int i = 0; i < size; i++) {
+            final int column = clamp((int) (centerXs[i] / tileSize), columns);
+            final int row = clamp((int) (centerYs[i] / tileSize), rows);
+            tiles[i] = row * columns + column;
+            counts[tiles[i]]++;
+        }
+        final int[] firstRecords = new int[counts.length];
+        for (int tile = 1; tile < counts.length; tile++) {
+            firstRecords[tile] = firstRecords[tile - 1] + counts[tile - 1];
+        }
+        // a stable counting sort, elements keep their order within tiles
+        final int[] order = new int[size];
+        final int[] next = firstRecords.clone();
+        for (int i = 0; i < size; i++) {
+            order[next[tiles[i]]++] = i;
+        }
+        out.writeHeader(width, height, SketchFormat.FLAG_TILED);
+        out.writeTileDirectory(tileSize, columns, rows, firstRecords, counts);
+        for (int i = 0; i < size; i++) {
+            out.writeRecord(ids[order[i]], records[order[i]]);
+        }
+        out.finish();
+    }
+
+    private static int clamp(int value, int count) {
+        // NaN's are cast to 0
+        return Math.max(0, Math.min(count - 1, value));
+    }
+}
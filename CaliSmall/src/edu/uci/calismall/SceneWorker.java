@@ -0,0 +1,304 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the expensive parts of editing operations (finding the elements within
+ * a lasso, finding the new parents of elements that were moved) away from the
+ * drawing thread.
+ * 
+ * <p>
+ * A {@link Job} is split in two halves: {@link Job#compute()} runs on a pool
+ * thread and must only <i>read</i> the scene, collecting its results within
+ * the job itself, while {@link Job#publish()} runs on the drawing thread at
+ * the beginning of a frame, when {@link #publishFinished()} is called, and is
+ * the only place where the scene can be changed. Jobs with a higher priority
+ * are started first; jobs that are {@link Job#cancel()}'d before being
+ * published are simply dropped.
+ * 
+ * <p>
+ * Elements are changed by the drawing thread while jobs are computed, so jobs
+ * should only read copies of what they need, like {@link ElementShape}'s,
+ * taken when they're created. Results may still be outdated: code that is
+ * about to change what a pending job looked at must either cancel the job or
+ * {@link #finish(Job)} it first.
+ */
+public class SceneWorker {
+
+    /**
+     * The priority of jobs whose results the user is waiting for, like the
+     * content of a new selection.
+     */
+    public static final int PRIORITY_SELECTION = 2;
+    /**
+     * The priority of jobs that only fix the structure of the scene, like the
+     * new parents of elements that were moved.
+     */
+    public static final int PRIORITY_PARENTING = 1;
+    private static final int POOL_SIZE = Math.max(1, Math.min(2, Runtime
+            .getRuntime().availableProcessors() - 1));
+    private static final long IDLE_THREAD_TIMEOUT = 5;
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+            POOL_SIZE, POOL_SIZE, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>());
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    static {
+        // don't keep threads around when nothing is being edited
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A piece of work to be run by a {@link SceneWorker}.
+     */
+    public abstract static class Job implements Runnable, Comparable<Job> {
+
+        private final int priority;
+        private final long sequence;
+        private SceneWorker worker;
+        private volatile boolean cancelled, computed, published;
+        private volatile float progress;
+
+        /**
+         * Creates a new job.
+         * 
+         * @param priority
+         *            the priority of the job, jobs with a higher priority are
+         *            started first
+         */
+        protected Job(int priority) {
+            this.priority = priority;
+            sequence = SEQUENCE.getAndIncrement();
+        }
+
+        /**
+         * Computes the results of this job without changing the scene.
+         * 
+         * <p>
+         * Called by a pool thread, or by the drawing thread if the results
+         * are needed through {@link SceneWorker#finish(Job)} before a pool
+         * thread got to them. Long computations should check
+         * {@link #isCancelled()} every now and then and report their
+         * progress through {@link #setProgress(int, int)}.
+         */
+        protected abstract void compute();
+
+        /**
+         * Applies the results of this job to the scene. Called by the drawing
+         * thread, between two frames.
+         */
+        protected abstract void publish();
+
+        /**
+         * Discards this job: if it hasn't been published yet, it never will.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Returns whether this job has been cancelled.
+         * 
+         * @return <code>true</code> if {@link #cancel()} has been called
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Updates the progress of this job.
+         * 
+         * @param done
+         *            the number of work items that have been processed so far
+         * @param total
+         *            the total number of work items
+         */
+        protected void setProgress(int done, int total) {
+            progress = total > 0 ? (float) done / total : 1;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public final void run() {
+            synchronized (this) {
+                if (!cancelled && !published && !computed) {
+                    compute();
+                    computed = !cancelled;
+                }
+            }
+            worker.finished.add(this);
+        }
+
+        /**
+         * Publishes this job, computing it first if no pool thread did it.
+         * Must be called by the drawing thread.
+         */
+        private void complete() {
+            if (cancelled || published)
+                return;
+            synchronized (this) {
+                if (!computed) {
+                    compute();
+                    computed = true;
+                }
+                published = true;
+            }
+            progress = 1;
+            publish();
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        @Override
+        public int compareTo(Job another) {
+            if (priority != another.priority)
+                return priority > another.priority ? -1 : 1;
+            if (sequence == another.sequence)
+                return 0;
+            return sequence < another.sequence ? -1 : 1;
+        }
+    }
+
+    private final Queue<Job> finished;
+    private final List<Job> pending;
+
+    /**
+     * Creates a new worker.
+     */
+    public SceneWorker() {
+        finished = new ConcurrentLinkedQueue<Job>();
+        pending = new ArrayList<Job>();
+    }
+
+    /**
+     * Schedules the argument job to be computed by a pool thread.
+     * 
+     * @param job
+     *            the job to be run, whose results will be published by the
+     *            first call to {@link #publishFinished()} after it's done
+     */
+    public void submit(Job job) {
+        job.worker = this;
+        synchronized (pending) {
+            pending.add(job);
+        }
+        POOL.execute(job);
+    }
+
+    /**
+     * Publishes all jobs that have been computed since the last call, in the
+     * order in which they completed. Must be called by the drawing thread.
+     */
+    public void publishFinished() {
+        Job job;
+        while ((job = finished.poll()) != null) {
+            done(job);
+            job.complete();
+        }
+    }
+
+    /**
+     * Publishes the argument job right away, computing it on the calling
+     * thread if no pool thread is done with it yet. Must be called by the
+     * drawing thread before changing anything that the job depends on.
+     * 
+     * <p>
+     * Does nothing if the job was cancelled or has already been published.
+     * 
+     * @param job
+     *            the job to be completed
+     */
+    public void finish(Job job) {
+        done(job);
+        job.complete();
+    }
+
+    /**
+     * Cancels all jobs that haven't been published yet.
+     */
+    public void cancelAll() {
+        synchronized (pending) {
+            for (Job job : pending) {
+                job.cancel();
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Returns whether any job hasn't been published or cancelled yet.
+     * 
+     * @return <code>true</code> if there is work in progress
+     */
+    public boolean isBusy() {
+        synchronized (pending) {
+            return !pending.isEmpty();
+        }
+    }
+
+    /**
+     * Returns how much of the pending work has been done.
+     * 
+     * @return a value between <tt>0</tt> and <tt>1</tt>, the average progress
+     *         of all jobs that haven't been published yet, or <tt>1</tt> if
+     *         there are none
+     */
+    public float getProgress() {
+        synchronized (pending) {
+            if (pending.isEmpty())
+                return 1;
+            float sum = 0;
+            for (Job job : pending) {
+                sum += job.progress;
+            }
+            return sum / pending.size();
+        }
+    }
+
+    private void done(Job job) {
+        synchronized (pending) {
+            pending.remove(job);
+        }
+    }
+}
@@ -27,7 +27,9 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -48,6 +50,8 @@ import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.shapes.RoundRectShape;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 import android.view.View;
 
 /**
@@ -65,7 +69,8 @@ import android.view.View;
  * 
  * @author Michele Bonazza
  */
-public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
+public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap>,
+        BinarySerializable<Scrap> {
 
     /**
      * The paint object in use when drawing the bitmap snapshot of this scrap.
@@ -113,6 +118,12 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
      */
     protected List<String> scrapIDs;
 
+    /**
+     * IDs of all strokes belonging to this scrap. Only used when creating a
+     * Scrap from a JSON stream, since strokes may be read after their scrap.
+     */
+    protected List<String> strokeIDs;
+
     /**
      * The enclosing border of this scrap.
      */
@@ -122,6 +133,20 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
      * scrap.
      */
     protected Bitmap snapshot;
+    /**
+     * The owner of {@link #snapshot} in the view's {@link BitmapBudget}, which
+     * drops the snapshot unless the scrap is being edited.
+     */
+    protected final BitmapBudget.Holder snapshotHolder =
+            new BitmapBudget.Holder() {
+                public long evict() {
+                    if (topLevelForEdit)
+                        // it's on screen right now
+                        return BitmapBudget.sizeOf(snapshot);
+                    snapshot = null;
+                    return 0;
+                }
+            };
     /**
      * The color with which to fill the area of this scrap.
      */
@@ -259,6 +284,7 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
             stroke.previousParent = null;
             // refresh the snapshot the next time!
             contentChanged = true;
+            modified();
         }
     }
 
@@ -276,20 +302,44 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
         }
         // refresh the snapshot the next time!
         contentChanged = true;
+        modified();
     }
 
     /**
-     * Adds all scraps that are children of this scrap according to the data
-     * stored by JSON.
+     * Adds all scraps (and strokes, if read from a JSON stream) that are
+     * children of this scrap according to the data stored by JSON.
      * 
      * <p>
      * After adding all children scraps, this method clears the list of Strings
      * parsed by JSON to save space.
      */
     public void addChildrenFromJSON() {
+        addChildrenFromJSON(parentView.getStrokeList(),
+                parentView.getScrapList());
+    }
+
+    /**
+     * Adds all scraps (and strokes, if read from a JSON stream) that are
+     * children of this scrap according to the data stored by JSON, looking
+     * them up in the argument lists rather than in those of the parent view.
+     * 
+     * @param allStrokes
+     *            the list in which child strokes are looked up
+     * @param allScraps
+     *            the list in which child scraps are looked up
+     */
+    void addChildrenFromJSON(SpaceOccupationList<Stroke> allStrokes,
+            SpaceOccupationList<Scrap> allScraps) {
+        if (strokeIDs != null) {
+            for (String id : strokeIDs) {
+                Stroke stroke = allStrokes.getById(id);
+                add(stroke);
+            }
+            strokeIDs = null;
+        }
         if (scrapIDs != null) {
             for (String id : scrapIDs) {
-                Scrap scrap = parentView.getScrapList().getById(id);
+                Scrap scrap = allScraps.getById(id);
                 add(scrap);
             }
             scrapIDs = null;
@@ -310,6 +360,7 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
             scrap.previousParent = null;
             // refresh the snapshot the next time!
             contentChanged = true;
+            modified();
         }
     }
 
@@ -325,6 +376,7 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
             stroke.previousParent = this;
             // refresh the snapshot the next time!
             contentChanged = true;
+            modified();
         }
     }
 
@@ -342,6 +394,7 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
             scrap.previousParent = this;
             // refresh the snapshot the next time!
             contentChanged = true;
+            modified();
         }
     }
 
@@ -657,6 +710,7 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
     public Stroke deselect() {
         // free up some space
         snapshot = null;
+        parentView.getBitmapBudget().release(snapshotHolder);
         return null;
     }
 
@@ -674,18 +728,54 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
         delete();
         mustBeDrawnVectorially(false);
         outerBorder.delete();
-        for (Stroke stroke : getAllStrokes()) {
-            stroke.delete();
-            if (stroke.parent != null) {
-                Scrap parentScrap = (Scrap) stroke.parent;
-                parentScrap.remove(stroke);
+        // the whole subtree goes away, so children are unlinked by clearing
+        // the lists they're in rather than by removing them one at a time
+        List<Scrap> subtree = getAllScraps();
+        subtree.add(this);
+        for (Scrap scrap : subtree) {
+            for (Stroke stroke : scrap.strokes) {
+                if (!stroke.hasToBeDeleted())
+                    stroke.delete();
+                stroke.parent = null;
+                stroke.previousParent = scrap;
+            }
+            for (Scrap child : scrap.scraps) {
+                child.delete();
+                child.parent = null;
+                child.previousParent = scrap;
             }
         }
-        for (Scrap scrap : getAllScraps()) {
-            scrap.delete();
-            if (scrap.parent != null) {
-                Scrap parentScrap = (Scrap) scrap.parent;
-                parentScrap.remove(scrap);
+        for (Scrap scrap : subtree) {
+            scrap.strokes.clear();
+            scrap.scraps.clear();
+        }
+    }
+
+    /**
+     * Adds all scraps and strokes that are descendants of this scrap and that
+     * haven't been deleted to the argument collections.
+     * 
+     * <p>
+     * Unlike {@link #getAllStrokes()} this method doesn't change this scrap,
+     * so it's used when taking the {@link ElementShape} of this scrap.
+     * 
+     * @param allScraps
+     *            the collection to which descendant scraps are added
+     * @param allStrokes
+     *            the collection to which descendant strokes are added
+     */
+    void collectContent(Collection<? super Scrap> allScraps,
+            Collection<? super Stroke> allStrokes) {
+        for (int i = 0; i < strokes.size(); i++) {
+            Stroke stroke = strokes.get(i);
+            if (!stroke.hasToBeDeleted())
+                allStrokes.add(stroke);
+        }
+        for (int i = 0; i < scraps.size(); i++) {
+            Scrap scrap = scraps.get(i);
+            if (!scrap.hasToBeDeleted()) {
+                allScraps.add(scrap);
+                scrap.collectContent(allScraps, allStrokes);
             }
         }
     }
@@ -819,8 +909,9 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
         snapOffsetY = size.top;
         if (contentChanged || snapshot == null) {
             // create a new bitmap as large as the scrap
-            Bitmap snapshot = Bitmap.createBitmap(size.width(), size.height(),
-                    Config.ARGB_8888);
+            Bitmap snapshot = parentView.getBitmapBudget().create(
+                    snapshotHolder, BitmapBudget.SELECTED, size.width(),
+                    size.height(), Config.ARGB_8888, false);
             // move the bitmap over the scrap
             Canvas snapshotCanvas = new Canvas(snapshot);
             snapshotCanvas.translate(-snapOffsetX, -snapOffsetY);
@@ -954,6 +1045,7 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
     @Override
     public JSONObject toJSON() throws JSONException {
         JSONObject json = new JSONObject();
+        json.put(ElementType.TAG_KEY, getType().getTag());
         json.put("id", id);
         json.put("b", outerBorder.toJSON());
         JSONArray array = new JSONArray();
@@ -973,6 +1065,53 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
         return json;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.JSONSerializable#toJSON(android.util.JsonWriter)
+     */
+    @Override
+    public void toJSON(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writeFields(writer);
+        writer.endObject();
+    }
+
+    /**
+     * Writes all of the fields of this scrap to the argument <tt>writer</tt>,
+     * which must have already begun writing the object for this scrap.
+     * 
+     * <p>
+     * Subclasses that need to store more information should override this
+     * method, calling the superclass implementation first.
+     * 
+     * @param writer
+     *            the writer to which fields must be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    protected void writeFields(JsonWriter writer) throws IOException {
+        writer.name(ElementType.TAG_KEY).value(getType().getTag());
+        writer.name("id").value(id);
+        writer.name("b");
+        outerBorder.toJSON(writer);
+        if (!strokes.isEmpty()) {
+            writer.name("str").beginArray();
+            for (int i = 0; i < strokes.size(); i++) {
+                writer.value(strokes.get(i).id);
+            }
+            writer.endArray();
+        }
+        if (!scraps.isEmpty()) {
+            writer.name("scr").beginArray();
+            for (int i = 0; i < scraps.size(); i++) {
+                writer.value(scraps.get(i).id);
+            }
+            writer.endArray();
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -980,37 +1119,277 @@ public class Scrap extends CaliSmallElement implements JSONSerializable<Scrap> {
      */
     @Override
     public Scrap fromJSON(JSONObject jsonData) throws JSONException {
-        try {
-            jsonData.getBoolean("i");
-            // an ImageStroke, update its boundaries once image is loaded
-            return new ImageScrap(parentView).fromJSON(jsonData);
-        } catch (JSONException e) {
-            // not an ImageStroke
-            id = jsonData.getLong("id");
-            JSONObject border = jsonData.getJSONObject("b");
-            if (border.has("r")) {
-                outerBorder = new RoundRectStroke(parentView).fromJSON(border);
-            } else
-                outerBorder = new Stroke(parentView).fromJSON(border);
-            try {
-                JSONArray array = jsonData.getJSONArray("str");
-                for (int i = 0; i < array.length(); i++) {
-                    Stroke stroke = parentView.getStrokeList().getById(
-                            array.getString(i));
-                    add(stroke);
-                }
-            } catch (JSONException e1) { /* it's ok, no strokes */
+        final ElementType type = typeOf(jsonData);
+        Scrap scrap = newScrap(type);
+        if (scrap == null)
+            throw new JSONException("not a scrap: " + type);
+        if (scrap != this)
+            // subclasses read their own fields, an ImageScrap updates its
+            // boundaries once its image is loaded
+            return scrap.fromJSON(jsonData);
+        id = jsonData.getLong("id");
+        outerBorder = new Stroke(parentView).fromJSON(jsonData
+                .getJSONObject("b"));
+        readChildrenFromJSON(jsonData);
+        setBoundaries();
+        return this;
+    }
+
+    /**
+     * Adds all strokes listed in the argument JSON object to this scrap, and
+     * stores the IDs of all child scraps, which are linked by
+     * {@link #addChildrenFromJSON()}.
+     * 
+     * @param jsonData
+     *            the data coming from file
+     * @throws JSONException
+     *             in case something is wrong with the file format
+     */
+    protected void readChildrenFromJSON(JSONObject jsonData)
+            throws JSONException {
+        JSONArray array = jsonData.optJSONArray("str");
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                Stroke stroke = parentView.getStrokeList().getById(
+                        array.getString(i));
+                add(stroke);
             }
-            try {
-                JSONArray array = jsonData.getJSONArray("scr");
-                scrapIDs = new ArrayList<String>(array.length());
-                for (int i = 0; i < array.length(); i++) {
-                    scrapIDs.add(array.getString(i));
-                }
-            } catch (JSONException e1) { /* it's ok, no scraps */
+        }
+        array = jsonData.optJSONArray("scr");
+        if (array != null) {
+            scrapIDs = new ArrayList<String>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                scrapIDs.add(array.getString(i));
             }
-            setBoundaries();
         }
+    }
+
+    private static ElementType typeOf(JSONObject jsonData) {
+        ElementType type = ElementType.forTag(jsonData.optString(
+                ElementType.TAG_KEY, null));
+        if (type != null)
+            return type;
+        // written before tags were introduced
+        return legacyType(jsonData.optBoolean("i"));
+    }
+
+    private static ElementType legacyType(boolean image) {
+        return image ? ElementType.IMAGE_SCRAP : ElementType.SCRAP;
+    }
+
+    /**
+     * Returns a scrap of the argument type to be populated with data read
+     * from a sketch file, which is this scrap if it's of the right type
+     * already.
+     * 
+     * @param type
+     *            the type of the scrap to be read
+     * @return a scrap of the argument type, or <code>null</code> if
+     *         <tt>type</tt> is not a type of scrap
+     */
+    private Scrap newScrap(ElementType type) {
+        if (type == getType())
+            return this;
+        CaliSmallElement element = type.newElement(parentView);
+        if (element instanceof Scrap)
+            return (Scrap) element;
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.JSONSerializable#fromJSON(android.util.JsonReader)
+     */
+    @Override
+    public Scrap fromJSON(JsonReader reader) throws IOException {
+        long newID = -1;
+        Stroke border = null;
+        List<String> newStrokeIDs = null, newScrapIDs = null;
+        ElementType type = null;
+        boolean isImage = false;
+        String file = null;
+        int rotation = 0, width = 0, height = 0;
+        Matrix imageMatrix = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("id".equals(name))
+                newID = reader.nextLong();
+            else if ("b".equals(name))
+                border = new Stroke(parentView).fromJSON(reader);
+            else if ("str".equals(name))
+                newStrokeIDs = readIDs(reader);
+            else if ("scr".equals(name))
+                newScrapIDs = readIDs(reader);
+            else if (ElementType.TAG_KEY.equals(name))
+                type = ElementType.forTag(reader.nextString());
+            else if ("i".equals(name))
+                isImage = reader.nextBoolean();
+            else if ("file".equals(name))
+                file = reader.nextString();
+            else if ("r".equals(name))
+                rotation = reader.nextInt();
+            else if ("w".equals(name))
+                width = reader.nextInt();
+            else if ("h".equals(name))
+                height = reader.nextInt();
+            else if ("m".equals(name))
+                imageMatrix = Utils.readMatrix(reader);
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        if (border == null)
+            throw new IOException("scrap " + newID + " has no border");
+        if (type == null)
+            type = legacyType(isImage);
+        Scrap scrap = newScrap(type);
+        if (scrap == null)
+            throw new IOException("element " + newID + " is not a scrap");
+        if (scrap instanceof ImageScrap) {
+            // an ImageScrap, update its boundaries once image is loaded
+            ((ImageScrap) scrap).restoreImage(file, rotation, width, height,
+                    imageMatrix);
+        }
+        return scrap.restore(newID, border, newStrokeIDs, newScrapIDs);
+    }
+
+    private static List<String> readIDs(JsonReader reader) throws IOException {
+        List<String> ids = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ids.add(reader.nextString());
+        }
+        reader.endArray();
+        return ids;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.BinarySerializable#toBinary(edu.uci.calismall.SketchOutput
+     * )
+     */
+    @Override
+    public void toBinary(SketchOutput out) throws IOException {
+        out.beginRecord(getRecordType(), id);
+        writeBinaryFields(out);
+    }
+
+    /**
+     * Returns the type of this scrap, that is stored in sketch files so that
+     * the scrap is read back as an instance of the right class.
+     * 
+     * <p>
+     * Subclasses must override this method.
+     * 
+     * @return the type of this scrap
+     */
+    public ElementType getType() {
+        return ElementType.SCRAP;
+    }
+
+    /**
+     * Returns the type of record used to store this scrap in binary files.
+     * 
+     * @return one of the record types defined in {@link SketchFormat}
+     */
+    protected byte getRecordType() {
+        return getType().getRecordType();
+    }
+
+    /**
+     * Writes all of the fields of this scrap to the argument <tt>out</tt>,
+     * without the byte identifying the type of record.
+     * 
+     * <p>
+     * Subclasses that need to store more information should override this
+     * method, calling the superclass implementation first.
+     * 
+     * @param out
+     *            the output to which fields must be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    protected void writeBinaryFields(SketchOutput out) throws IOException {
+        out.writeVarLong(id);
+        out.writeByte(outerBorder.getRecordType());
+        outerBorder.writeBinaryFields(out);
+        out.writeIDs(strokes);
+        out.writeIDs(scraps);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.BinarySerializable#fromBinary(edu.uci.calismall.SketchInput
+     * )
+     */
+    @Override
+    public Scrap fromBinary(SketchInput in) throws IOException {
+        final byte recordType = in.readByte();
+        final ElementType type = ElementType.forRecordType(recordType);
+        final Scrap scrap = type == null ? null : newScrap(type);
+        if (scrap == null)
+            throw new IOException("unknown scrap type " + recordType);
+        return scrap.readBinaryFields(in);
+    }
+
+    /**
+     * Reads all fields written by {@link #writeBinaryFields(SketchOutput)} and
+     * restores this scrap using them.
+     * 
+     * <p>
+     * Subclasses that store more information should override this method,
+     * calling the superclass implementation first.
+     * 
+     * @param in
+     *            the input from which fields are read
+     * @return a reference to this scrap
+     * @throws IOException
+     *             if the data is truncated or malformed
+     */
+    protected Scrap readBinaryFields(SketchInput in) throws IOException {
+        final long newID = in.readVarLong();
+        final Stroke border = new Stroke(parentView).fromBinary(in);
+        final List<String> newStrokeIDs = in.readIDs();
+        final List<String> newScrapIDs = in.readIDs();
+        return restore(newID, border, newStrokeIDs, newScrapIDs);
+    }
+
+    /**
+     * Sets all fields of this scrap to the argument values, as read from a
+     * sketch file.
+     * 
+     * <p>
+     * Children are not linked to this scrap until
+     * {@link #addChildrenFromJSON()} is called.
+     * 
+     * @param id
+     *            the ID of this scrap, if negative the ID that was assigned to
+     *            this scrap when it was created is kept
+     * @param border
+     *            the enclosing border of this scrap
+     * @param strokeIDs
+     *            the IDs of all strokes belonging to this scrap, may be
+     *            <code>null</code>
+     * @param scrapIDs
+     *            the IDs of all children scraps of this scrap, may be
+     *            <code>null</code>
+     * @return a reference to this scrap
+     */
+    Scrap restore(long id, Stroke border, List<String> strokeIDs,
+            List<String> scrapIDs) {
+        if (id > -1)
+            this.id = id;
+        outerBorder = border;
+        this.strokeIDs = strokeIDs;
+        this.scrapIDs = scrapIDs;
+        setBoundaries();
         return this;
     }
 
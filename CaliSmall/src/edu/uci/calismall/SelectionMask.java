@@ -0,0 +1,193 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Paint.Style;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.graphics.Region;
+
+/**
+ * A rasterized version of a selection border, used to perform inclusion tests
+ * on many elements at once.
+ * 
+ * <p>
+ * Testing every point of every candidate against a {@link Region} is
+ * expensive when selecting thousands of strokes; a <tt>SelectionMask</tt>
+ * scan-converts the lasso only once into a grid of cells, so that testing a
+ * point is just an array lookup. Cells are {@link #ABS_CELL_SIZE} screen
+ * pixels wide, so the precision of the mask follows the zoom level at which
+ * the selection was drawn. A summed-area table is also kept, so that elements
+ * whose enclosing rectangle is completely within the lasso are accepted
+ * without looking at their points at all.
+ */
+public class SelectionMask {
+
+    /**
+     * The size of a cell in the mask in pixels, independently of the zoom
+     * level.
+     */
+    public static final float ABS_CELL_SIZE = 2f;
+    /**
+     * The maximum number of cells in a mask. If a selection is so large that
+     * covering it with cells of size {@link #ABS_CELL_SIZE} would require more
+     * cells than this, cells are made larger.
+     */
+    public static final int MAX_CELLS = 1 << 18;
+    private static final Paint MASK_PAINT = new Paint();
+
+    static {
+        MASK_PAINT.setAntiAlias(false);
+        MASK_PAINT.setStyle(Style.FILL);
+    }
+
+    private final RectF bounds;
+    private final float cellSize;
+    private final int columns, rows, rowBytes;
+    private final byte[] cells;
+    private final int[] insideSums;
+
+    /**
+     * Rasterizes the argument selection border.
+     * 
+     * @param border
+     *            the closed path enclosing the selection
+     * @param scaleFactor
+     *            the scale factor currently applied to the canvas
+     */
+    public SelectionMask(Path border, float scaleFactor) {
+        bounds = new RectF();
+        border.computeBounds(bounds, true);
+        float size = ABS_CELL_SIZE / scaleFactor;
+        float minSize = (float) Math.sqrt(bounds.width() * bounds.height()
+                / MAX_CELLS);
+        cellSize = Math.max(size, minSize);
+        columns = Math.max(1, (int) Math.ceil(bounds.width() / cellSize));
+        rows = Math.max(1, (int) Math.ceil(bounds.height() / cellSize));
+        Bitmap raster = Bitmap.createBitmap(columns, rows, Config.ALPHA_8);
+        Canvas canvas = new Canvas(raster);
+        canvas.scale(1 / cellSize, 1 / cellSize);
+        canvas.translate(-bounds.left, -bounds.top);
+        canvas.drawPath(border, MASK_PAINT);
+        rowBytes = raster.getRowBytes();
+        cells = new byte[rowBytes * rows];
+        raster.copyPixelsToBuffer(ByteBuffer.wrap(cells));
+        raster.recycle();
+        insideSums = new int[(columns + 1) * (rows + 1)];
+        computeSums();
+    }
+
+    private void computeSums() {
+        final int stride = columns + 1;
+        for (int row = 0; row < rows; row++) {
+            int rowSum = 0;
+            final int cellRow = row * rowBytes;
+            final int sumRow = (row + 1) * stride;
+            for (int column = 0; column < columns; column++) {
+                if (cells[cellRow + column] != 0)
+                    rowSum++;
+                insideSums[sumRow + column + 1] = rowSum
+                        + insideSums[sumRow - stride + column + 1];
+            }
+        }
+    }
+
+    /**
+     * Tests whether the argument point is within the selection.
+     * 
+     * @param x
+     *            the X coordinate of the point to be tested
+     * @param y
+     *            the Y coordinate of the point to be tested
+     * @return <code>true</code> if the point falls within a cell of the mask
+     *         that is inside the selection
+     */
+    public boolean contains(float x, float y) {
+        final int column = (int) ((x - bounds.left) / cellSize);
+        final int row = (int) ((y - bounds.top) / cellSize);
+        if (column < 0 || row < 0 || column >= columns || row >= rows)
+            return false;
+        return cells[row * rowBytes + column] != 0;
+    }
+
+    /**
+     * Tests whether the argument element is completely within the selection.
+     * 
+     * <p>
+     * The rectangle enclosing the element is tested first: elements that stick
+     * out of the mask are rejected, and elements whose rectangle only covers
+     * cells that are inside the selection are accepted. Only when neither test
+     * is conclusive all points of the shape are checked.
+     * 
+     * @param shape
+     *            the shape of the element to be tested
+     * @return <code>true</code> if all of the element's points are inside the
+     *         selection
+     */
+    public boolean contains(ElementShape shape) {
+        final float left = shape.left;
+        final float top = shape.top;
+        final float right = shape.right;
+        final float bottom = shape.bottom;
+        if (left < bounds.left - cellSize || top < bounds.top - cellSize
+                || right > bounds.right + cellSize
+                || bottom > bounds.bottom + cellSize)
+            return false;
+        if (coversOnlyInsideCells(left, top, right, bottom))
+            return true;
+        for (int i = 0, size = shape.size(); i < size; i++) {
+            if (!contains(shape.getX(i), shape.getY(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean coversOnlyInsideCells(float left, float top, float right,
+            float bottom) {
+        final int firstColumn = (int) ((left - bounds.left) / cellSize);
+        final int firstRow = (int) ((top - bounds.top) / cellSize);
+        final int lastColumn = (int) ((right - bounds.left) / cellSize);
+        final int lastRow = (int) ((bottom - bounds.top) / cellSize);
+        if (firstColumn < 0 || firstRow < 0 || lastColumn >= columns
+                || lastRow >= rows)
+            return false;
+        final int stride = columns + 1;
+        final int inside = insideSums[(lastRow + 1) * stride + lastColumn + 1]
+                - insideSums[firstRow * stride + lastColumn + 1]
+                - insideSums[(lastRow + 1) * stride + firstColumn]
+                + insideSums[firstRow * stride + firstColumn];
+        return inside == (lastColumn - firstColumn + 1)
+                * (lastRow - firstRow + 1);
+    }
+}
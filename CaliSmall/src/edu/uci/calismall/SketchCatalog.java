@@ -0,0 +1,540 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * The list of sketches stored in the home folder, along with some information
+ * about each of them.
+ * 
+ * <p>
+ * The catalog is kept in memory and stored in a file as a log of changes:
+ * adding, removing or updating a sketch appends a small record to the file,
+ * instead of rewriting the whole list. Reading the file back replays all
+ * records. Once the log gets much bigger than the list itself, the file is
+ * rewritten from scratch.
+ * 
+ * <p>
+ * For every sketch the catalog stores its size, the time it was last modified
+ * and the number of elements in it as of its last full save, so that the
+ * list of sketches can be shown without opening any of them. If there's no
+ * catalog file, or if it can't be read, the catalog is rebuilt from the
+ * sketch files in the folder, keeping the order of the <tt>.file_list</tt>
+ * text file used by older versions for the sketches listed in there.
+ */
+public class SketchCatalog {
+
+    /**
+     * Information about a sketch in the catalog.
+     */
+    public static class Entry {
+        /**
+         * The name of the sketch, without any file extension.
+         */
+        public final String name;
+        /**
+         * The size of the sketch file in bytes, or <tt>-1</tt> if unknown.
+         */
+        public long size = -1;
+        /**
+         * The time at which the sketch file was last modified, or <tt>0</tt>
+         * if unknown.
+         */
+        public long lastModified;
+        /**
+         * The number of elements in the sketch, or <tt>-1</tt> if unknown.
+         */
+        public int elementCount = -1;
+
+        private Entry(String name) {
+            this.name = name;
+        }
+
+        private Entry(Entry copy) {
+            this(copy.name);
+            size = copy.size;
+            lastModified = copy.lastModified;
+            elementCount = copy.elementCount;
+        }
+    }
+
+    /**
+     * The name of the file storing the catalog.
+     */
+    public static final String FILE_NAME = ".catalog";
+    /**
+     * The first four bytes of a catalog file ("CSC" followed by a
+     * <tt>0x1a</tt> byte).
+     */
+    public static final int MAGIC = 0x4353431a;
+    /**
+     * The version of the catalog format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * A sketch was added: followed by its position in the list and its name.
+     */
+    public static final byte INSERT = 1;
+    /**
+     * A sketch was removed: followed by its name.
+     */
+    public static final byte REMOVE = 2;
+    /**
+     * Information about a sketch changed: followed by its name, size, last
+     * modified time and element count.
+     */
+    public static final byte UPDATE = 3;
+    /**
+     * The minimum number of records in the file before it's compacted.
+     */
+    public static final int MIN_COMPACTION_RECORDS = 64;
+    private static final String LEGACY_FILE_NAME = ".file_list";
+
+    private static class OldestFirst implements Comparator<File> {
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.Comparator#compare(java.lang.Object,
+         * java.lang.Object)
+         */
+        @Override
+        public int compare(File lhs, File rhs) {
+            final long lhsTime = lhs.lastModified();
+            final long rhsTime = rhs.lastModified();
+            return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+        }
+    }
+
+    private final File folder, file;
+    private final List<String> names;
+    private final Map<String, Entry> entries;
+    private int records;
+
+    /**
+     * Creates a new, empty catalog for the argument folder. The catalog is
+     * read from disk by {@link #load(String)}.
+     * 
+     * @param folder
+     *            the folder where sketches are stored
+     */
+    public SketchCatalog(File folder) {
+        this.folder = folder;
+        file = new File(folder, FILE_NAME);
+        names = new ArrayList<String>();
+        entries = new HashMap<String, Entry>();
+    }
+
+    /**
+     * Reads the catalog from disk, rebuilding it from the sketch files in the
+     * folder if there's no catalog yet or if it can't be read.
+     * 
+     * @param extension
+     *            the extension of sketch files, used to find the files of
+     *            sketches
+     */
+    public synchronized void load(String extension) {
+        names.clear();
+        entries.clear();
+        records = 0;
+        if (file.exists()) {
+            try {
+                if (!read())
+                    // don't append after a truncated record
+                    compact();
+                return;
+            } catch (IOException e) {
+                Log.e(CaliSmall.TAG, "could not read " + file
+                        + ", rebuilding it", e);
+                names.clear();
+                entries.clear();
+            }
+        }
+        rebuild(extension);
+        compact();
+    }
+
+    /**
+     * Lists all sketch files in the folder, in the order in which the list
+     * used by older versions had them, followed by all other sketches from
+     * the least recently modified one. Backups and hidden files are skipped.
+     */
+    private void rebuild(String extension) {
+        importLegacyList(extension);
+        File[] files = folder.listFiles();
+        if (files == null)
+            return;
+        List<File> unlisted = new ArrayList<File>();
+        for (File sketch : files) {
+            final String fileName = sketch.getName();
+            if (!fileName.endsWith(extension) || fileName.startsWith("~")
+                    || fileName.startsWith(".") || !sketch.isFile())
+                continue;
+            final String name = fileName.substring(0, fileName.length()
+                    - extension.length());
+            if (!entries.containsKey(name))
+                unlisted.add(sketch);
+        }
+        // the legacy list isn't updated anymore, newer sketches go last
+        Collections.sort(unlisted, new OldestFirst());
+        for (File sketch : unlisted) {
+            final String fileName = sketch.getName();
+            add(fileName.substring(0, fileName.length() - extension.length()),
+                    sketch);
+        }
+    }
+
+    /**
+     * Replays all records in the catalog file, returning <code>false</code>
+     * if the last one is incomplete.
+     */
+    private boolean read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readByte() > VERSION)
+                throw new IOException("not a catalog");
+            while (true) {
+                final int op = in.read();
+                if (op < 0)
+                    break;
+                if (op == INSERT) {
+                    final int index = in.readInt();
+                    insert(index, in.readUTF());
+                } else if (op == REMOVE) {
+                    remove(in.readUTF());
+                } else if (op == UPDATE) {
+                    Entry entry = getOrCreate(in.readUTF());
+                    entry.size = in.readLong();
+                    entry.lastModified = in.readLong();
+                    entry.elementCount = in.readInt();
+                } else {
+                    throw new IOException("unknown operation " + op);
+                }
+                records++;
+            }
+            return true;
+        } catch (EOFException e) {
+            // the application died while appending the last record
+            Log.w(CaliSmall.TAG, "catalog ends with an incomplete record");
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void importLegacyList(String extension) {
+        File legacy = new File(folder, LEGACY_FILE_NAME);
+        if (!legacy.exists())
+            return;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(legacy));
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                String name = line.endsWith(extension) ? line.substring(0,
+                        line.lastIndexOf(extension)) : line;
+                File sketch = new File(folder, name + extension);
+                // sketches deleted since the list was last written
+                if (entries.containsKey(name) || !sketch.isFile())
+                    continue;
+                add(name, sketch);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    private void add(String name, File sketch) {
+        insert(names.size(), name);
+        Entry entry = entries.get(name);
+        entry.size = sketch.length();
+        entry.lastModified = sketch.lastModified();
+        entry.elementCount = countElements(sketch);
+    }
+
+    /**
+     * Reads the number of elements from the trailer of a binary sketch, or
+     * returns <tt>-1</tt> for any other kind of file.
+     */
+    private static int countElements(File sketch) {
+        if (sketch.length() < SketchFormat.HEADER_SIZE
+                + SketchFormat.TRAILER_SIZE)
+            return -1;
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(sketch, "r");
+            if (in.readInt() != SketchFormat.MAGIC)
+                return -1;
+            in.seek(in.length() - SketchFormat.TRAILER_SIZE);
+            in.readInt();
+            final int count = in.readInt();
+            return in.readInt() == SketchFormat.MAGIC ? count : -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+        }
+    }
+
+    /**
+     * Returns the names of all sketches, in the order in which they're shown.
+     * 
+     * @return a copy of the list of sketch names, without file extensions
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Returns the information stored about the argument sketch.
+     * 
+     * @param name
+     *            the name of a sketch, without file extension
+     * @return a copy of the entry for the sketch, or <code>null</code> if it's
+     *         not in the catalog
+     */
+    public synchronized Entry getEntry(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? null : new Entry(entry);
+    }
+
+    /**
+     * Makes the list of sketches in this catalog match the argument one,
+     * appending to the file only the changes needed to do so.
+     * 
+     * @param newNames
+     *            the names of all sketches, in the order in which they're
+     *            shown
+     */
+    public synchronized void setNames(List<String> newNames) {
+        if (names.equals(newNames))
+            return;
+        List<byte[]> changes = new ArrayList<byte[]>();
+        for (String name : new ArrayList<String>(names)) {
+            if (!newNames.contains(name)) {
+                remove(name);
+                changes.add(encodeRemove(name));
+            }
+        }
+        for (int i = 0; i < newNames.size(); i++) {
+            final String name = newNames.get(i);
+            if (i < names.size() && names.get(i).equals(name))
+                continue;
+            if (entries.containsKey(name)) {
+                // moved somewhere else
+                remove(name);
+                changes.add(encodeRemove(name));
+            }
+            insert(i, name);
+            changes.add(encodeInsert(i, name));
+        }
+        append(changes);
+    }
+
+    /**
+     * Updates the information stored about the argument sketch after it was
+     * saved in full.
+     * 
+     * @param name
+     *            the name of the sketch, without file extension
+     * @param sketch
+     *            the sketch file
+     * @param elementCount
+     *            the number of elements in the sketch
+     */
+    public synchronized void update(String name, File sketch,
+            int elementCount) {
+        if (!entries.containsKey(name))
+            return;
+        Entry entry = entries.get(name);
+        entry.size = sketch.length();
+        entry.lastModified = sketch.lastModified();
+        entry.elementCount = elementCount;
+        List<byte[]> changes = new ArrayList<byte[]>(1);
+        changes.add(encodeUpdate(entry));
+        append(changes);
+    }
+
+    private void insert(int index, String name) {
+        if (entries.containsKey(name))
+            names.remove(name);
+        names.add(Math.max(0, Math.min(index, names.size())), name);
+        getOrCreate(name);
+    }
+
+    private void remove(String name) {
+        names.remove(name);
+        entries.remove(name);
+    }
+
+    private Entry getOrCreate(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = new Entry(name);
+            entries.put(name, entry);
+        }
+        return entry;
+    }
+
+    private void append(List<byte[]> changes) {
+        if (changes.isEmpty())
+            return;
+        records += changes.size();
+        if (!file.exists() || records > MIN_COMPACTION_RECORDS
+                && records > 4 * names.size()) {
+            compact();
+            return;
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(file, true);
+            try {
+                for (byte[] change : changes) {
+                    out.write(change);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(CaliSmall.TAG, "could not update " + file, e);
+        }
+    }
+
+    /**
+     * Rewrites the catalog file so that it only contains one record per
+     * sketch.
+     */
+    private void compact() {
+        File tmp = new File(folder, FILE_NAME + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                for (int i = 0; i < names.size(); i++) {
+                    out.write(encodeInsert(i, names.get(i)));
+                    out.write(encodeUpdate(entries.get(names.get(i))));
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("could not replace " + file);
+            records = names.size() * 2;
+        } catch (IOException e) {
+            Log.e(CaliSmall.TAG, "could not write " + file, e);
+        }
+    }
+
+    private static byte[] encodeInsert(int index, String name) {
+        Record record = new Record(INSERT);
+        try {
+            record.out.writeInt(index);
+            record.out.writeUTF(name);
+        } catch (IOException e) {
+            // can't happen, it's all in memory
+            throw new IllegalStateException(e);
+        }
+        return record.toByteArray();
+    }
+
+    private static byte[] encodeRemove(String name) {
+        Record record = new Record(REMOVE);
+        try {
+            record.out.writeUTF(name);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return record.toByteArray();
+    }
+
+    private static byte[] encodeUpdate(Entry entry) {
+        Record record = new Record(UPDATE);
+        try {
+            record.out.writeUTF(entry.name);
+            record.out.writeLong(entry.size);
+            record.out.writeLong(entry.lastModified);
+            record.out.writeInt(entry.elementCount);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * A record being encoded in memory.
+     */
+    private static class Record {
+        private final ByteArrayOutputStream bytes;
+        private final DataOutputStream out;
+
+        private Record(byte op) {
+            bytes = new ByteArrayOutputStream(32);
+            out = new DataOutputStream(bytes);
+            bytes.write(op);
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
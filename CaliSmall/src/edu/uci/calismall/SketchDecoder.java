@@ -0,0 +1,225 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the elements of a binary sketch using all available cores.
+ * 
+ * <p>
+ * Records are located through the element table at the end of the file (see
+ * {@link SketchFormat}), so they can be decoded independently of each other:
+ * the table is split into chunks of consecutive records, and every chunk is
+ * decoded by a worker thread, which also builds the paths and boundaries of
+ * its elements. Linking scraps to their children requires all elements to be
+ * there, so it's left to the caller, to be done sequentially once
+ * {@link #decode(CaliView, SketchInput, SketchInput.ElementTable, int[])}
+ * returns.
+ */
+public class SketchDecoder {
+
+    /**
+     * The minimum number of records decoded by a single task. Sketches having
+     * less than twice as many records are decoded by the calling thread.
+     */
+    public static final int MIN_CHUNK_SIZE = 64;
+    /**
+     * How many chunks are created per available core, so that cores that are
+     * done early (because their records had less points) can steal work.
+     */
+    public static final int CHUNKS_PER_CORE = 4;
+    private static final long IDLE_THREAD_TIMEOUT = 5;
+    private static ThreadPoolExecutor pool;
+
+    private SketchDecoder() {
+        // only static methods
+    }
+
+    private static synchronized ThreadPoolExecutor getPool(int threads) {
+        if (pool == null) {
+            pool = new ThreadPoolExecutor(threads, threads,
+                    IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            // don't keep threads around when no sketch is being loaded
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+    /**
+     * Decodes the elements whose entries in the argument table are listed in
+     * <tt>indexes</tt>.
+     * 
+     * @param parentView
+     *            the view to which elements belong
+     * @param in
+     *            the sketch from which elements are read
+     * @param table
+     *            the element table of the sketch
+     * @param indexes
+     *            the indexes in <tt>table</tt> of the records to be decoded
+     * @return an array containing one element per entry in <tt>indexes</tt>,
+     *         in the same order; scraps are not linked to their children yet
+     * @throws IOException
+     *             if any of the records is malformed, or if the calling thread
+     *             is interrupted while waiting for decoding to complete
+     */
+    public static CaliSmallElement[] decode(CaliView parentView,
+            SketchInput in, SketchInput.ElementTable table, int[] indexes)
+            throws IOException {
+        final byte[] types = new byte[indexes.length];
+        final ByteBuffer[] records = new ByteBuffer[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            final int index = indexes[i];
+            if (index < 0 || index >= table.size())
+                throw new IOException("no record number " + index);
+            types[i] = table.types[index];
+            records[i] = in.slice(table.offsets[index], table.length(index));
+        }
+        return decode(parentView, types, records);
+    }
+
+    /**
+     * Decodes the argument records.
+     * 
+     * <p>
+     * Every element keeps the record it was read from as its cached record
+     * (see {@link CaliSmallElement#setRecord(ByteBuffer)}), so that it's not
+     * encoded again when the sketch is saved unless it's modified.
+     * 
+     * @param parentView
+     *            the view to which elements belong
+     * @param types
+     *            the type of each record, as listed in the element table
+     * @param records
+     *            the records to be decoded
+     * @return an array containing one element per record, in the same order;
+     *         scraps are not linked to their children yet
+     * @throws IOException
+     *             if any of the records is malformed, or if the calling thread
+     *             is interrupted while waiting for decoding to complete
+     */
+    public static CaliSmallElement[] decode(CaliView parentView, byte[] types,
+            ByteBuffer[] records) throws IOException {
+        final int size = records.length;
+        final CaliSmallElement[] elements = new CaliSmallElement[size];
+        final int cores = Runtime.getRuntime().availableProcessors();
+        if (cores < 2 || size < MIN_CHUNK_SIZE * 2) {
+            decode(parentView, types, records, elements, 0, size);
+            return elements;
+        }
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, size
+                / (cores * CHUNKS_PER_CORE) + 1);
+        List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+        for (int start = 0; start < size; start += chunkSize) {
+            chunks.add(new Chunk(parentView, types, records, elements, start,
+                    Math.min(size, start + chunkSize)));
+        }
+        try {
+            for (Future<Void> result : getPool(cores).invokeAll(chunks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while loading");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(String.valueOf(cause));
+        }
+        return elements;
+    }
+
+    private static void decode(CaliView parentView, byte[] types,
+            ByteBuffer[] records, CaliSmallElement[] elements, int start,
+            int end) throws IOException {
+        final boolean decoding = CaliSmallElement.setDecoding(true);
+        try {
+            for (int i = start; i < end; i++) {
+                final ElementType type = ElementType.forRecordType(types[i]);
+                if (type == null)
+                    throw new IOException("unknown record type " + types[i]);
+                SketchInput record = new SketchInput(records[i].duplicate());
+                CaliSmallElement element = type.newElement(parentView);
+                if (element instanceof Stroke)
+                    element = ((Stroke) element).fromBinary(record);
+                else
+                    element = ((Scrap) element).fromBinary(record);
+                element.setRecord(records[i]);
+                elements[i] = element;
+            }
+        } finally {
+            CaliSmallElement.setDecoding(decoding);
+        }
+    }
+
+    private static class Chunk implements Callable<Void> {
+
+        private final CaliView parentView;
+        private final byte[] types;
+        private final ByteBuffer[] records;
+        private final CaliSmallElement[] elements;
+        private final int start, end;
+
+        private Chunk(CaliView parentView, byte[] types, ByteBuffer[] records,
+                CaliSmallElement[] elements, int start, int end) {
+            this.parentView = parentView;
+            this.types = types;
+            this.records = records;
+            this.elements = elements;
+            this.start = start;
+            this.end = end;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.util.concurrent.Callable#call()
+         */
+        @Override
+        public Void call() throws IOException {
+            decode(parentView, types, records, elements, start, end);
+            return null;
+        }
+    }
+}
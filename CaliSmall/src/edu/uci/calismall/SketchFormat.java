@@ -0,0 +1,230 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+
+/**
+ * Constants describing the binary format in which sketches are stored.
+ * 
+ * <p>
+ * A binary sketch file is laid out as follows (all numbers are big-endian):
+ * 
+ * <ol>
+ * <li>a header: the {@link #MAGIC} number, the format {@link #VERSION} (one
+ * byte), a byte of flags and the width and height of the drawable canvas as
+ * floats;</li>
+ * <li>if the {@link #FLAG_TILED} flag is set, the tile directory: the size of
+ * a tile (a float), the number of columns and rows of tiles (two ints) and,
+ * for each tile in row-major order, the index of its first record and the
+ * number of its records (two ints);</li>
+ * <li>one record per element, each starting with the byte identifying its
+ * type, terminated by an {@link #END} byte; in tiled files, records are
+ * grouped by tile;</li>
+ * <li>the element table: for each record its type (one byte), the ID of the
+ * element (a long) and the offset of the record from the beginning of the
+ * file (an int);</li>
+ * <li>a trailer: the offset of the element table, the number of entries in it
+ * and the {@link #MAGIC} number once more, so that truncated files are
+ * detected.</li>
+ * </ol>
+ * 
+ * <p>
+ * Within records, IDs and counters are stored as variable-length integers,
+ * while points are quantized to {@link #COORDINATE_SCALE} steps per pixel and
+ * stored as zig-zag encoded differences from the previous point, which for
+ * strokes drawn by hand take one or two bytes per coordinate.
+ * 
+ * <p>
+ * Elements are assigned to the {@link #TILE_SIZE} square tile containing the
+ * center of their outermost parent, so that a scrap and all of its content
+ * always end up in the same tile. This lets the elements that are on screen
+ * be loaded first, while the rest of the sketch is loaded in the background.
+ * 
+ * <p>
+ * Files written by older versions of CaliSmall are JSON documents, which can
+ * be told apart by {@link #isBinary(BufferedInputStream)}.
+ * 
+ * <p>
+ * Any sketch file (binary or JSON) can also be stored compressed as a GZIP
+ * stream, which is recognized by {@link #isCompressed(BufferedInputStream)}
+ * and inflated transparently when the file is loaded. Offsets within binary
+ * sketches always refer to the uncompressed data.
+ */
+public final class SketchFormat {
+
+    /**
+     * The first four bytes of every binary sketch file ("CSF" followed by a
+     * <tt>0x1a</tt> byte, so that the file is not mistaken for text).
+     */
+    public static final int MAGIC = 0x4353461a;
+    /**
+     * The first two bytes of every compressed sketch file, which are those
+     * starting any GZIP stream.
+     */
+    public static final int COMPRESSED_MAGIC = 0x1f8b;
+    /**
+     * The version of the format written by this version of CaliSmall. Version
+     * 1 is the JSON format.
+     */
+    public static final int VERSION = 3;
+    /**
+     * The number of steps per pixel into which coordinates are quantized.
+     */
+    public static final float COORDINATE_SCALE = 100f;
+    /**
+     * The size in bytes of the header.
+     */
+    public static final int HEADER_SIZE = 14;
+    /**
+     * Flag set in the header of files whose records are grouped by tile.
+     */
+    public static final int FLAG_TILED = 1;
+    /**
+     * The size of the side of a tile, in canvas pixels.
+     */
+    public static final float TILE_SIZE = 512f;
+    /**
+     * The size in bytes of the fixed part of the tile directory.
+     */
+    public static final int TILE_DIRECTORY_SIZE = 12;
+    /**
+     * The size in bytes of each entry in the tile directory.
+     */
+    public static final int TILE_ENTRY_SIZE = 8;
+    /**
+     * The size in bytes of each entry in the element table.
+     */
+    public static final int TABLE_ENTRY_SIZE = 13;
+    /**
+     * The size in bytes of the trailer.
+     */
+    public static final int TRAILER_SIZE = 12;
+    /**
+     * Record type marking the end of the list of records.
+     */
+    public static final byte END = 0;
+    /**
+     * Record type for a {@link Stroke}.
+     */
+    public static final byte STROKE = 1;
+    /**
+     * Record type for a {@link RectStroke}.
+     */
+    public static final byte RECT_STROKE = 2;
+    /**
+     * Record type for a {@link RoundRectStroke}.
+     */
+    public static final byte ROUND_RECT_STROKE = 3;
+    /**
+     * Record type for a {@link Scrap}.
+     */
+    public static final byte SCRAP = 4;
+    /**
+     * Record type for an {@link ImageScrap}.
+     */
+    public static final byte IMAGE_SCRAP = 5;
+
+    private SketchFormat() {
+        // constants only
+    }
+
+    /**
+     * Returns whether the argument record type identifies a stroke.
+     * 
+     * @param type
+     *            the type of a record
+     * @return <code>true</code> if the record stores a stroke of any kind
+     */
+    public static boolean isStroke(byte type) {
+        return type >= STROKE && type <= ROUND_RECT_STROKE;
+    }
+
+    /**
+     * Returns whether the argument record type identifies a scrap.
+     * 
+     * @param type
+     *            the type of a record
+     * @return <code>true</code> if the record stores a scrap of any kind
+     */
+    public static boolean isScrap(byte type) {
+        return type == SCRAP || type == IMAGE_SCRAP;
+    }
+
+    /**
+     * Tests whether the argument stream contains a binary sketch, without
+     * consuming any data from it.
+     * 
+     * @param in
+     *            the stream to be tested, positioned at the beginning of the
+     *            sketch
+     * @return <code>true</code> if the stream starts with the {@link #MAGIC}
+     *         number, <code>false</code> if it contains anything else (most
+     *         likely, a JSON sketch)
+     * @throws IOException
+     *             if anything goes wrong while reading from the stream
+     */
+    public static boolean isBinary(BufferedInputStream in) throws IOException {
+        return startsWith(in, MAGIC, 4);
+    }
+
+    /**
+     * Tests whether the argument stream contains a compressed sketch, without
+     * consuming any data from it.
+     * 
+     * @param in
+     *            the stream to be tested, positioned at the beginning of the
+     *            sketch
+     * @return <code>true</code> if the stream starts with the
+     *         {@link #COMPRESSED_MAGIC} number, and must therefore be read
+     *         through a {@link java.util.zip.GZIPInputStream}
+     * @throws IOException
+     *             if anything goes wrong while reading from the stream
+     */
+    public static boolean isCompressed(BufferedInputStream in)
+            throws IOException {
+        return startsWith(in, COMPRESSED_MAGIC, 2);
+    }
+
+    private static boolean startsWith(BufferedInputStream in, int expected,
+            int length) throws IOException {
+        in.mark(length);
+        int magic = 0;
+        for (int i = 0; i < length; i++) {
+            int next = in.read();
+            if (next < 0) {
+                in.reset();
+                return false;
+            }
+            magic = (magic << 8) | next;
+        }
+        in.reset();
+        return magic == expected;
+    }
+}
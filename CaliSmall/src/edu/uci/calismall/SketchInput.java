@@ -0,0 +1,629 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import android.graphics.Paint.Style;
+import android.graphics.PointF;
+import android.graphics.RectF;
+
+/**
+ * Reads sketches stored using the binary format described in
+ * {@link SketchFormat} from a {@link ByteBuffer}.
+ * 
+ * <p>
+ * Sketches on disk are read through {@link #open(File)}, which maps them
+ * through {@link #map(File)} so that points are decoded from the file straight
+ * into the lists used by {@link Stroke}'s, with no intermediate copy of the
+ * file's content. Compressed files are inflated into memory instead.
+ * 
+ * <p>
+ * All methods throw an {@link IOException} if the data ends before what is
+ * being read is complete, or if it is malformed.
+ */
+public class SketchInput {
+
+    /**
+     * The element table of a binary sketch, listing where the record of each
+     * element starts.
+     */
+    public static class ElementTable {
+        /**
+         * The type of each record.
+         */
+        public final byte[] types;
+        /**
+         * The ID of the element stored in each record.
+         */
+        public final long[] ids;
+        /**
+         * The offset of each record from the beginning of the file.
+         */
+        public final int[] offsets;
+        /**
+         * The offset of the byte marking the end of the records, which is
+         * where the last record ends.
+         */
+        public final int recordsEnd;
+
+        private ElementTable(int size, int recordsEnd) {
+            types = new byte[size];
+            ids = new long[size];
+            offsets = new int[size];
+            this.recordsEnd = recordsEnd;
+        }
+
+        /**
+         * Returns the number of entries in this table.
+         * 
+         * @return the number of elements in the sketch
+         */
+        public int size() {
+            return types.length;
+        }
+
+        /**
+         * Returns the length in bytes of the argument record.
+         * 
+         * @param index
+         *            the index of the entry in this table
+         * @return the number of bytes in the record
+         */
+        public int length(int index) {
+            final int end = index + 1 < offsets.length ? offsets[index + 1]
+                    : recordsEnd;
+            return end - offsets[index];
+        }
+    }
+
+    /**
+     * The tile directory of a binary sketch whose records are grouped by tile.
+     */
+    public static class TileDirectory {
+        /**
+         * The size of the side of each tile, in canvas pixels.
+         */
+        public final float tileSize;
+        /**
+         * The number of columns of tiles.
+         */
+        public final int columns;
+        /**
+         * The number of rows of tiles.
+         */
+        public final int rows;
+        /**
+         * The index in the element table of the first record of each tile.
+         */
+        public final int[] firstRecords;
+        /**
+         * The number of records in each tile.
+         */
+        public final int[] counts;
+
+        private TileDirectory(float tileSize, int columns, int rows) {
+            this.tileSize = tileSize;
+            this.columns = columns;
+            this.rows = rows;
+            firstRecords = new int[columns * rows];
+            counts = new int[columns * rows];
+        }
+
+        /**
+         * Returns the number of tiles in this directory.
+         * 
+         * @return the number of tiles
+         */
+        public int size() {
+            return counts.length;
+        }
+
+        /**
+         * Returns the area covered by the argument tile.
+         * 
+         * @param tile
+         *            the index of a tile
+         * @return a new rectangle enclosing the tile, in canvas coordinates
+         */
+        public RectF getBounds(int tile) {
+            final float left = (tile % columns) * tileSize;
+            final float top = (tile / columns) * tileSize;
+            return new RectF(left, top, left + tileSize, top + tileSize);
+        }
+    }
+
+    private static final Style[] STYLES = Style.values();
+    private static final int INFLATE_BUFFER_SIZE = 32 * 1024;
+    private final ByteBuffer buffer;
+    private int flags;
+
+    /**
+     * Creates a new input reading from the argument buffer, starting from its
+     * current position.
+     * 
+     * @param buffer
+     *            the buffer containing a whole sketch file
+     */
+    public SketchInput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads all of the content of the argument stream into a new input.
+     * 
+     * @param in
+     *            the stream to be read, which is not closed by this method
+     * @return a new input wrapping all data in the stream
+     * @throws IOException
+     *             if anything goes wrong while reading from the stream
+     */
+    public static SketchInput readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                Math.max(in.available(), 4096));
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            bytes.write(chunk, 0, read);
+        }
+        return new SketchInput(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * Maps the argument file into memory, so that records are decoded
+     * directly from the file without copying it first.
+     * 
+     * @param file
+     *            the file to be mapped
+     * @return a new input reading from the mapped file
+     * @throws FileNotFoundException
+     *             if the file does not exist
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    public static SketchInput map(File file) throws FileNotFoundException,
+            IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            // the mapping stays valid after the channel is closed
+            return new SketchInput(channel.map(MapMode.READ_ONLY, 0,
+                    channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Inflates the argument compressed file into memory.
+     * 
+     * @param file
+     *            a file compressed using GZIP
+     * @return a new input wrapping the uncompressed content of the file
+     * @throws FileNotFoundException
+     *             if the file does not exist
+     * @throws IOException
+     *             if the file cannot be read, or is not a GZIP stream
+     */
+    public static SketchInput inflate(File file) throws FileNotFoundException,
+            IOException {
+        InputStream in = new GZIPInputStream(new FileInputStream(file),
+                INFLATE_BUFFER_SIZE);
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens the argument sketch file, which is mapped into memory unless it's
+     * compressed, in which case it's inflated.
+     * 
+     * @param file
+     *            the file to be read
+     * @return a new input reading the (uncompressed) content of the file
+     * @throws FileNotFoundException
+     *             if the file does not exist
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    public static SketchInput open(File file) throws FileNotFoundException,
+            IOException {
+        SketchInput mapped = map(file);
+        if (mapped.isCompressed())
+            return inflate(file);
+        return mapped;
+    }
+
+    /**
+     * Tests whether the data in this input starts with the
+     * {@link SketchFormat#COMPRESSED_MAGIC} number, without consuming it.
+     * 
+     * @return <code>true</code> if this input contains a compressed file
+     */
+    public boolean isCompressed() {
+        if (buffer.remaining() < 2)
+            return false;
+        final int magic = buffer.getShort(buffer.position()) & 0xffff;
+        return magic == SketchFormat.COMPRESSED_MAGIC;
+    }
+
+    /**
+     * Tests whether the data in this input starts with the
+     * {@link SketchFormat#MAGIC} number, without consuming it.
+     * 
+     * @return <code>true</code> if this input contains a binary sketch
+     */
+    public boolean isBinary() {
+        return buffer.remaining() >= 4
+                && buffer.getInt(buffer.position()) == SketchFormat.MAGIC;
+    }
+
+    /**
+     * Reads and checks the header of a sketch file.
+     * 
+     * @return the size of the drawable canvas stored in the header
+     * @throws IOException
+     *             if the file is not a binary sketch, or if it was written
+     *             using a newer version of the format
+     */
+    public PointF readHeader() throws IOException {
+        if (readInt() != SketchFormat.MAGIC)
+            throw new IOException("not a binary sketch");
+        final int version = readByte();
+        if (version > SketchFormat.VERSION)
+            throw new IOException("unsupported format version " + version);
+        flags = readByte();
+        final float width = readFloat();
+        final float height = readFloat();
+        return new PointF(width, height);
+    }
+
+    /**
+     * Reads the tile directory, which follows the header in tiled sketches.
+     * 
+     * <p>
+     * Must be called right after {@link #readHeader()}.
+     * 
+     * @return the tile directory, or <code>null</code> if records in this
+     *         sketch are not grouped by tile
+     * @throws IOException
+     *             if the directory is malformed
+     */
+    public TileDirectory readTileDirectory() throws IOException {
+        if ((flags & SketchFormat.FLAG_TILED) == 0)
+            return null;
+        final float tileSize = readFloat();
+        final int columns = readInt();
+        final int rows = readInt();
+        if (tileSize <= 0 || columns < 1 || rows < 1
+                || (long) columns * rows * SketchFormat.TILE_ENTRY_SIZE > buffer
+                        .remaining())
+            throw new IOException("malformed tile directory");
+        TileDirectory directory = new TileDirectory(tileSize, columns, rows);
+        for (int i = 0; i < directory.size(); i++) {
+            directory.firstRecords[i] = readInt();
+            directory.counts[i] = readInt();
+        }
+        return directory;
+    }
+
+    /**
+     * Reads the element table, without changing the current position.
+     * 
+     * @return the element table of this sketch
+     * @throws IOException
+     *             if the file has been truncated or the table is malformed
+     */
+    public ElementTable readElementTable() throws IOException {
+        final int trailer = buffer.limit() - SketchFormat.TRAILER_SIZE;
+        if (trailer < SketchFormat.HEADER_SIZE
+                || buffer.getInt(trailer + 8) != SketchFormat.MAGIC)
+            throw new IOException("sketch file is truncated");
+        final int tableOffset = buffer.getInt(trailer);
+        final int size = buffer.getInt(trailer + 4);
+        if (tableOffset < SketchFormat.HEADER_SIZE + 1 || size < 0
+                || tableOffset + size * SketchFormat.TABLE_ENTRY_SIZE != trailer)
+            throw new IOException("malformed element table");
+        // the END byte precedes the table
+        ElementTable table = new ElementTable(size, tableOffset - 1);
+        int position = tableOffset;
+        for (int i = 0; i < size; i++) {
+            table.types[i] = buffer.get(position);
+            table.ids[i] = buffer.getLong(position + 1);
+            table.offsets[i] = buffer.getInt(position + 9);
+            position += SketchFormat.TABLE_ENTRY_SIZE;
+        }
+        return table;
+    }
+
+    /**
+     * Returns a view of the argument range of this input, sharing its content.
+     * 
+     * @param offset
+     *            the offset from the beginning of the sketch
+     * @param length
+     *            the number of bytes in the range
+     * @return a new buffer whose content is the argument range
+     * @throws IOException
+     *             if the range exceeds the size of the sketch
+     */
+    public ByteBuffer slice(int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit())
+            throw new IOException("range exceeds the size of the sketch");
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return slice.slice();
+    }
+
+    /**
+     * Moves the current position of this input.
+     * 
+     * @param offset
+     *            the new position, from the beginning of the sketch
+     */
+    public void seek(int offset) {
+        buffer.position(offset);
+    }
+
+    /**
+     * Returns whether there is still data to be read.
+     * 
+     * @return <code>true</code> if the end of the data has not been reached
+     */
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Returns the type of the next record without consuming it.
+     * 
+     * @return the next byte in the buffer
+     * @throws IOException
+     *             if there is no more data
+     */
+    public byte peekByte() throws IOException {
+        if (!buffer.hasRemaining())
+            throw new IOException("unexpected end of sketch");
+        return buffer.get(buffer.position());
+    }
+
+    /**
+     * Reads a single byte.
+     * 
+     * @return the next byte in the buffer
+     * @throws IOException
+     *             if there is no more data
+     */
+    public byte readByte() throws IOException {
+        try {
+            return buffer.get();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("unexpected end of sketch");
+        }
+    }
+
+    /**
+     * Reads the argument number of bytes into a new buffer sharing this
+     * input's content.
+     * 
+     * @param length
+     *            the number of bytes to be read
+     * @return a buffer containing the bytes
+     * @throws IOException
+     *             if there is not enough data
+     */
+    public ByteBuffer readBytes(int length) throws IOException {
+        ByteBuffer bytes = slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return bytes;
+    }
+
+    /**
+     * Reads a value written using eight bytes.
+     * 
+     * @return the value
+     * @throws IOException
+     *             if there is no more data
+     */
+    public long readLong() throws IOException {
+        try {
+            return buffer.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("unexpected end of sketch");
+        }
+    }
+
+    /**
+     * Reads a value written using four bytes.
+     * 
+     * @return the value
+     * @throws IOException
+     *             if there is no more data
+     */
+    public int readInt() throws IOException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("unexpected end of sketch");
+        }
+    }
+
+    /**
+     * Reads a value written using four bytes.
+     * 
+     * @return the value
+     * @throws IOException
+     *             if there is no more data
+     */
+    public float readFloat() throws IOException {
+        try {
+            return buffer.getFloat();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("unexpected end of sketch");
+        }
+    }
+
+    /**
+     * Reads a value written by {@link SketchOutput#writeVarInt(int)}.
+     * 
+     * @return the value
+     * @throws IOException
+     *             if there is no more data or the value is malformed
+     */
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte next = readByte();
+            value |= (next & 0x7f) << shift;
+            if (next >= 0)
+                return value;
+        }
+        throw new IOException("malformed variable-length integer");
+    }
+
+    /**
+     * Reads a value written by {@link SketchOutput#writeVarLong(long)}.
+     * 
+     * @return the value
+     * @throws IOException
+     *             if there is no more data or the value is malformed
+     */
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final byte next = readByte();
+            value |= (long) (next & 0x7f) << shift;
+            if (next >= 0)
+                return value;
+        }
+        throw new IOException("malformed variable-length integer");
+    }
+
+    /**
+     * Reads a value written by {@link SketchOutput#writeSignedVarInt(int)}.
+     * 
+     * @return the value
+     * @throws IOException
+     *             if there is no more data or the value is malformed
+     */
+    public int readSignedVarInt() throws IOException {
+        final int encoded = readVarInt();
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
+
+    /**
+     * Reads a string written by {@link SketchOutput#writeString(String)}.
+     * 
+     * @return the string, <code>null</code> if an empty string was written
+     * @throws IOException
+     *             if there is no more data
+     */
+    public String readString() throws IOException {
+        final int length = readVarInt();
+        if (length == 0)
+            return null;
+        if (length > buffer.remaining())
+            throw new IOException("unexpected end of sketch");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads a style written as its ordinal value.
+     * 
+     * @return the style
+     * @throws IOException
+     *             if there is no more data or the style is unknown
+     */
+    public Style readStyle() throws IOException {
+        final int ordinal = readByte();
+        if (ordinal < 0 || ordinal >= STYLES.length)
+            throw new IOException("unknown style " + ordinal);
+        return STYLES[ordinal];
+    }
+
+    /**
+     * Reads a list of IDs written as a counter followed by the IDs.
+     * 
+     * @return the IDs as strings, the way they are stored in
+     *         {@link SpaceOccupationList}'s, or <code>null</code> if the list
+     *         is empty
+     * @throws IOException
+     *             if there is no more data
+     */
+    public List<String> readIDs() throws IOException {
+        final int size = readVarInt();
+        if (size == 0)
+            return null;
+        List<String> ids = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            ids.add(String.valueOf(readVarLong()));
+        }
+        return ids;
+    }
+
+    /**
+     * Reads a list of points written by
+     * {@link SketchOutput#writePoints(List)}.
+     * 
+     * @return the points
+     * @throws IOException
+     *             if there is no more data
+     */
+    public List<PointF> readPoints() throws IOException {
+        final int size = readVarInt();
+        // every point takes at least two bytes
+        if (size > buffer.remaining() / 2)
+            throw new IOException("unexpected end of sketch");
+        List<PointF> points = new ArrayList<PointF>(size);
+        int x = 0, y = 0;
+        for (int i = 0; i < size; i++) {
+            x += readSignedVarInt();
+            y += readSignedVarInt();
+            points.add(new PointF(x / SketchFormat.COORDINATE_SCALE, y
+                    / SketchFormat.COORDINATE_SCALE));
+        }
+        return points;
+    }
+}
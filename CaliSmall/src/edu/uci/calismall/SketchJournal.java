@@ -0,0 +1,539 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.graphics.PointF;
+import android.util.Log;
+
+/**
+ * An append-only log of the changes made to a sketch since it was last saved
+ * in full.
+ * 
+ * <p>
+ * Autosaving a sketch only appends to the journal the records of elements
+ * that changed (or were added) since the last autosave, and the IDs of those
+ * that were deleted. Records use the same encoding as {@link SketchFormat}
+ * files. Elements only encode their record again after they've been modified
+ * (see {@link SceneSnapshot}), so an element changed if its record is not the
+ * one that was last written.
+ * 
+ * <p>
+ * A journal file is made of a header, identifying the snapshot file it
+ * applies to, followed by batches of operations. Each batch starts with
+ * {@link #BATCH} and the size of the canvas, and is only considered valid if
+ * it ends with {@link #COMMIT} and the number of operations in it, so that a
+ * batch that was only partially written before a crash is ignored. Batches
+ * are synced to disk one at a time.
+ * 
+ * <p>
+ * When a sketch is opened, {@link #recover(File)} replays the journal (if
+ * any) onto the snapshot, writes the result as a new snapshot and removes the
+ * journal. Once the journal gets bigger than the snapshot,
+ * {@link #needsCompaction()} tells that a full save is due.
+ */
+public class SketchJournal {
+
+    /**
+     * The extension appended to the name of a snapshot file to get the name
+     * of its journal.
+     */
+    public static final String EXTENSION = ".journal";
+    /**
+     * The first four bytes of every journal file ("CSJ" followed by a
+     * <tt>0x1a</tt> byte).
+     */
+    public static final int MAGIC = 0x43534a1a;
+    /**
+     * Marks the beginning of a batch.
+     */
+    public static final byte BATCH = 1;
+    /**
+     * An element was added or changed: followed by its ID, the length of its
+     * record and the record.
+     */
+    public static final byte UPSERT = 2;
+    /**
+     * An element was deleted: followed by its ID.
+     */
+    public static final byte DELETE = 3;
+    /**
+     * Marks the end of a batch: followed by the number of operations in it.
+     */
+    public static final byte COMMIT = 4;
+    /**
+     * Journals smaller than this are never compacted.
+     */
+    public static final long MIN_COMPACTION_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 17;
+    private static final int FINGERPRINT_SIZE = 4096;
+
+    private final File snapshot, journal;
+    private Map<Long, ByteBuffer> persisted, captured;
+
+    /**
+     * Creates a new journal for the argument snapshot file.
+     * 
+     * <p>
+     * Nothing can be appended to the journal until
+     * {@link #capture(SceneSnapshot)} and {@link #snapshotWritten()} have been
+     * called, to record the state of the sketch stored in the snapshot.
+     * 
+     * @param snapshot
+     *            the file containing the last full save of the sketch
+     */
+    public SketchJournal(File snapshot) {
+        this.snapshot = snapshot;
+        this.journal = journalFor(snapshot);
+    }
+
+    /**
+     * Returns the journal file for the argument snapshot file.
+     * 
+     * @param snapshot
+     *            a sketch file
+     * @return the file in which changes to the argument sketch are appended
+     */
+    public static File journalFor(File snapshot) {
+        return new File(snapshot.getParentFile(), snapshot.getName()
+                + EXTENSION);
+    }
+
+    /**
+     * Deletes the journal of the argument snapshot file, if any exists.
+     * 
+     * @param snapshot
+     *            a sketch file
+     */
+    public static void delete(File snapshot) {
+        File journal = journalFor(snapshot);
+        if (journal.exists() && !journal.delete())
+            Utils.debug("couldn't delete " + journal);
+    }
+
+    /**
+     * Returns whether this journal applies to the argument file.
+     * 
+     * @param file
+     *            a sketch file
+     * @return <code>true</code> if <tt>file</tt> is the snapshot of this
+     *         journal
+     */
+    public boolean isFor(File file) {
+        return snapshot.equals(file);
+    }
+
+    /**
+     * Returns whether changes can be appended to this journal, or whether the
+     * sketch must be saved in full first.
+     * 
+     * @return <code>true</code> if the state of the snapshot is known
+     */
+    public boolean canAppend() {
+        return persisted != null && snapshot.exists();
+    }
+
+    /**
+     * Returns whether the journal has grown so much that the sketch should be
+     * saved in full.
+     * 
+     * @return <code>true</code> if the journal is bigger than both the
+     *         snapshot and {@link #MIN_COMPACTION_SIZE}
+     */
+    public boolean needsCompaction() {
+        final long size = journal.length();
+        return size > MIN_COMPACTION_SIZE && size > snapshot.length();
+    }
+
+    /**
+     * Remembers the records of all elements in the argument snapshot, which is
+     * about to be saved in full to the snapshot file.
+     * 
+     * @param scene
+     *            the snapshot that is being saved
+     */
+    public void capture(SceneSnapshot scene) {
+        Map<Long, ByteBuffer> records = new HashMap<Long, ByteBuffer>(
+                scene.size() * 2);
+        for (int i = 0; i < scene.size(); i++) {
+            records.put(scene.getID(i), scene.getRecord(i));
+        }
+        captured = records;
+    }
+
+    /**
+     * Called after the snapshot file has been written successfully: the
+     * journal is deleted and elements captured by the last call to
+     * {@link #capture(SceneSnapshot)} are considered as persisted.
+     */
+    public void snapshotWritten() {
+        delete(snapshot);
+        persisted = captured;
+        captured = null;
+    }
+
+    /**
+     * Appends a batch containing all changes since the last batch (or since
+     * the snapshot was written) to the journal, and syncs it to disk.
+     * 
+     * @param scene
+     *            the current state of the sketch
+     * @return <code>true</code> if anything was appended
+     * @throws IOException
+     *             if anything goes wrong while writing to the journal, in
+     *             which case the sketch should be saved in full
+     */
+    public boolean append(SceneSnapshot scene) throws IOException {
+        if (!canAppend())
+            throw new IOException("the snapshot must be saved first");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SketchOutput batch = new SketchOutput(bytes);
+        Map<Long, ByteBuffer> current = new HashMap<Long, ByteBuffer>(
+                scene.size() * 2);
+        int operations = 0;
+        batch.writeByte(BATCH);
+        batch.writeFloat(scene.getWidth());
+        batch.writeFloat(scene.getHeight());
+        for (int i = 0; i < scene.size(); i++) {
+            final long id = scene.getID(i);
+            final ByteBuffer record = scene.getRecord(i);
+            current.put(id, record);
+            // records are only encoded again when elements change
+            if (persisted.get(id) != record) {
+                batch.writeByte(UPSERT);
+                batch.writeVarLong(id);
+                batch.writeVarInt(record.remaining());
+                batch.writeBytes(record.duplicate());
+                operations++;
+            }
+        }
+        for (Long id : persisted.keySet()) {
+            if (!current.containsKey(id)) {
+                batch.writeByte(DELETE);
+                batch.writeVarLong(id);
+                operations++;
+            }
+        }
+        if (operations == 0) {
+            persisted = current;
+            return false;
+        }
+        batch.writeByte(COMMIT);
+        batch.writeInt(operations);
+        write(bytes);
+        persisted = current;
+        return true;
+    }
+
+    private void write(ByteArrayOutputStream batch) throws IOException {
+        final boolean newJournal = !journal.exists() || journal.length() == 0;
+        FileOutputStream out = new FileOutputStream(journal, !newJournal);
+        try {
+            if (newJournal) {
+                SketchOutput header = new SketchOutput(out);
+                header.writeInt(MAGIC);
+                header.writeByte(SketchFormat.VERSION);
+                header.writeLong(snapshot.length());
+                header.writeInt(fingerprint(snapshot));
+            }
+            batch.writeTo(out);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Computes a checksum of the tail of the argument file, which contains
+     * the element table for binary sketches and therefore changes every time
+     * the sketch is saved.
+     */
+    private static int fingerprint(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            final int length = (int) Math.min(size, FINGERPRINT_SIZE);
+            ByteBuffer tail = ByteBuffer.allocate(length);
+            long position = size - length;
+            while (tail.hasRemaining()) {
+                final int read = channel.read(tail, position);
+                if (read < 0)
+                    throw new IOException("file shrunk while reading it");
+                position += read;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(tail.array(), 0, length);
+            return (int) crc.getValue();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replays the journal of the argument snapshot file (if any exists) onto
+     * the snapshot, writing the result as a new snapshot and deleting the
+     * journal.
+     * 
+     * <p>
+     * Journals that belong to a different version of the snapshot (because
+     * the application crashed after writing a new snapshot but before
+     * deleting the old journal) are discarded.
+     * 
+     * @param snapshot
+     *            a sketch file
+     * @return <code>true</code> if the snapshot was updated with changes
+     *         recovered from the journal
+     * @throws IOException
+     *             if anything goes wrong while reading the files or writing
+     *             the new snapshot
+     */
+    public static boolean recover(File snapshot) throws IOException {
+        File journal = journalFor(snapshot);
+        if (!journal.exists())
+            return false;
+        SketchInput log = open(snapshot);
+        if (log == null) {
+            delete(snapshot);
+            return false;
+        }
+        SketchInput base = SketchInput.map(snapshot);
+        // recovered snapshots are stored the way the original one was
+        final boolean compressed = base.isCompressed();
+        if (compressed)
+            base = SketchInput.inflate(snapshot);
+        if (!base.isBinary()) {
+            Log.w(CaliSmall.TAG, "discarding journal of non-binary "
+                    + snapshot);
+            delete(snapshot);
+            return false;
+        }
+        PointF size = base.readHeader();
+        Map<Long, ByteBuffer> records = readRecords(base);
+        final int applied = replay(log, records, size);
+        if (applied > 0) {
+            write(records, size, snapshot, compressed);
+            Log.i(CaliSmall.TAG, "recovered " + applied + " batches from "
+                    + journal);
+        }
+        delete(snapshot);
+        return applied > 0;
+    }
+
+    /**
+     * Opens the journal of the argument snapshot and checks its header.
+     * 
+     * @return the journal, positioned at its first batch, or
+     *         <code>null</code> if there's no valid journal for the snapshot
+     */
+    private static SketchInput open(File snapshot) throws IOException {
+        File journal = journalFor(snapshot);
+        if (!journal.exists())
+            return null;
+        if (!snapshot.exists() || journal.length() < HEADER_SIZE)
+            return null;
+        SketchInput log = SketchInput.map(journal);
+        if (log.readInt() != MAGIC || log.readByte() > SketchFormat.VERSION
+                || log.readLong() != snapshot.length()
+                || log.readInt() != fingerprint(snapshot)) {
+            Log.w(CaliSmall.TAG, "discarding stale journal " + journal);
+            return null;
+        }
+        return log;
+    }
+
+    private static Map<Long, ByteBuffer> readRecords(SketchInput base)
+            throws IOException {
+        SketchInput.ElementTable table = base.readElementTable();
+        Map<Long, ByteBuffer> records = new LinkedHashMap<Long, ByteBuffer>(
+                table.size() * 2);
+        for (int i = 0; i < table.size(); i++) {
+            records.put(table.ids[i],
+                    base.slice(table.offsets[i], table.length(i)));
+        }
+        return records;
+    }
+
+    /**
+     * Writes all of the argument records to a temporary file which then
+     * replaces <tt>file</tt>.
+     */
+    private static void write(Map<Long, ByteBuffer> records, PointF size,
+            File file, boolean compress) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName()
+                + ".partial");
+        SketchOutput out = SketchOutput.create(tmp, compress);
+        try {
+            out.writeHeader(size.x, size.y);
+            for (Map.Entry<Long, ByteBuffer> record : records.entrySet()) {
+                out.writeRecord(record.getKey(), record.getValue());
+            }
+            out.finish();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("could not replace " + file);
+    }
+
+    private static int replay(SketchInput log, Map<Long, ByteBuffer> records,
+            PointF size) {
+        int applied = 0;
+        List<Long> deleted = new ArrayList<Long>();
+        Map<Long, ByteBuffer> upserted = new LinkedHashMap<Long, ByteBuffer>();
+        try {
+            while (log.hasRemaining()) {
+                if (log.readByte() != BATCH)
+                    break;
+                final float width = log.readFloat();
+                final float height = log.readFloat();
+                deleted.clear();
+                upserted.clear();
+                int operations = 0;
+                byte op;
+                while ((op = log.readByte()) != COMMIT) {
+                    final long id = log.readVarLong();
+                    if (op == UPSERT) {
+                        upserted.put(id, log.readBytes(log.readVarInt()));
+                    } else if (op == DELETE) {
+                        deleted.add(id);
+                    } else {
+                        throw new IOException("unknown operation " + op);
+                    }
+                    operations++;
+                }
+                if (log.readInt() != operations)
+                    break;
+                // the whole batch is there, apply it
+                for (Long id : deleted) {
+                    records.remove(id);
+                }
+                for (Iterator<Map.Entry<Long, ByteBuffer>> iterator = upserted
+                        .entrySet().iterator(); iterator.hasNext();) {
+                    Map.Entry<Long, ByteBuffer> entry = iterator.next();
+                    records.put(entry.getKey(), entry.getValue());
+                }
+                size.set(width, height);
+                applied++;
+            }
+        } catch (IOException e) {
+            // a batch was truncated by a crash, ignore it
+            Log.w(CaliSmall.TAG, "journal ends with an incomplete batch", e);
+        }
+        return applied;
+    }
+
+    /**
+     * Makes a backup copy of the argument snapshot and of its journal.
+     * 
+     * <p>
+     * If the backup is stored the same way as the snapshot (both compressed
+     * or both uncompressed) and was made from the same snapshot, only the part
+     * of the journal that was appended since the last backup is copied.
+     * Otherwise, the journal is replayed onto the snapshot and the result is
+     * written to <tt>backup</tt> as a whole, with no journal.
+     * 
+     * @param snapshot
+     *            the sketch file to be backed up
+     * @param backup
+     *            the file to which the snapshot must be copied
+     * @param compress
+     *            whether the backup should be compressed
+     * @throws IOException
+     *             if anything goes wrong while copying files
+     */
+    public static void backup(File snapshot, File backup, boolean compress)
+            throws IOException {
+        SketchInput base = SketchInput.map(snapshot);
+        if (base.isCompressed() != compress) {
+            if (base.isCompressed())
+                base = SketchInput.inflate(snapshot);
+            if (base.isBinary()) {
+                PointF size = base.readHeader();
+                Map<Long, ByteBuffer> records = readRecords(base);
+                SketchInput log = open(snapshot);
+                if (log != null)
+                    replay(log, records, size);
+                write(records, size, backup, compress);
+                delete(backup);
+                return;
+            }
+            // JSON sketches are only converted when they're saved again
+        }
+        File journal = journalFor(snapshot);
+        File backupJournal = journalFor(backup);
+        if (backup.length() != snapshot.length()
+                || fingerprint(backup) != fingerprint(snapshot)) {
+            copy(snapshot, backup, 0);
+            delete(backup);
+        }
+        if (!journal.exists()) {
+            delete(backup);
+        } else if (backupJournal.length() > journal.length()) {
+            copy(journal, backupJournal, 0);
+        } else {
+            copy(journal, backupJournal, backupJournal.length());
+        }
+    }
+
+    private static void copy(File from, File to, long start)
+            throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(to, start > 0);
+            FileChannel source = in.getChannel();
+            FileChannel destination = out.getChannel();
+            long position = start;
+            final long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position,
+                        destination);
+            }
+        } finally {
+            in.close();
+            if (out != null)
+                out.close();
+        }
+    }
+}
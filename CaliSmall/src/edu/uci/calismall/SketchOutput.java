@@ -0,0 +1,427 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import android.graphics.PointF;
+
+/**
+ * Writes sketches to a stream using the binary format described in
+ * {@link SketchFormat}.
+ * 
+ * <p>
+ * Elements write their own records through {@link #beginRecord(byte, long)}
+ * and the primitive <tt>write</tt> methods; the output keeps track of where
+ * every record starts, so that the element table can be appended by
+ * {@link #finish()} once all elements have been written.
+ */
+public class SketchOutput {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private final OutputStream out;
+    private int position;
+    private byte[] tableTypes = new byte[64];
+    private long[] tableIDs = new long[64];
+    private int[] tableOffsets = new int[64];
+    private int tableSize;
+
+    /**
+     * Creates a new output writing to the argument stream.
+     * 
+     * <p>
+     * Most writes are a single byte long, so <tt>out</tt> should be buffered.
+     * 
+     * @param out
+     *            the stream to which sketches are written
+     */
+    public SketchOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Creates a new buffered output writing to the argument file.
+     * 
+     * <p>
+     * Compressed files are written as a single GZIP stream, deflated while
+     * the sketch is being written, so that no uncompressed copy of the
+     * sketch is ever kept in memory or on disk.
+     * 
+     * @param file
+     *            the file to be (over)written
+     * @param compress
+     *            whether the file should be compressed
+     * @return a new output writing to the file
+     * @throws IOException
+     *             if the file cannot be opened for writing
+     */
+    public static SketchOutput create(File file, boolean compress)
+            throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (compress) {
+            try {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+        return new SketchOutput(new BufferedOutputStream(out, BUFFER_SIZE));
+    }
+
+    /**
+     * Writes the header of a sketch file.
+     * 
+     * @param width
+     *            the width of the drawable canvas
+     * @param height
+     *            the height of the drawable canvas
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeHeader(float width, float height) throws IOException {
+        writeHeader(width, height, 0);
+    }
+
+    /**
+     * Writes the header of a sketch file having the argument flags set.
+     * 
+     * @param width
+     *            the width of the drawable canvas
+     * @param height
+     *            the height of the drawable canvas
+     * @param flags
+     *            the flags describing the layout of the file, such as
+     *            {@link SketchFormat#FLAG_TILED}
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeHeader(float width, float height, int flags)
+            throws IOException {
+        writeInt(SketchFormat.MAGIC);
+        writeByte(SketchFormat.VERSION);
+        writeByte(flags);
+        writeFloat(width);
+        writeFloat(height);
+    }
+
+    /**
+     * Writes the tile directory, which must follow a header having the
+     * {@link SketchFormat#FLAG_TILED} flag set.
+     * 
+     * @param tileSize
+     *            the size of the side of each tile
+     * @param columns
+     *            the number of columns of tiles
+     * @param rows
+     *            the number of rows of tiles
+     * @param firstRecords
+     *            the index of the first record of each tile, in row-major
+     *            order
+     * @param counts
+     *            the number of records in each tile
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeTileDirectory(float tileSize, int columns, int rows,
+            int[] firstRecords, int[] counts) throws IOException {
+        writeFloat(tileSize);
+        writeInt(columns);
+        writeInt(rows);
+        for (int i = 0; i < firstRecords.length; i++) {
+            writeInt(firstRecords[i]);
+            writeInt(counts[i]);
+        }
+    }
+
+    /**
+     * Starts the record for an element, adding it to the element table.
+     * 
+     * @param type
+     *            the type of the record, one of the constants defined in
+     *            {@link SketchFormat}
+     * @param id
+     *            the ID of the element being written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void beginRecord(byte type, long id) throws IOException {
+        if (tableSize == tableTypes.length) {
+            final int newSize = tableSize * 2;
+            byte[] types = new byte[newSize];
+            long[] ids = new long[newSize];
+            int[] offsets = new int[newSize];
+            System.arraycopy(tableTypes, 0, types, 0, tableSize);
+            System.arraycopy(tableIDs, 0, ids, 0, tableSize);
+            System.arraycopy(tableOffsets, 0, offsets, 0, tableSize);
+            tableTypes = types;
+            tableIDs = ids;
+            tableOffsets = offsets;
+        }
+        tableTypes[tableSize] = type;
+        tableIDs[tableSize] = id;
+        tableOffsets[tableSize] = position;
+        tableSize++;
+        writeByte(type);
+    }
+
+    /**
+     * Copies a whole record, as read from another sketch, adding it to the
+     * element table.
+     * 
+     * @param id
+     *            the ID of the element stored in the record
+     * @param record
+     *            the record, starting with the byte identifying its type
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeRecord(long id, ByteBuffer record) throws IOException {
+        record = record.duplicate();
+        beginRecord(record.get(), id);
+        writeBytes(record);
+    }
+
+    /**
+     * Terminates the list of records and writes the element table and the
+     * trailer, flushing the stream.
+     * 
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void finish() throws IOException {
+        writeByte(SketchFormat.END);
+        final int tableOffset = position;
+        for (int i = 0; i < tableSize; i++) {
+            writeByte(tableTypes[i]);
+            writeLong(tableIDs[i]);
+            writeInt(tableOffsets[i]);
+        }
+        writeInt(tableOffset);
+        writeInt(tableSize);
+        writeInt(SketchFormat.MAGIC);
+        out.flush();
+    }
+
+    /**
+     * Closes the underlying stream.
+     * 
+     * @throws IOException
+     *             if anything goes wrong while closing the stream
+     */
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Writes the lowest 8 bits of the argument value.
+     * 
+     * @param value
+     *            the value to be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeByte(int value) throws IOException {
+        out.write(value);
+        position++;
+    }
+
+    /**
+     * Writes all remaining bytes in the argument buffer.
+     * 
+     * @param bytes
+     *            the bytes to be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeBytes(ByteBuffer bytes) throws IOException {
+        final int length = bytes.remaining();
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                    length);
+        } else {
+            byte[] copy = new byte[length];
+            bytes.duplicate().get(copy);
+            out.write(copy);
+        }
+        position += length;
+    }
+
+    /**
+     * Writes the argument value using four bytes.
+     * 
+     * @param value
+     *            the value to be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeInt(int value) throws IOException {
+        writeByte(value >>> 24);
+        writeByte(value >>> 16);
+        writeByte(value >>> 8);
+        writeByte(value);
+    }
+
+    /**
+     * Writes the argument value using eight bytes.
+     * 
+     * @param value
+     *            the value to be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeLong(long value) throws IOException {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Writes the argument value using four bytes.
+     * 
+     * @param value
+     *            the value to be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeFloat(float value) throws IOException {
+        writeInt(Float.floatToIntBits(value));
+    }
+
+    /**
+     * Writes a non-negative value using as few bytes as possible (seven bits
+     * per byte).
+     * 
+     * @param value
+     *            the value to be written, treated as unsigned
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    /**
+     * Writes a non-negative value using as few bytes as possible (seven bits
+     * per byte).
+     * 
+     * @param value
+     *            the value to be written, treated as unsigned
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    /**
+     * Writes a value that can be negative, zig-zag encoding it so that values
+     * close to zero take as few bytes as possible.
+     * 
+     * @param value
+     *            the value to be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeSignedVarInt(int value) throws IOException {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Writes the argument string as UTF-8 bytes, preceded by their number.
+     * 
+     * @param value
+     *            the string to be written, <code>null</code> is written as an
+     *            empty string
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeString(String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes("UTF-8");
+        writeVarInt(bytes.length);
+        out.write(bytes);
+        position += bytes.length;
+    }
+
+    /**
+     * Writes the IDs of all of the argument elements, preceded by their
+     * number.
+     * 
+     * @param elements
+     *            the elements whose IDs must be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writeIDs(List<? extends CaliSmallElement> elements)
+            throws IOException {
+        final int size = elements.size();
+        writeVarInt(size);
+        for (int i = 0; i < size; i++) {
+            writeVarLong(elements.get(i).getID());
+        }
+    }
+
+    /**
+     * Writes the argument list of points, quantized to
+     * {@link SketchFormat#COORDINATE_SCALE} steps per pixel and encoded as
+     * differences from the previous point.
+     * 
+     * @param points
+     *            the points to be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public void writePoints(List<PointF> points) throws IOException {
+        final int size = points.size();
+        writeVarInt(size);
+        int previousX = 0, previousY = 0;
+        for (int i = 0; i < size; i++) {
+            PointF point = points.get(i);
+            final int x = Math.round(point.x * SketchFormat.COORDINATE_SCALE);
+            final int y = Math.round(point.y * SketchFormat.COORDINATE_SCALE);
+            writeSignedVarInt(x - previousX);
+            writeSignedVarInt(y - previousY);
+            previousX = x;
+            previousY = y;
+        }
+    }
+}
@@ -28,11 +28,13 @@
 package edu.uci.calismall;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import android.graphics.PointF;
+import android.graphics.RectF;
 
 /**
  * A list of {@link CaliSmallElement}'s sorted by their position along the two
@@ -126,6 +128,34 @@ public class SpaceOccupationList<T extends CaliSmallElement> {
         return candidates;
     }
 
+    /**
+     * Finds all elements whose boundaries rectangle intersects with the
+     * argument <tt>area</tt>.
+     * 
+     * <p>
+     * As for {@link #findIntersectionCandidates(CaliSmallElement)}, returned
+     * elements do not necessarily overlap the area, but all elements that do
+     * overlap it are returned.
+     * 
+     * @param area
+     *            the area to be tested
+     * @return a (potentially empty) list containing all elements that can
+     *         potentially intersect the argument <tt>area</tt>
+     */
+    public List<T> findIntersectionCandidates(RectF area) {
+        List<T> candidates = new ArrayList<T>();
+        for (int i = 0; i < list.size(); i++) {
+            T candidate = list.get(i);
+            final PointF topLeft = candidate.topLeftPoint;
+            if (topLeft.x <= area.right
+                    && topLeft.x + candidate.width >= area.left
+                    && topLeft.y <= area.bottom
+                    && topLeft.y + candidate.height >= area.top)
+                candidates.add(candidate);
+        }
+        return candidates;
+    }
+
     /**
      * Returns the element having the argument <tt>id</tt>, if any is stored
      * within this map.
@@ -169,9 +199,10 @@ public class SpaceOccupationList<T extends CaliSmallElement> {
      * Removes all of the argument elements from this list.
      * 
      * @param toBeRemoved
-     *            a list of elements that have been erased
+     *            the elements that have been erased, which should be a
+     *            {@link java.util.Set} unless very few elements are removed
      */
-    public void removeAll(List<? extends CaliSmallElement> toBeRemoved) {
+    public void removeAll(Collection<? extends CaliSmallElement> toBeRemoved) {
         for (CaliSmallElement element : toBeRemoved) {
             idMap.remove(element.id);
         }
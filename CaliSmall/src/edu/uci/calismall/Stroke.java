@@ -27,6 +27,7 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -48,6 +49,8 @@ import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 import android.view.View;
 
 /**
@@ -61,7 +64,8 @@ import android.view.View;
  * 
  * @author Michele Bonazza
  */
-class Stroke extends CaliSmallElement implements JSONSerializable<Stroke> {
+class Stroke extends CaliSmallElement implements JSONSerializable<Stroke>,
+        BinarySerializable<Stroke> {
 
     private static final int DEFAULT_COLOR = Color.BLACK;
     /**
@@ -396,6 +400,7 @@ class Stroke extends CaliSmallElement implements JSONSerializable<Stroke> {
      */
     public Stroke setColor(int color) {
         this.color = color;
+        modified();
         return this;
     }
 
@@ -724,6 +729,90 @@ class Stroke extends CaliSmallElement implements JSONSerializable<Stroke> {
         return false;
     }
 
+    /**
+     * Tests whether this stroke is touched by a circle of the argument
+     * <tt>radius</tt> that is swept along the segment going from <tt>from</tt>
+     * to <tt>to</tt>.
+     * 
+     * <p>
+     * This is what the eraser uses: testing the whole segment between two
+     * consecutive touch events prevents fast swipes from skipping strokes. The
+     * test is performed on the segments between this stroke's points, and the
+     * width of the stroke is taken into account.
+     * 
+     * @param from
+     *            the position of the circle at the start of the sweep
+     * @param to
+     *            the position of the circle at the end of the sweep
+     * @param radius
+     *            the radius of the circle
+     * @return <code>true</code> if any part of this stroke is within
+     *         <tt>radius</tt> from the segment
+     */
+    public boolean intersectsSwept(PointF from, PointF to, float radius) {
+        if (points.isEmpty())
+            return false;
+        final float threshold = radius + strokeWidth / 2;
+        final float squaredThreshold = threshold * threshold;
+        PointF last = points.get(0);
+        if (points.size() == 1) {
+            return squaredDistance(last.x, last.y, from.x, from.y, to.x,
+                    to.y) <= squaredThreshold;
+        }
+        for (int i = 1; i < points.size(); i++) {
+            PointF point = points.get(i);
+            if (squaredDistance(last.x, last.y, point.x, point.y, from.x,
+                    from.y, to.x, to.y) <= squaredThreshold)
+                return true;
+            last = point;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the squared distance between point <tt>p</tt> and the segment
+     * going from <tt>a</tt> to <tt>b</tt>.
+     */
+    static float squaredDistance(float pX, float pY, float aX, float aY,
+            float bX, float bY) {
+        final float dX = bX - aX;
+        final float dY = bY - aY;
+        final float squaredLength = dX * dX + dY * dY;
+        float t = 0;
+        if (squaredLength > 0) {
+            t = ((pX - aX) * dX + (pY - aY) * dY) / squaredLength;
+            t = Math.max(0, Math.min(1, t));
+        }
+        final float x = aX + t * dX - pX;
+        final float y = aY + t * dY - pY;
+        return x * x + y * y;
+    }
+
+    /**
+     * Returns the squared distance between segment <tt>a1-a2</tt> and segment
+     * <tt>b1-b2</tt>, which is <tt>0</tt> if the two segments cross.
+     */
+    static float squaredDistance(float a1X, float a1Y, float a2X, float a2Y,
+            float b1X, float b1Y, float b2X, float b2Y) {
+        final float d1 = cross(b1X, b1Y, b2X, b2Y, a1X, a1Y);
+        final float d2 = cross(b1X, b1Y, b2X, b2Y, a2X, a2Y);
+        final float d3 = cross(a1X, a1Y, a2X, a2Y, b1X, b1Y);
+        final float d4 = cross(a1X, a1Y, a2X, a2Y, b2X, b2Y);
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0))
+                && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0)))
+            return 0;
+        return Math.min(Math.min(
+                squaredDistance(a1X, a1Y, b1X, b1Y, b2X, b2Y),
+                squaredDistance(a2X, a2Y, b1X, b1Y, b2X, b2Y)), Math.min(
+                squaredDistance(b1X, b1Y, a1X, a1Y, a2X, a2Y),
+                squaredDistance(b2X, b2Y, a1X, a1Y, a2X, a2Y)));
+    }
+
+    private static float cross(float aX, float aY, float bX, float bY,
+            float pX, float pY) {
+        return (bX - aX) * (pY - aY) - (bY - aY) * (pX - aX);
+    }
+
     /**
      * Draws this stroke on the argument canvas.
      * 
@@ -767,9 +856,9 @@ class Stroke extends CaliSmallElement implements JSONSerializable<Stroke> {
     }
 
     /**
-     * Marks this element as <i>toBeDeleted</i>, so that calls to
-     * {@link #deleteMarkedFromList(List, SpaceOccupationList)} will remove it
-     * from lists. Also marks this stroke as non-ghost.
+     * Marks this element as <i>toBeDeleted</i>, so that the drawing thread
+     * removes it from the lists of the parent view before the next frame.
+     * Also marks this stroke as non-ghost.
      */
     @Override
     public void delete() {
@@ -877,25 +966,163 @@ class Stroke extends CaliSmallElement implements JSONSerializable<Stroke> {
                 }
             }
             if (changed || newPoints.isEmpty()) {
-                Path newPath = new Path();
-                if (!newPoints.isEmpty()) {
-                    PointF start = newPoints.get(0);
-                    newPath.moveTo(start.x, start.y);
-                    newPath.lineTo(start.x, start.y);
-                    for (int i = 1; i < newPoints.size(); i++) {
-                        PointF end = newPoints.get(i);
-                        newPath.quadTo(start.x, start.y, (end.x + start.x) / 2,
-                                (end.y + start.y) / 2);
-                        start = end;
+                setPoints(newPoints);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Replaces all points in this stroke with the argument ones, rebuilding the
+     * path as if points had been added one by one through
+     * {@link #addAndDrawPoint(PointF, float)}.
+     * 
+     * <p>
+     * Boundaries are only computed once, after all points have been added.
+     * 
+     * @param newPoints
+     *            the new points for this stroke
+     */
+    void setPoints(List<PointF> newPoints) {
+        Path newPath = new Path();
+        if (!newPoints.isEmpty()) {
+            PointF start = newPoints.get(0);
+            newPath.moveTo(start.x, start.y);
+            newPath.lineTo(start.x, start.y);
+            for (int i = 1; i < newPoints.size(); i++) {
+                PointF end = newPoints.get(i);
+                newPath.quadTo(start.x, start.y, (end.x + start.x) / 2,
+                        (end.y + start.y) / 2);
+                start = end;
+            }
+        }
+        reset();
+        path.set(newPath);
+        points.addAll(newPoints);
+        setBoundaries();
+    }
+
+    /**
+     * Erases all parts of this stroke that are touched by a circle of the
+     * argument <tt>radius</tt> swept along the segment going from <tt>from</tt>
+     * to <tt>to</tt>, splitting the rest of it into new strokes.
+     * 
+     * <p>
+     * Segments of this stroke that pass close to the eraser are walked in steps
+     * smaller than the eraser, so that only the portion that is actually
+     * touched is removed even when the stroke only has few, far apart points.
+     * This stroke is not modified: callers are responsible for deleting it and
+     * for adding the returned strokes to the view (and to this stroke's parent
+     * scrap, if any).
+     * 
+     * @param from
+     *            the position of the eraser at the start of the sweep
+     * @param to
+     *            the position of the eraser at the end of the sweep
+     * @param radius
+     *            the radius of the eraser
+     * @return a (possibly empty) list containing the strokes in which the
+     *         parts of this stroke that survived the eraser have been turned
+     *         into, with the same style as this stroke; <code>null</code> if
+     *         the eraser didn't touch this stroke at all
+     */
+    List<Stroke> split(PointF from, PointF to, float radius) {
+        if (points.size() < 2 || isDot)
+            return intersectsSwept(from, to, radius) ? new ArrayList<Stroke>()
+                    : null;
+        final List<PointF> outline = getOutline();
+        final float threshold = radius + strokeWidth / 2;
+        final float squaredThreshold = threshold * threshold;
+        final float step = radius / 2;
+        List<List<PointF>> pieces = new ArrayList<List<PointF>>();
+        List<PointF> piece = new ArrayList<PointF>();
+        final List<PointF> firstPiece = piece;
+        boolean touched = false;
+        PointF last = null;
+        for (int i = 0; i < outline.size(); i++) {
+            PointF point = outline.get(i);
+            if (last != null
+                    && squaredDistance(last.x, last.y, point.x, point.y,
+                            from.x, from.y, to.x, to.y) <= squaredThreshold) {
+                final int steps = (int) Math.ceil(Utils.getDistance(last,
+                        point) / step);
+                for (int j = 1; j < steps; j++) {
+                    final float t = (float) j / steps;
+                    final float x = last.x + t * (point.x - last.x);
+                    final float y = last.y + t * (point.y - last.y);
+                    if (squaredDistance(x, y, from.x, from.y, to.x, to.y)
+                            <= squaredThreshold) {
+                        touched = true;
+                        piece = closePiece(piece, pieces);
+                    } else {
+                        piece.add(new PointF(x, y));
                     }
                 }
-                reset();
-                path.set(newPath);
-                points.addAll(newPoints);
-                setBoundaries();
             }
+            if (squaredDistance(point.x, point.y, from.x, from.y, to.x,
+                    to.y) <= squaredThreshold) {
+                touched = true;
+                piece = closePiece(piece, pieces);
+            } else {
+                piece.add(new PointF(point.x, point.y));
+            }
+            last = point;
         }
-        return changed;
+        if (!touched)
+            return null;
+        if (isClosed() && piece != firstPiece && !piece.isEmpty()) {
+            // the outline ends where it starts, and neither end was erased:
+            // the first and the last piece are one and the same
+            piece.remove(piece.size() - 1);
+            if (!pieces.isEmpty() && pieces.get(0) == firstPiece)
+                pieces.remove(0);
+            piece.addAll(firstPiece);
+        }
+        closePiece(piece, pieces);
+        List<Stroke> strokes = new ArrayList<Stroke>(pieces.size());
+        for (List<PointF> newPoints : pieces) {
+            Stroke stroke = new Stroke(parentView, new Path(), this);
+            stroke.style = style;
+            stroke.setPoints(newPoints);
+            strokes.add(stroke);
+        }
+        return strokes;
+    }
+
+    private List<PointF> closePiece(List<PointF> piece,
+            List<List<PointF>> pieces) {
+        if (piece.isEmpty())
+            return piece;
+        // single points are what's left between two erased portions
+        if (piece.size() > 1)
+            pieces.add(piece);
+        return new ArrayList<PointF>();
+    }
+
+    /**
+     * Returns the points that {@link #split(PointF, PointF, float)} walks
+     * along, one segment after the other.
+     * 
+     * <p>
+     * The points must follow this stroke as it's drawn, since pieces are
+     * plain strokes drawn through them. If this stroke {@link #isClosed()},
+     * the last point must be at the same position as the first one.
+     * 
+     * @return the outline of this stroke, which must not be modified
+     */
+    protected List<PointF> getOutline() {
+        return points;
+    }
+
+    /**
+     * Returns whether this stroke is drawn as a closed shape, so that erasing
+     * it in a single spot leaves one piece rather than two.
+     * 
+     * @return <code>true</code> if the last point of this stroke is joined to
+     *         the first one
+     */
+    protected boolean isClosed() {
+        return false;
     }
 
     private PointF getIntercept(PointF lastIn, PointF firstOut,
@@ -942,6 +1169,7 @@ class Stroke extends CaliSmallElement implements JSONSerializable<Stroke> {
     @Override
     public JSONObject toJSON() throws JSONException {
         JSONObject json = new JSONObject();
+        json.put(ElementType.TAG_KEY, getType().getTag());
         json.put("id", id);
         json.put("c", color);
         json.put("w", strokeWidth);
@@ -958,30 +1186,58 @@ class Stroke extends CaliSmallElement implements JSONSerializable<Stroke> {
      */
     @Override
     public Stroke fromJSON(JSONObject jsonData) throws JSONException {
-        try {
-            jsonData.getBoolean("r");
-            // a RoundRectStroke
-            RoundRectStroke rrs = new RoundRectStroke(parentView)
-                    .fromJSON(jsonData);
-            return rrs;
-        } catch (JSONException e) {
-            // not a RoundRectStroke
-            try {
-                jsonData.getBoolean("rect");
-                // a RectStroke
-                return new RectStroke(parentView).fromJSON(jsonData);
-            } catch (JSONException e1) {
-                // not even a RectStroke
-                id = jsonData.getLong("id");
-                color = jsonData.getInt("c");
-                strokeWidth = (float) jsonData.getDouble("w");
-                style = Style.valueOf(jsonData.getString("s"));
-                for (PointF point : parsePoints(jsonData))
-                    addAndDrawPoint(point, -1f);
-                setBoundaries();
-            }
+        final ElementType type = typeOf(jsonData);
+        Stroke stroke = newStroke(type);
+        if (stroke == null)
+            throw new JSONException("not a stroke: " + type);
+        if (stroke != this)
+            // subclasses read their own fields
+            return stroke.fromJSON(jsonData);
+        id = jsonData.getLong("id");
+        color = jsonData.getInt("c");
+        strokeWidth = (float) jsonData.getDouble("w");
+        style = Style.valueOf(jsonData.getString("s"));
+        for (PointF point : parsePoints(jsonData))
+            addAndDrawPoint(point, -1f);
+        setBoundaries();
+        return this;
+    }
+
+    private static ElementType typeOf(JSONObject jsonData) {
+        ElementType type = ElementType.forTag(jsonData.optString(
+                ElementType.TAG_KEY, null));
+        if (type != null)
+            return type;
+        // written before tags were introduced
+        return legacyType(jsonData.optBoolean("r"),
+                jsonData.optBoolean("rect"));
+    }
+
+    private static ElementType legacyType(boolean roundRect, boolean rect) {
+        if (roundRect)
+            return ElementType.ROUND_RECT_STROKE;
+        if (rect)
+            return ElementType.RECT_STROKE;
+        return ElementType.STROKE;
+    }
+
+    /**
+     * Returns a stroke of the argument type to be populated with data read
+     * from a sketch file, which is this stroke if it's of the right type
+     * already.
+     * 
+     * @param type
+     *            the type of the stroke to be read
+     * @return a stroke of the argument type, or <code>null</code> if
+     *         <tt>type</tt> is not a type of stroke
+     */
+    private Stroke newStroke(ElementType type) {
+        if (type == getType())
             return this;
-        }
+        CaliSmallElement element = type.newElement(parentView);
+        if (element instanceof Stroke)
+            return (Stroke) element;
+        return null;
     }
 
     /**
@@ -1011,6 +1267,250 @@ class Stroke extends CaliSmallElement implements JSONSerializable<Stroke> {
         return newPoints;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.JSONSerializable#fromJSON(android.util.JsonReader)
+     */
+    @Override
+    public Stroke fromJSON(JsonReader reader) throws IOException {
+        long newID = -1;
+        int newColor = color;
+        float newWidth = strokeWidth;
+        Style newStyle = style;
+        List<PointF> newPoints = null;
+        ElementType type = null;
+        boolean roundRect = false, rect = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("id".equals(name))
+                newID = reader.nextLong();
+            else if ("c".equals(name))
+                newColor = reader.nextInt();
+            else if ("w".equals(name))
+                newWidth = (float) reader.nextDouble();
+            else if ("s".equals(name))
+                newStyle = Style.valueOf(reader.nextString());
+            else if ("p".equals(name))
+                newPoints = readPoints(reader);
+            else if (ElementType.TAG_KEY.equals(name))
+                type = ElementType.forTag(reader.nextString());
+            else if ("r".equals(name))
+                roundRect = reader.nextBoolean();
+            else if ("rect".equals(name))
+                rect = reader.nextBoolean();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
+        if (newPoints == null)
+            throw new IOException("stroke " + newID + " has no points");
+        if (type == null)
+            type = legacyType(roundRect, rect);
+        Stroke stroke = newStroke(type);
+        if (stroke == null)
+            throw new IOException("element " + newID + " is not a stroke");
+        return stroke.restore(newID, newColor, newWidth, newStyle, newPoints);
+    }
+
+    private static List<PointF> readPoints(JsonReader reader)
+            throws IOException {
+        List<PointF> newPoints = new ArrayList<PointF>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            final float x = (float) reader.nextDouble();
+            final float y = (float) reader.nextDouble();
+            reader.endArray();
+            newPoints.add(new PointF(x, y));
+        }
+        reader.endArray();
+        return newPoints;
+    }
+
+    /**
+     * Sets all fields of this stroke to the argument values, as read from a
+     * sketch file.
+     * 
+     * <p>
+     * The path is built only once, after all points are known.
+     * 
+     * @param id
+     *            the ID of this stroke, if negative the ID that was assigned
+     *            to this stroke when it was created is kept
+     * @param color
+     *            the color of this stroke
+     * @param strokeWidth
+     *            the width of this stroke
+     * @param style
+     *            the style used to draw this stroke
+     * @param newPoints
+     *            all points of this stroke
+     * @return a reference to this stroke
+     */
+    Stroke restore(long id, int color, float strokeWidth, Style style,
+            List<PointF> newPoints) {
+        if (id > -1)
+            this.id = id;
+        this.color = color;
+        this.strokeWidth = strokeWidth;
+        restorePoints(newPoints);
+        this.style = style;
+        if (newPoints.size() == 1)
+            turnIntoDot();
+        return this;
+    }
+
+    /**
+     * Replaces all points of this stroke with the argument ones and creates
+     * the path that goes through them.
+     * 
+     * <p>
+     * Subclasses that draw their path in a different way should override this
+     * method.
+     * 
+     * @param newPoints
+     *            the points read from file
+     */
+    protected void restorePoints(List<PointF> newPoints) {
+        setPoints(newPoints);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.JSONSerializable#toJSON(android.util.JsonWriter)
+     */
+    @Override
+    public void toJSON(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writeFields(writer);
+        writer.endObject();
+    }
+
+    /**
+     * Writes all of the fields of this stroke to the argument <tt>writer</tt>,
+     * which must have already begun writing the object for this stroke.
+     * 
+     * <p>
+     * Subclasses that need to store more information should override this
+     * method, calling the superclass implementation first.
+     * 
+     * @param writer
+     *            the writer to which fields must be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    protected void writeFields(JsonWriter writer) throws IOException {
+        writer.name(ElementType.TAG_KEY).value(getType().getTag());
+        writer.name("id").value(id);
+        writer.name("c").value(color);
+        writer.name("w").value(strokeWidth);
+        writer.name("s").value(style.name());
+        writer.name("p").beginArray();
+        for (int i = 0; i < points.size(); i++) {
+            PointF point = points.get(i);
+            writer.beginArray();
+            writer.value(Math.round(point.x * 1000) / 1000.0);
+            writer.value(Math.round(point.y * 1000) / 1000.0);
+            writer.endArray();
+        }
+        writer.endArray();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.BinarySerializable#toBinary(edu.uci.calismall.SketchOutput
+     * )
+     */
+    @Override
+    public void toBinary(SketchOutput out) throws IOException {
+        out.beginRecord(getRecordType(), id);
+        writeBinaryFields(out);
+    }
+
+    /**
+     * Returns the type of this stroke, that is stored in sketch files so that
+     * the stroke is read back as an instance of the right class.
+     * 
+     * <p>
+     * Subclasses must override this method.
+     * 
+     * @return the type of this stroke
+     */
+    public ElementType getType() {
+        return ElementType.STROKE;
+    }
+
+    /**
+     * Returns the type of record used to store this stroke in binary files.
+     * 
+     * @return one of the record types defined in {@link SketchFormat}
+     */
+    protected byte getRecordType() {
+        return getType().getRecordType();
+    }
+
+    /**
+     * Writes all of the fields of this stroke to the argument <tt>out</tt>,
+     * without the byte identifying the type of record.
+     * 
+     * @param out
+     *            the output to which fields must be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    void writeBinaryFields(SketchOutput out) throws IOException {
+        out.writeVarLong(id);
+        out.writeInt(color);
+        out.writeFloat(strokeWidth);
+        out.writeByte(style.ordinal());
+        out.writePoints(points);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * edu.uci.calismall.BinarySerializable#fromBinary(edu.uci.calismall.SketchInput
+     * )
+     */
+    @Override
+    public Stroke fromBinary(SketchInput in) throws IOException {
+        final byte recordType = in.readByte();
+        final ElementType type = ElementType.forRecordType(recordType);
+        final Stroke stroke = type == null ? null : newStroke(type);
+        if (stroke == null)
+            throw new IOException("unknown stroke type " + recordType);
+        return stroke.readBinaryFields(in);
+    }
+
+    /**
+     * Reads all fields written by {@link #writeBinaryFields(SketchOutput)} and
+     * restores this stroke using them.
+     * 
+     * @param in
+     *            the input from which fields are read
+     * @return a reference to this stroke
+     * @throws IOException
+     *             if the data is truncated or malformed
+     */
+    Stroke readBinaryFields(SketchInput in) throws IOException {
+        final long newID = in.readVarLong();
+        final int newColor = in.readInt();
+        final float newWidth = in.readFloat();
+        final Style newStyle = in.readStyle();
+        final List<PointF> newPoints = in.readPoints();
+        if (newPoints.isEmpty())
+            throw new IOException("stroke " + newID + " has no points");
+        return restore(newID, newColor, newWidth, newStyle, newPoints);
+    }
+
     private JSONArray pointsToList() {
         JSONArray array = new JSONArray();
         for (int i = 0; i < points.size(); i++) {
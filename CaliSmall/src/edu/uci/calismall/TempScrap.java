@@ -29,7 +29,9 @@ package edu.uci.calismall;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -37,6 +39,7 @@ import android.graphics.Color;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
+import android.graphics.Path;
 import android.graphics.PointF;
 
 /**
@@ -76,6 +79,10 @@ public class TempScrap extends Scrap {
     /**
      * Creates a new temporary selection scrap.
      * 
+     * <p>
+     * The new scrap is empty: its content is found by the job returned by
+     * {@link #findSelected(float)}.
+     * 
      * @param selectionBorder
      *            the border enclosing the temporary scrap
      * @param scaleFactor
@@ -86,7 +93,6 @@ public class TempScrap extends Scrap {
         regionColor = REGION_COLOR;
         dashInterval = CaliView.ABS_LANDING_ZONE_INTERVAL / scaleFactor;
         outerBorder.mustBeDrawnVectorially(false);
-        findSelected();
     }
 
     /**
@@ -107,54 +113,148 @@ public class TempScrap extends Scrap {
         dashInterval = CaliView.ABS_LANDING_ZONE_INTERVAL / scaleFactor;
     }
 
-    private void findSelected() {
-        List<CaliSmallElement> candidates = parentView.getScrapList()
-                .findIntersectionCandidates(this);
-        Collections.sort(candidates);
-        List<Scrap> allScrapsInSelection = new ArrayList<Scrap>();
-        List<Stroke> allStrokesInSelection = new ArrayList<Stroke>();
-        // iterate from largest to smallest
-        for (int i = candidates.size() - 1; i > -1; i--) {
-            Scrap scrap = (Scrap) candidates.get(i);
-            if (!scrap.addedToSelection) {
-                if (outerBorder.contains(scrap.outerBorder)) {
-                    scraps.add(scrap);
-                    allScrapsInSelection.add(scrap);
-                    if (scrap.parent != null) {
-                        ((Scrap) scrap.parent).remove(scrap);
-                    } else {
-                        scrap.previousParent = null;
-                    }
-                    scrap.parent = this;
-                    List<Scrap> newScraps = scrap.getAllScraps();
-                    List<Stroke> newStrokes = scrap.getAllStrokes();
-                    CaliSmallElement.setAllAddedToSelection(newScraps);
-                    CaliSmallElement.setAllAddedToSelection(newStrokes);
-                    allScrapsInSelection.addAll(newScraps);
-                    allStrokesInSelection.addAll(newStrokes);
-                }
+    /**
+     * Creates a job that finds all elements within this selection's border.
+     * 
+     * <p>
+     * The job is meant to be submitted to a {@link SceneWorker} right away:
+     * it searches the shapes that elements in the view have when this method
+     * is called, and elements are only moved into this scrap when the job is
+     * published, through {@link CaliView#selectionFound(TempScrap)}. Must be
+     * called by the drawing thread.
+     * 
+     * @param scaleFactor
+     *            the scale factor currently applied to the canvas
+     * @return the job looking for the content of this selection
+     */
+    SceneWorker.Job findSelected(float scaleFactor) {
+        return new SelectionJob(scaleFactor, parentView.getScraps(),
+                parentView.getStrokes());
+    }
+
+    /**
+     * Moves the elements found by the argument job into this scrap. Must be
+     * called by the drawing thread.
+     * 
+     * @param job
+     *            a job created by {@link #findSelected(float)} for this scrap
+     *            that has been computed
+     */
+    void addSelected(SceneWorker.Job job) {
+        SelectionJob found = (SelectionJob) job;
+        for (Scrap scrap : found.selectedScraps) {
+            if (scrap.hasToBeDeleted() || scrap.parent == this)
+                continue;
+            scraps.add(scrap);
+            if (scrap.parent != null) {
+                ((Scrap) scrap.parent).remove(scrap);
+            } else {
+                scrap.previousParent = null;
             }
+            scrap.parent = this;
         }
-        CaliSmallElement.resetSelectionStatus(allScrapsInSelection);
-        candidates = parentView.getStrokeList()
-                .findIntersectionCandidates(this);
-        for (CaliSmallElement element : candidates) {
-            Stroke stroke = (Stroke) element;
-            if (!stroke.addedToSelection && !stroke.isGhost()) {
-                if (outerBorder.contains(stroke)) {
-                    strokes.add(stroke);
-                    allStrokesInSelection.add(stroke);
-                    stroke.addedToSelection = true;
-                    if (stroke.parent != null) {
-                        ((Scrap) stroke.parent).remove(stroke);
-                    } else {
-                        stroke.previousParent = null;
-                    }
-                    stroke.parent = this;
+        for (Stroke stroke : found.selectedStrokes) {
+            if (stroke.hasToBeDeleted() || stroke.parent == this)
+                continue;
+            strokes.add(stroke);
+            if (stroke.parent != null) {
+                ((Scrap) stroke.parent).remove(stroke);
+            } else {
+                stroke.previousParent = null;
+            }
+            stroke.parent = this;
+        }
+        forceBitmapRedraw();
+    }
+
+    private class SelectionJob extends SceneWorker.Job {
+
+        private final float scaleFactor;
+        private final Path border;
+        private final List<ElementShape> scrapShapes;
+        private final List<ElementShape> strokeShapes;
+        private final List<Scrap> selectedScraps;
+        private final List<Stroke> selectedStrokes;
+
+        private SelectionJob(float scaleFactor, List<Scrap> allScraps,
+                List<Stroke> allStrokes) {
+            super(SceneWorker.PRIORITY_SELECTION);
+            this.scaleFactor = scaleFactor;
+            // elements keep changing while the job runs, so only copies of
+            // the candidates' geometry are handed to the pool thread
+            final TempScrap selection = TempScrap.this;
+            border = new Path(outerBorder.getPath());
+            scrapShapes = new ArrayList<ElementShape>();
+            for (int i = 0; i < allScraps.size(); i++) {
+                Scrap scrap = allScraps.get(i);
+                if (!scrap.hasToBeDeleted() && scrap.intersectsX(selection)
+                        && scrap.intersectsY(selection))
+                    scrapShapes.add(new ElementShape(scrap));
+            }
+            strokeShapes = new ArrayList<ElementShape>();
+            for (int i = 0; i < allStrokes.size(); i++) {
+                Stroke stroke = allStrokes.get(i);
+                if (!stroke.hasToBeDeleted() && !stroke.isGhost()
+                        && stroke.intersectsX(selection)
+                        && stroke.intersectsY(selection))
+                    strokeShapes.add(new ElementShape(stroke));
+            }
+            selectedScraps = new ArrayList<Scrap>();
+            selectedStrokes = new ArrayList<Stroke>();
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see edu.uci.calismall.SceneWorker.Job#compute()
+         */
+        @Override
+        protected void compute() {
+            selectedScraps.clear();
+            selectedStrokes.clear();
+            SelectionMask mask = new SelectionMask(border, scaleFactor);
+            List<ElementShape> candidates = new ArrayList<ElementShape>(
+                    scrapShapes);
+            Collections.sort(candidates);
+            // elements within scraps that are selected come along with them
+            Set<CaliSmallElement> inSelectedScraps = Collections.newSetFromMap(
+                    new IdentityHashMap<CaliSmallElement, Boolean>());
+            final int total = candidates.size() + strokeShapes.size();
+            int done = 0;
+            // iterate from largest to smallest
+            for (int i = candidates.size() - 1; i > -1; i--, done++) {
+                if (isCancelled())
+                    return;
+                ElementShape shape = candidates.get(i);
+                if (!inSelectedScraps.contains(shape.element)
+                        && mask.contains(shape)) {
+                    selectedScraps.add((Scrap) shape.element);
+                    inSelectedScraps.addAll(shape.getContent());
+                }
+                setProgress(done, total);
+            }
+            for (int i = 0; i < strokeShapes.size(); i++, done++) {
+                if ((i & 0xff) == 0) {
+                    if (isCancelled())
+                        return;
+                    setProgress(done, total);
                 }
+                ElementShape shape = strokeShapes.get(i);
+                if (!inSelectedScraps.contains(shape.element)
+                        && mask.contains(shape))
+                    selectedStrokes.add((Stroke) shape.element);
             }
         }
-        CaliSmallElement.resetSelectionStatus(allStrokesInSelection);
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see edu.uci.calismall.SceneWorker.Job#publish()
+         */
+        @Override
+        protected void publish() {
+            parentView.selectionFound(TempScrap.this, this);
+        }
     }
 
     private void highlight(Canvas canvas, float scaleFactor) {
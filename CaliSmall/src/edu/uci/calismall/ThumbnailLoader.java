@@ -0,0 +1,180 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+/**
+ * Loads the thumbnails shown in the list of sketches in the background.
+ * 
+ * <p>
+ * Thumbnails are decoded by a background thread, subsampled so that they're
+ * not much larger than the view showing them, and kept in a cache shared by
+ * all lists that evicts the least recently shown ones once they take more
+ * than {@link #CACHE_MEMORY_FRACTION} of the memory available to the
+ * application. Views in a list are recycled while scrolling, so every view
+ * remembers the file it's currently showing, and thumbnails that are decoded
+ * after their view moved on to another file are just put in the cache.
+ */
+public class ThumbnailLoader {
+
+    /**
+     * The fraction of the maximum heap size that can be used to cache
+     * thumbnails.
+     */
+    public static final int CACHE_MEMORY_FRACTION = 16;
+    private static final long IDLE_THREAD_TIMEOUT = 5;
+    private static final ThreadPoolExecutor DECODER = new ThreadPoolExecutor(
+            1, 1, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private static final LruCache<String, Bitmap> CACHE =
+            new LruCache<String, Bitmap>((int) (Runtime.getRuntime()
+                    .maxMemory() / CACHE_MEMORY_FRACTION)) {
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see android.util.LruCache#sizeOf(java.lang.Object,
+         * java.lang.Object)
+         */
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    };
+
+    static {
+        // don't keep the thread around when the list is not shown
+        DECODER.allowCoreThreadTimeOut(true);
+    }
+
+    private ThumbnailLoader() {
+        // only static methods
+    }
+
+    /**
+     * Shows the thumbnail stored in the argument file in the argument view.
+     * 
+     * <p>
+     * If the thumbnail is cached it's shown right away, otherwise the
+     * <tt>placeholder</tt> is shown until the thumbnail is decoded. Must be
+     * called by the UI thread.
+     * 
+     * @param thumbnail
+     *            the file storing the thumbnail
+     * @param view
+     *            the view that must show the thumbnail
+     * @param placeholder
+     *            the image to be shown while the thumbnail is loaded, or if
+     *            it can't be loaded at all
+     */
+    public static void load(final File thumbnail, final ImageView view,
+            Drawable placeholder) {
+        final String key = thumbnail.getAbsolutePath();
+        view.setTag(key);
+        Bitmap cached = CACHE.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+        view.setImageDrawable(placeholder);
+        final int width = view.getLayoutParams().width;
+        final int height = view.getLayoutParams().height;
+        DECODER.execute(new Runnable() {
+            public void run() {
+                if (!key.equals(view.getTag()))
+                    // scrolled past it already
+                    return;
+                final Bitmap bitmap = decode(thumbnail, width, height);
+                if (bitmap == null)
+                    return;
+                CACHE.put(key, bitmap);
+                view.post(new Runnable() {
+                    public void run() {
+                        if (key.equals(view.getTag()))
+                            view.setImageBitmap(bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops showing the thumbnail in the argument view, if any.
+     * 
+     * @param view
+     *            a view that is not showing a thumbnail any more
+     */
+    public static void clear(ImageView view) {
+        view.setTag(null);
+    }
+
+    /**
+     * Removes the thumbnail stored in the argument file from the cache, so
+     * that it's decoded again the next time it's shown.
+     * 
+     * @param thumbnail
+     *            a file whose content changed, or that was deleted
+     */
+    public static void forget(File thumbnail) {
+        CACHE.remove(thumbnail.getAbsolutePath());
+    }
+
+    /**
+     * Decodes the argument file, skipping as many pixels as possible while
+     * keeping the image at least as large as the argument size.
+     */
+    private static Bitmap decode(File file, int width, int height) {
+        if (!file.exists())
+            return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        int sampleSize = 1;
+        if (width > 0 && height > 0) {
+            while (options.outWidth / (sampleSize * 2) >= width
+                    && options.outHeight / (sampleSize * 2) >= height)
+                sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.util.Log;
+
+/**
+ * Renders the thumbnails shown in the list of sketches, off the save path.
+ * 
+ * <p>
+ * Saving a sketch only requests a thumbnail through
+ * {@link #request(File, SceneSnapshot)}: the thumbnail is rendered by the
+ * drawing thread between two frames, straight at {@link #SCALE} so that no
+ * full-size bitmap of the canvas is ever allocated, and is then encoded and
+ * written to disk by a background thread. Requests that the drawing thread
+ * didn't get to yet are coalesced, so that only the last one is rendered, and
+ * requests for a sketch whose elements are all unchanged since its last
+ * thumbnail are dropped altogether.
+ */
+public class Thumbnailer {
+
+    /**
+     * The scale at which thumbnails are rendered, relative to the size of the
+     * drawable canvas.
+     */
+    public static final float SCALE = 0.25f;
+    /**
+     * The quality of the JPEG compression of thumbnails.
+     */
+    public static final int JPEG_QUALITY = 70;
+    private static final long IDLE_THREAD_TIMEOUT = 5;
+    private static final ThreadPoolExecutor WRITER = new ThreadPoolExecutor(1,
+            1, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        // don't keep the thread around when no sketch is being saved
+        WRITER.allowCoreThreadTimeOut(true);
+    }
+
+    private final CaliView view;
+    private final AtomicReference<File> requested;
+    private File lastFile;
+    private float lastWidth, lastHeight;
+    private long[] lastIDs;
+    private ByteBuffer[] lastRecords;
+
+    /**
+     * Creates a new thumbnailer for the argument view.
+     * 
+     * @param view
+     *            the view whose thumbnails are rendered
+     */
+    public Thumbnailer(CaliView view) {
+        this.view = view;
+        requested = new AtomicReference<File>();
+    }
+
+    /**
+     * Requests a thumbnail of the sketch to be saved to the argument file.
+     * 
+     * <p>
+     * If the drawing thread is not running, the thumbnail is rendered by the
+     * calling thread, otherwise this method returns immediately.
+     * 
+     * @param dst
+     *            the file to which the thumbnail will be saved
+     * @param scene
+     *            the state of the sketch that was just saved, used to tell
+     *            whether anything changed since the last thumbnail
+     */
+    public void request(File dst, SceneSnapshot scene) {
+        if (!remember(dst, scene))
+            return;
+        requested.set(dst);
+        if (!view.isRunning())
+            renderRequested();
+    }
+
+    /**
+     * Records the argument scene as the content of the thumbnail for
+     * <tt>dst</tt>, returning <code>false</code> if it's the same as that of
+     * the last thumbnail written to <tt>dst</tt>.
+     */
+    private synchronized boolean remember(File dst, SceneSnapshot scene) {
+        if (dst.equals(lastFile) && dst.exists() && isUnchanged(scene))
+            return false;
+        final int size = scene.size();
+        lastFile = dst;
+        lastWidth = scene.getWidth();
+        lastHeight = scene.getHeight();
+        lastIDs = new long[size];
+        lastRecords = new ByteBuffer[size];
+        for (int i = 0; i < size; i++) {
+            lastIDs[i] = scene.getID(i);
+            lastRecords[i] = scene.getRecord(i);
+        }
+        return true;
+    }
+
+    private boolean isUnchanged(SceneSnapshot scene) {
+        if (lastIDs == null || lastIDs.length != scene.size()
+                || lastWidth != scene.getWidth()
+                || lastHeight != scene.getHeight())
+            return false;
+        for (int i = 0; i < lastIDs.length; i++) {
+            // records are only encoded again when elements change
+            if (lastIDs[i] != scene.getID(i)
+                    || lastRecords[i] != scene.getRecord(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets about pending requests and about the content of the last
+     * thumbnail, so that the next request is always honored.
+     */
+    public synchronized void cancel() {
+        requested.set(null);
+        lastFile = null;
+        lastIDs = null;
+        lastRecords = null;
+    }
+
+    /**
+     * Renders the last requested thumbnail, if any, and hands it to the
+     * background thread that writes it to disk.
+     * 
+     * <p>
+     * Must be called by the drawing thread between two frames, or while it's
+     * stopped.
+     */
+    public void renderRequested() {
+        final File dst = requested.getAndSet(null);
+        if (dst == null)
+            return;
+        final Bitmap thumbnail = view.drawThumbnail(SCALE);
+        if (thumbnail == null)
+            return;
+        if (view.isLoadingTiles()) {
+            // elements that are still being loaded are missing, render the
+            // thumbnail again on the next save
+            synchronized (this) {
+                lastIDs = null;
+            }
+        }
+        WRITER.execute(new Runnable() {
+            public void run() {
+                write(thumbnail, dst);
+            }
+        });
+    }
+
+    private static void write(Bitmap thumbnail, File dst) {
+        // the list of sketches must never show a half-written thumbnail
+        File tmp = new File(dst.getParentFile(), dst.getName() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            thumbnail.compress(CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.flush();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(dst))
+                Log.e(CaliSmall.TAG, "could not replace " + dst);
+            ThumbnailLoader.forget(dst);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            thumbnail.recycle();
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
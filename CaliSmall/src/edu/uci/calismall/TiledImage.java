@@ -0,0 +1,320 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Draws sharp versions of the portions of an image that are visible when the
+ * canvas is zoomed in.
+ * 
+ * <p>
+ * {@link ImageScrap}'s keep a bitmap of their image that is scaled down to fit
+ * the canvas, which looks blurry once the user zooms in. A
+ * <tt>TiledImage</tt> is drawn on top of that bitmap: it splits the source
+ * image into tiles of {@link #TILE_SIZE} pixels and decodes only the tiles
+ * that are on screen through a {@link BitmapRegionDecoder}, skipping as many
+ * pixels as the current zoom level allows. Tiles are decoded by a background
+ * thread, so until a tile is ready the scaled bitmap is shown in its place.
+ * 
+ * <p>
+ * Decoded tiles are kept in a cache shared by all images, which evicts the
+ * least recently drawn tiles once they take more than
+ * {@link #CACHE_MEMORY_FRACTION} of the memory available to the application.
+ */
+public class TiledImage {
+
+    /**
+     * The size of the side of a decoded tile, in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+    /**
+     * The fraction of the maximum heap size that can be used to cache tiles.
+     */
+    public static final int CACHE_MEMORY_FRACTION = 8;
+    private static final long IDLE_THREAD_TIMEOUT = 5;
+    private static final ThreadPoolExecutor DECODER = new ThreadPoolExecutor(
+            1, 1, IDLE_THREAD_TIMEOUT, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private static final LruCache<String, Bitmap> TILES =
+            new LruCache<String, Bitmap>((int) (Runtime.getRuntime()
+                    .maxMemory() / CACHE_MEMORY_FRACTION)) {
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see android.util.LruCache#sizeOf(java.lang.Object,
+         * java.lang.Object)
+         */
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    };
+    private static final Paint TILE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    static {
+        // don't keep the thread around when no image is zoomed in
+        DECODER.allowCoreThreadTimeOut(true);
+    }
+
+    private final ImageScrap scrap;
+    private final String srcImage;
+    private final int rotation, scaledWidth;
+    private final Set<String> pending;
+    private final Matrix srcToCanvas, inverse, tileMatrix;
+    private final Rect clip;
+    private final RectF visible, wanted;
+    private volatile BitmapRegionDecoder decoder;
+    private volatile Config config;
+    private volatile boolean opening, failed;
+    private volatile int wantedSampleSize;
+
+    /**
+     * Creates a tiled version of the image shown by the argument scrap.
+     * 
+     * @param scrap
+     *            the scrap showing the image, which is redrawn whenever new
+     *            tiles are decoded
+     * @param srcImage
+     *            the absolute path to the source image
+     * @param rotation
+     *            the rotation applied to the source image
+     * @param scaledWidth
+     *            the width of the scaled bitmap drawn by the scrap, before
+     *            rotating it
+     */
+    public TiledImage(ImageScrap scrap, String srcImage, int rotation,
+            int scaledWidth) {
+        this.scrap = scrap;
+        this.srcImage = srcImage;
+        this.rotation = rotation;
+        this.scaledWidth = scaledWidth;
+        pending = new HashSet<String>();
+        srcToCanvas = new Matrix();
+        inverse = new Matrix();
+        tileMatrix = new Matrix();
+        clip = new Rect();
+        visible = new RectF();
+        wanted = new RectF();
+    }
+
+    /**
+     * Draws all tiles that are visible in the argument canvas and that are
+     * sharper than the scaled bitmap, requesting those that are not decoded
+     * yet.
+     * 
+     * <p>
+     * Must be called by the drawing thread, right after the scaled bitmap has
+     * been drawn.
+     * 
+     * @param canvas
+     *            the canvas onto which the image is drawn
+     * @param bitmapMatrix
+     *            the transformation applied to the scaled bitmap
+     * @param scaleFactor
+     *            the scale factor currently applied to the canvas
+     */
+    public void draw(Canvas canvas, Matrix bitmapMatrix, float scaleFactor) {
+        // screen pixels per pixel of the scaled bitmap
+        final float zoom = bitmapMatrix.mapRadius(1) * scaleFactor;
+        if (failed || zoom <= 1)
+            return;
+        final BitmapRegionDecoder decoder = this.decoder;
+        if (decoder == null) {
+            open();
+            return;
+        }
+        final int width = decoder.getWidth();
+        final int height = decoder.getHeight();
+        final float downScale = (float) scaledWidth / width;
+        int sampleSize = 1;
+        while (sampleSize * 2 * downScale * zoom <= 1)
+            sampleSize *= 2;
+        if (sampleSize * downScale >= 1)
+            // tiles wouldn't be any sharper than the scaled bitmap
+            return;
+        computeSourceTransform(width, height, downScale, bitmapMatrix);
+        if (!canvas.getClipBounds(clip) || !srcToCanvas.invert(inverse))
+            return;
+        visible.set(clip);
+        inverse.mapRect(visible);
+        if (!visible.intersect(0, 0, width, height))
+            return;
+        synchronized (wanted) {
+            wanted.set(visible);
+            wantedSampleSize = sampleSize;
+        }
+        final int tileSide = TILE_SIZE * sampleSize;
+        final int lastRow = (int) (visible.bottom / tileSide);
+        final int lastColumn = (int) (visible.right / tileSide);
+        final int firstRow = (int) (visible.top / tileSide);
+        final int firstColumn = (int) (visible.left / tileSide);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final String key = getKey(sampleSize, column, row);
+                Bitmap tile = TILES.get(key);
+                if (tile == null) {
+                    request(key, sampleSize, column, row);
+                    continue;
+                }
+                tileMatrix.setScale(sampleSize, sampleSize);
+                tileMatrix.postTranslate(column * tileSide, row * tileSide);
+                tileMatrix.postConcat(srcToCanvas);
+                canvas.drawBitmap(tile, tileMatrix, TILE_PAINT);
+            }
+        }
+    }
+
+    /**
+     * Computes the transformation from the source image to the canvas, which
+     * is the one used by {@link ImageScrap} to create its scaled bitmap
+     * followed by the argument one.
+     */
+    private void computeSourceTransform(int width, int height,
+            float downScale, Matrix bitmapMatrix) {
+        srcToCanvas.setRotate(rotation);
+        srcToCanvas.postScale(downScale, downScale);
+        visible.set(0, 0, width, height);
+        srcToCanvas.mapRect(visible);
+        srcToCanvas.postTranslate(-visible.left, -visible.top);
+        srcToCanvas.postConcat(bitmapMatrix);
+    }
+
+    private String getKey(int sampleSize, int column, int row) {
+        return srcImage + "@" + sampleSize + ":" + column + "," + row;
+    }
+
+    private void open() {
+        if (opening)
+            return;
+        opening = true;
+        DECODER.execute(new Runnable() {
+            public void run() {
+                try {
+                    BitmapFactory.Options bounds = new BitmapFactory.Options();
+                    bounds.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFile(srcImage, bounds);
+                    // photos have no transparent pixels
+                    config = "image/jpeg".equals(bounds.outMimeType)
+                            ? Config.RGB_565 : Config.ARGB_8888;
+                    decoder = BitmapRegionDecoder
+                            .newInstance(srcImage, false);
+                    scrap.tilesLoaded();
+                } catch (IOException e) {
+                    Log.e(CaliSmall.TAG, "can't decode regions of "
+                            + srcImage, e);
+                    failed = true;
+                }
+            }
+        });
+    }
+
+    private void request(final String key, final int sampleSize,
+            final int column, final int row) {
+        synchronized (pending) {
+            if (!pending.add(key))
+                return;
+        }
+        DECODER.execute(new Runnable() {
+            public void run() {
+                try {
+                    decode(key, sampleSize, column, row);
+                } finally {
+                    synchronized (pending) {
+                        pending.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private void decode(String key, int sampleSize, int column, int row) {
+        final BitmapRegionDecoder decoder = this.decoder;
+        if (decoder == null || decoder.isRecycled())
+            return;
+        final int tileSide = TILE_SIZE * sampleSize;
+        Rect region = new Rect(column * tileSide, row * tileSide, Math.min(
+                (column + 1) * tileSide, decoder.getWidth()), Math.min(
+                (row + 1) * tileSide, decoder.getHeight()));
+        synchronized (wanted) {
+            if (sampleSize != wantedSampleSize
+                    || !RectF.intersects(wanted, new RectF(region)))
+                // the user zoomed or panned away
+                return;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        try {
+            Bitmap tile = decoder.decodeRegion(region, options);
+            if (tile == null)
+                return;
+            TILES.put(key, tile);
+            scrap.tilesLoaded();
+        } catch (OutOfMemoryError e) {
+            Log.e(CaliSmall.TAG, "out of memory decoding tiles", e);
+            TILES.evictAll();
+        }
+    }
+
+    /**
+     * Releases the region decoder used by this image. Tiles that were already
+     * decoded stay in the cache, to be used by other images of the same
+     * file.
+     */
+    public void close() {
+        DECODER.execute(new Runnable() {
+            public void run() {
+                // on the decoding thread, so no tile is being decoded
+                final BitmapRegionDecoder decoder = TiledImage.this.decoder;
+                TiledImage.this.decoder = null;
+                failed = true;
+                if (decoder != null)
+                    decoder.recycle();
+            }
+        });
+    }
+}
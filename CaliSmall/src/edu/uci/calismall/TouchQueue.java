@@ -0,0 +1,179 @@
+/*******************************************************************************
+* Copyright (c) 2013, Regents of the University of California
+* All rights reserved.
+*
+* Redistribution and use in source and binary forms, with or without modification, are permitted provided
+* that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of conditions
+* and the following disclaimer.
+*
+* Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+* and the following disclaimer in the documentation and/or other materials provided with the
+* distribution.
+*
+* None of the name of the Regents of the University of California, or the names of its
+* contributors may be used to endorse or promote products derived from this software without specific
+* prior written permission.
+*
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+* LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+* INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR
+* TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+* ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+******************************************************************************/
+package edu.uci.calismall;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.view.MotionEvent;
+
+/**
+ * A bounded queue of touch events with exactly one producer (the UI thread,
+ * which receives events from Android) and one consumer (the drawing thread,
+ * which handles them in between two frames).
+ * 
+ * <p>
+ * Slots are allocated once, when the queue is created, and events are copied
+ * into them through {@link MotionEvent#obtain(MotionEvent)}, which reuses the
+ * instances that Android keeps in its own pool once they are
+ * {@link MotionEvent#recycle()}'d. Since each index is only ever written by
+ * one of the two threads, slots need no locking of their own: the producer
+ * publishes a slot by moving the tail forward, the consumer frees it by
+ * moving the head.
+ * 
+ * <p>
+ * When the consumer lags behind and all slots are taken, events go to a small
+ * overflow list instead, where consecutive moves are merged into the last one
+ * so that the list can't grow while the user keeps drawing. The overflow list
+ * is guarded by a lock that {@link #offer(MotionEvent)} always takes, but
+ * that the consumer only holds for as long as it takes to remove an event
+ * from the list, so the producer never waits for the consumer to handle
+ * events.
+ */
+public class TouchQueue {
+
+    /**
+     * The number of events that a queue can hold by default, that is roughly
+     * as many as Android delivers in a couple of seconds of continuous
+     * drawing.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+    private final MotionEvent[] slots;
+    private final int mask;
+    private final AtomicLong head, tail;
+    /**
+     * Events that didn't fit in {@link #slots}, all of which were received
+     * after the ones in there. Guarded by itself.
+     */
+    private final ArrayDeque<MotionEvent> overflow;
+
+    /**
+     * Creates a new queue that can hold {@link #DEFAULT_CAPACITY} events.
+     */
+    public TouchQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new queue that can hold at least <tt>capacity</tt> events.
+     * 
+     * @param capacity
+     *            the minimum number of events that can be queued before
+     *            {@link #offer(MotionEvent)} starts using the overflow list,
+     *            rounded up to the next power of two
+     */
+    public TouchQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new MotionEvent[size];
+        mask = size - 1;
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        overflow = new ArrayDeque<MotionEvent>();
+    }
+
+    /**
+     * Appends a copy of the argument event to this queue.
+     * 
+     * <p>
+     * Must only be called by the producer thread. If all slots are taken, the
+     * event is added to the overflow list, replacing the last event in there
+     * if both are moves of the same pointers.
+     * 
+     * @param event
+     *            the event to be queued, which is not retained, so Android can
+     *            recycle it as soon as this method returns
+     * @return <code>false</code> if the event took the place of a move that
+     *         was still waiting to be handled
+     */
+    public boolean offer(MotionEvent event) {
+        synchronized (overflow) {
+            if (overflow.isEmpty()) {
+                final long next = tail.get();
+                if (next - head.get() < slots.length) {
+                    slots[(int) next & mask] = MotionEvent.obtain(event);
+                    // publishes the slot to the consumer
+                    tail.lazySet(next + 1);
+                    return true;
+                }
+            }
+            // events in the slots are older than any of these
+            MotionEvent last = overflow.peekLast();
+            if (last != null && isMove(last) && isMove(event)
+                    && last.getPointerCount() == event.getPointerCount()) {
+                overflow.pollLast().recycle();
+                overflow.add(MotionEvent.obtain(event));
+                return false;
+            }
+            overflow.add(MotionEvent.obtain(event));
+            return true;
+        }
+    }
+
+    private static boolean isMove(MotionEvent event) {
+        return (event.getAction() & MotionEvent.ACTION_MASK)
+                == MotionEvent.ACTION_MOVE;
+    }
+
+    /**
+     * Removes the oldest event from this queue.
+     * 
+     * <p>
+     * Must only be called by the consumer thread, which should
+     * {@link MotionEvent#recycle()} the returned event once it's done with it.
+     * 
+     * @return the oldest event in the queue, or <code>null</code> if the queue
+     *         is empty
+     */
+    public MotionEvent poll() {
+        final long first = head.get();
+        if (first == tail.get()) {
+            synchronized (overflow) {
+                return overflow.poll();
+            }
+        }
+        final int index = (int) first & mask;
+        MotionEvent event = slots[index];
+        slots[index] = null;
+        // hands the slot back to the producer
+        head.lazySet(first + 1);
+        return event;
+    }
+
+    /**
+     * Returns whether this queue is currently empty.
+     * 
+     * @return <code>true</code> if no event is waiting to be handled
+     */
+    public boolean isEmpty() {
+        if (head.get() != tail.get())
+            return false;
+        synchronized (overflow) {
+            return overflow.isEmpty();
+        }
+    }
+}
@@ -27,6 +27,7 @@
 ******************************************************************************/
 package edu.uci.calismall;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Set;
 
@@ -36,6 +37,8 @@ import org.json.JSONException;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 import android.util.Log;
 import android.view.MotionEvent;
 
@@ -439,6 +442,28 @@ public final class Utils {
         return array;
     }
 
+    /**
+     * Writes the argument matrix to the argument <tt>writer</tt> using the same
+     * format as {@link #matrixToJson(Matrix)}.
+     * 
+     * @param writer
+     *            the writer to which the matrix must be written
+     * @param matrix
+     *            the matrix to be written
+     * @throws IOException
+     *             if anything goes wrong while writing to the stream
+     */
+    public static void writeMatrix(JsonWriter writer, Matrix matrix)
+            throws IOException {
+        float[] values = new float[9];
+        matrix.getValues(values);
+        writer.beginArray();
+        for (float value : values) {
+            writer.value(value);
+        }
+        writer.endArray();
+    }
+
     /**
      * Decodes a matrix encoded using {@link #matrixToJson(Matrix)} from JSON
      * format to a {@link Matrix} object.
@@ -468,6 +493,30 @@ public final class Utils {
         return matrix;
     }
 
+    /**
+     * Reads a matrix written using {@link #writeMatrix(JsonWriter, Matrix)}
+     * from the argument <tt>reader</tt>.
+     * 
+     * @param reader
+     *            the reader whose next token is the array storing the matrix
+     * @return the decoded matrix
+     * @throws IOException
+     *             if anything goes wrong while reading from the stream
+     */
+    public static Matrix readMatrix(JsonReader reader) throws IOException {
+        float[] values = new float[9];
+        reader.beginArray();
+        for (int i = 0; reader.hasNext(); i++) {
+            float value = (float) reader.nextDouble();
+            if (i < values.length)
+                values[i] = value;
+        }
+        reader.endArray();
+        Matrix matrix = new Matrix();
+        matrix.setValues(values);
+        return matrix;
+    }
+
     /**
      * Returns the geometric distance between the two argument points.
      * 